@@ -0,0 +1,57 @@
+package pt.unl.fct.di.apdc.trailblaze.filters;
+
+import java.io.IOException;
+import java.security.Principal;
+
+import jakarta.annotation.Priority;
+import jakarta.ws.rs.Priorities;
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.core.SecurityContext;
+import jakarta.ws.rs.ext.Provider;
+
+import pt.unl.fct.di.apdc.trailblaze.util.AuthPrincipal;
+import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+
+/**
+ *  Valida o JWT do header Authorization uma vez por pedido e publica o
+ *  {@link AuthPrincipal} no {@link SecurityContext}.
+ *  Os resources obtêm-no com {@code @Context SecurityContext} +
+ *  {@link AuthPrincipal#of(SecurityContext)}.
+ *
+ *  Não aborta pedidos: sem token (ou com token inválido) o principal fica
+ *  simplesmente ausente e cada endpoint decide o código de erro, tal como antes.
+ */
+@Provider
+@Priority(Priorities.AUTHENTICATION)
+public class AuthFilter implements ContainerRequestFilter {
+
+    @Override
+    public void filter(ContainerRequestContext req) throws IOException {
+        String hdr = req.getHeaderString("Authorization");
+        if (hdr == null || hdr.isBlank()) return;
+
+        String token = hdr.replaceFirst("(?i)^Bearer\\s+", "").trim();
+        if (token.isEmpty()) return;
+
+        AuthPrincipal principal;
+        try {
+            principal = AuthPrincipal.fromClaims(JwtUtil.validateToken(token).getBody());
+        } catch (Exception e) {                      // expirado, revogado, assinatura inválida…
+            return;
+        }
+
+        boolean secure = req.getSecurityContext() != null && req.getSecurityContext().isSecure();
+        req.setSecurityContext(new JwtSecurityContext(principal, secure));
+    }
+
+    /* ---------- SecurityContext ---------- */
+    private record JwtSecurityContext(AuthPrincipal principal, boolean secure)
+            implements SecurityContext {
+
+        @Override public Principal getUserPrincipal()   { return principal; }
+        @Override public boolean isUserInRole(String r) { return principal.roleNames().contains(r); }
+        @Override public boolean isSecure()             { return secure; }
+        @Override public String getAuthenticationScheme() { return "Bearer"; }
+    }
+}
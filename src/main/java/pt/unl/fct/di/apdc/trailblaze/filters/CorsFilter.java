@@ -19,6 +19,9 @@ public class CorsFilter implements ContainerRequestFilter, ContainerResponseFilt
         "GET,POST,PUT,DELETE,OPTIONS,HEAD";
     private static final String ALLOWED_HEADERS =
         "Origin,Content-Type,Accept,Authorization";
+    /** Headers de paginação que o JS precisa de conseguir ler. */
+    private static final String EXPOSED_HEADERS =
+        "X-Total-Count,X-Next-Cursor";
 
     /* ---------- Request filter ---------- */
     @Override
@@ -45,6 +48,7 @@ public class CorsFilter implements ContainerRequestFilter, ContainerResponseFilt
           .header("Access-Control-Allow-Credentials", "true")
           .header("Access-Control-Allow-Headers", ALLOWED_HEADERS)
           .header("Access-Control-Allow-Methods", ALLOWED_METHODS)
+          .header("Access-Control-Expose-Headers", EXPOSED_HEADERS)
           .header("Vary", "Origin");               // evita cache marada
     }
 
@@ -54,6 +58,7 @@ public class CorsFilter implements ContainerRequestFilter, ContainerResponseFilt
         headers.putSingle("Access-Control-Allow-Credentials", "true");
         headers.putSingle("Access-Control-Allow-Headers", ALLOWED_HEADERS);
         headers.putSingle("Access-Control-Allow-Methods", ALLOWED_METHODS);
+        headers.putSingle("Access-Control-Expose-Headers", EXPOSED_HEADERS);
         headers.putSingle("Vary", "Origin");
     }
 }
@@ -3,11 +3,14 @@ package pt.unl.fct.di.apdc.trailblaze.resources;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.*;
 import com.google.cloud.datastore.*;
+import jakarta.inject.Inject;
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
-import pt.unl.fct.di.apdc.trailblaze.util.TokenBlacklistUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.OnlineUsersIndex;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -17,7 +20,9 @@ import java.util.stream.Collectors;
 @Produces(MediaType.APPLICATION_JSON)
 public class AccountListingResource {
 
-    private final Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    /** Cliente Datastore partilhado, injetado pelo HK2 (ver ApplicationConfig). */
+    @Inject
+    private Datastore datastore;
 
     /* ------------------------------------------------------------- */
     /*  Helpers                                                      */
@@ -137,9 +142,15 @@ public class AccountListingResource {
     }
 
     /* ---------------------- Utilizadores com sessão ---------------------- */
+    /**
+     * Servido pelo {@link OnlineUsersIndex} (sem scans a Session / JwtActive).
+     * {@code offset}/{@code limit} opcionais; o total vai no header X-Total-Count.
+     */
     @GET
     @Path("/logged")
-    public Response listLoggedUsers(@HeaderParam("Authorization") String authHeader) {
+    public Response listLoggedUsers(@HeaderParam("Authorization") String authHeader,
+                                    @QueryParam("offset") @DefaultValue("0") int offset,
+                                    @QueryParam("limit")  @DefaultValue("0") int limit) {
         String token    = extractToken(authHeader);
         String username = JwtUtil.getUsername(token);
 
@@ -151,44 +162,30 @@ public class AccountListingResource {
         if (requesterRoles.isEmpty())
             return Response.status(Response.Status.FORBIDDEN).entity("Conta sem roles.").build();
 
-        boolean isSys = isSysRole(requesterRoles);
-        List<String> loggedUsers = new ArrayList<>();
-
-        if (isSys) {
-            /* SYS: vê todas as sessões + JWT ainda válidos */
-            Query<Entity> sessionQ = Query.newEntityQueryBuilder().setKind("Session").build();
-            datastore.run(sessionQ).forEachRemaining(s -> addIfNotPresent(loggedUsers, s.getString("username")));
+        List<String> loggedUsers = OnlineUsersIndex.onlineUsers();
 
-            Query<Entity> jwtQ = Query.newEntityQueryBuilder().setKind("JwtActive").build();
-            datastore.run(jwtQ).forEachRemaining(jwt -> processJwt(loggedUsers, jwt));
-        } else {
+        if (!isSysRole(requesterRoles)) {
             /* Outros institucionais: apenas utilizadores do mesmo role principal e que sejam públicos */
             String principalRole = primaryRoleOf(requesterRoles);
-            Query<Entity> accountQ = Query.newEntityQueryBuilder()
+            KeyQuery accountQ = Query.newKeyQueryBuilder()
                     .setKind("Account")
                     .setFilter(StructuredQuery.CompositeFilter.and(
                             StructuredQuery.PropertyFilter.eq("roles", principalRole),
                             StructuredQuery.PropertyFilter.eq("profile", "PUBLICO")
                     )).build();
 
-            for (String allowedUser : fetchResults(accountQ)) {
-                // Sessão directa
-                Query<Entity> sessQ = Query.newEntityQueryBuilder()
-                        .setKind("Session")
-                        .setFilter(StructuredQuery.PropertyFilter.eq("username", allowedUser))
-                        .build();
-                if (datastore.run(sessQ).hasNext()) addIfNotPresent(loggedUsers, allowedUser);
-
-                // JWT activos
-                Query<Entity> jwtQ = Query.newEntityQueryBuilder()
-                        .setKind("JwtActive")
-                        .setFilter(StructuredQuery.PropertyFilter.eq("username", allowedUser))
-                        .build();
-                datastore.run(jwtQ).forEachRemaining(jwt -> processJwt(loggedUsers, jwt));
-            }
+            Set<String> allowed = new HashSet<>();
+            datastore.run(accountQ).forEachRemaining(k -> allowed.add(k.getName()));
+            loggedUsers = loggedUsers.stream().filter(allowed::contains).collect(Collectors.toList());
         }
 
-        return Response.ok(loggedUsers).build();
+        int total = loggedUsers.size();
+        int from  = Math.min(Math.max(offset, 0), total);
+        int to    = limit > 0 ? Math.min(from + limit, total) : total;
+
+        return Response.ok(loggedUsers.subList(from, to))
+                       .header("X-Total-Count", total)
+                       .build();
     }
 
     /* ---------------------- Por role target ---------------------- */
@@ -233,17 +230,4 @@ public class AccountListingResource {
         final String PREFIX = "Bearer ";
         return header.startsWith(PREFIX) ? header.substring(PREFIX.length()) : header;
     }
-
-    /* ---- helpers para listLoggedUsers ---- */
-    private void addIfNotPresent(List<String> list, String user) {
-        if (!list.contains(user)) list.add(user);
-    }
-
-    private void processJwt(List<String> list, Entity jwt) {
-        String user = jwt.getString("username");
-        String jti  = jwt.getKey().getName();
-        long exp    = jwt.getLong("exp");
-        boolean valid = exp > System.currentTimeMillis() && !TokenBlacklistUtil.isBlacklisted(jti);
-        if (valid) addIfNotPresent(list, user);
-    }
 }
@@ -12,6 +12,7 @@ import com.google.cloud.datastore.*;
 import io.jsonwebtoken.Claims;
 import pt.unl.fct.di.apdc.trailblaze.util.AccountStateChangeRequest;
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 /**
  * POST /rest/activate
@@ -25,7 +26,7 @@ import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
 public final class ActivateResource {
 
     private static final Datastore DS =
-            DatastoreOptions.getDefaultInstance().getService();
+            DatastoreProvider.get();
 
     /* ----------------------------------------------------- */
     /* ----------------------  END-POINT  ------------------- */
@@ -3,9 +3,15 @@ package pt.unl.fct.di.apdc.trailblaze.resources;
 import java.util.HashSet;
 import java.util.Set;
 
+import com.google.cloud.datastore.Datastore;
+
+import org.glassfish.jersey.internal.inject.AbstractBinder;
+
 import jakarta.ws.rs.ApplicationPath;
 import jakarta.ws.rs.core.Application;
+import pt.unl.fct.di.apdc.trailblaze.filters.AuthFilter;
 import pt.unl.fct.di.apdc.trailblaze.filters.CorsFilter;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 @ApplicationPath("/rest")
 public class ApplicationConfig extends Application {
@@ -40,10 +46,26 @@ public class ApplicationConfig extends Application {
         classes.add(NotifyOutResource.class);
         classes.add(EventResource.class);
         classes.add(TrailResource.class);
+        classes.add(TrackResource.class);
+        classes.add(MetricsResource.class);
         
-        classes.add(CorsFilter.class);              
+        classes.add(CorsFilter.class);
+        classes.add(AuthFilter.class);
        
 
         return classes;
     }
+
+    /** Disponibiliza o cliente Datastore partilhado para injeção nos resources. */
+    @Override
+    public Set<Object> getSingletons() {
+        Set<Object> singletons = new HashSet<>();
+        singletons.add(new AbstractBinder() {
+            @Override
+            protected void configure() {
+                bind(DatastoreProvider.get()).to(Datastore.class);
+            }
+        });
+        return singletons;
+    }
 }
@@ -12,6 +12,7 @@ import com.google.cloud.datastore.*;
 import io.jsonwebtoken.Claims;
 import pt.unl.fct.di.apdc.trailblaze.util.AccountStateChangeRequest;
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 /**
  * POST /rest/deactivate   – Desativa a conta indicada em {@code targetUsername}.
@@ -22,7 +23,7 @@ import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
 public final class DeactivateResource {
 
     private static final Datastore DS =
-            DatastoreOptions.getDefaultInstance().getService();
+            DatastoreProvider.get();
 
     /* ----------------------------------------------------- */
     /* ---------------------- END-POINT  -------------------- */
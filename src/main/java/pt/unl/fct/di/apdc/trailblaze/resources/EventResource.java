@@ -1,15 +1,16 @@
 package pt.unl.fct.di.apdc.trailblaze.resources;
 
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.SecurityContext;
 
 import com.google.cloud.datastore.*;
 import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import io.jsonwebtoken.Claims;
 
 import java.util.*;
 import java.util.stream.*;
@@ -29,7 +30,7 @@ import pt.unl.fct.di.apdc.trailblaze.util.*;
 public class EventResource {
 
     /* --------------------- Datastore --------------------- */
-    private static final Datastore  DS       = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore  DS       = DatastoreProvider.get();
     private static final KeyFactory KF_EVENT = DS.newKeyFactory().setKind("Event");
     private static final KeyFactory KF_REG   = DS.newKeyFactory().setKind("EventReg");
     private static final ObjectMapper MAPPER = new ObjectMapper();
@@ -41,24 +42,20 @@ public class EventResource {
         return hdr != null && hdr.startsWith("Bearer ") ? hdr.substring(7) : null;
     }
 
-    /** Converte as claims «roles» (lista) ou «role» (legado) em lista de strings. */
-    private static List<String> roles(String token) {
-        try {
-            Claims c   = JwtUtil.validateToken(token).getBody();
-            Object raw = c.get("roles");
-            if (raw instanceof List<?> list && !list.isEmpty())
-                return list.stream().map(String::valueOf).collect(Collectors.toList());
-
-            String legacy = c.get("role", String.class);
-            return legacy == null ? List.of() : List.of(legacy);
-        } catch (Exception e) {
-            return List.of();
-        }
+    /** Principal do pedido (resolvido pelo AuthFilter). */
+    @Context
+    private SecurityContext security;
+
+    /** Roles «roles» (lista) ou «role» (legado) do utilizador autenticado; vazia se o token for inválido. */
+    private List<String> roles() {
+        AuthPrincipal p = AuthPrincipal.of(security);
+        return p == null ? List.of() : p.roleNames();
     }
 
     /** Username (subject) do JWT. */
-    private static String username(String token) {
-        return JwtUtil.getUsername(token);
+    private String username() {
+        AuthPrincipal p = AuthPrincipal.of(security);
+        return p == null ? null : p.getName();
     }
 
     
@@ -95,11 +92,8 @@ public class EventResource {
                                     .setFilter(PropertyFilter.hasAncestor(wsKey))
                                     .build();
             DS.run(q).forEachRemaining(p -> {
-                if (p.contains("geometry")) {
-                    try {
-                        arr.add(MAPPER.readTree(p.getString("geometry")));
-                    } catch(Exception ignored) {}
-                }
+                var geom = GeometryCodec.geometryJson(p);    // texto ou binário
+                if (geom != null) arr.add(geom);
             });
         } catch(Exception e) {
             // ignore invalid id
@@ -193,7 +187,7 @@ public class EventResource {
         if (token == null)
             return Response.status(Response.Status.UNAUTHORIZED).build();
 
-        List<String> callerRoles = roles(token);
+        List<String> callerRoles = roles();
         if (!isElevated(callerRoles))
             return Response.status(Response.Status.FORBIDDEN).build();
 
@@ -211,7 +205,7 @@ public class EventResource {
         ev.dateTime    = new Date(req.dateTimeMillis);
         ev.location    = req.location; // formato "lat,lng"
         ev.workSheetId = req.workSheetId;
-        ev.createdBy   = username(token);
+        ev.createdBy   = username();
         DS.put(ev.toEntity(DS));
         return Response.status(Response.Status.CREATED).entity(ev).build();
     }
@@ -231,7 +225,7 @@ public class EventResource {
         if (ent == null) return Response.status(Response.Status.NOT_FOUND).build();
 
         Event ev = Event.fromEntity(ent);
-        List<String> callerRoles = roles(token);
+        List<String> callerRoles = roles();
       
 
         if (!isElevated(callerRoles) )
@@ -264,8 +258,8 @@ public class EventResource {
         if (ent == null) return Response.status(Response.Status.NOT_FOUND).build();
 
         Event ev = Event.fromEntity(ent);
-        List<String> callerRoles = roles(token);
-        String callerUser        = username(token);
+        List<String> callerRoles = roles();
+        String callerUser        = username();
 
         if (!isElevated(callerRoles) && !callerUser.equals(ev.createdBy))
             return Response.status(Response.Status.FORBIDDEN).build();
@@ -295,14 +289,14 @@ public class EventResource {
         String token = jwt(auth);
         if (token == null) return Response.status(Response.Status.UNAUTHORIZED).build();
 
-        if (!roles(token).contains("RU"))
+        if (!roles().contains("RU"))
             return Response.status(Response.Status.FORBIDDEN).build();
 
         if (DS.get(KF_EVENT.newKey(id)) == null)
             return Response.status(Response.Status.NOT_FOUND).build();
 
         Key regKey = KF_REG.addAncestor(PathElement.of("Event", id))
-                           .newKey(username(token));
+                           .newKey(username());
 
         if (DS.get(regKey) == null)
             return Response.status(Response.Status.NOT_FOUND).entity("Not registered").build();
@@ -351,7 +345,7 @@ public class EventResource {
         String token = jwt(auth);
         if (token == null) return Response.status(Response.Status.UNAUTHORIZED).build();
 
-        if (!roles(token).contains("RU"))
+        if (!roles().contains("RU"))
             return Response.status(Response.Status.FORBIDDEN).build();
 
         // evento existe?
@@ -360,13 +354,13 @@ public class EventResource {
 
         // chave do registo é (Event,id) / EventReg / {username}
         Key regKey = KF_REG.addAncestor(PathElement.of("Event", id))
-                           .newKey(username(token));
+                           .newKey(username());
 
         if (DS.get(regKey) != null)
             return Response.status(Response.Status.CONFLICT)
                            .entity("Já inscrito").build();
 
-        DS.put(new EventRegistration(id, username(token)).toEntity(DS));
+        DS.put(new EventRegistration(id, username()).toEntity(DS));
         return Response.ok().build();
     }
 
@@ -384,8 +378,8 @@ public class EventResource {
         if (evEnt == null) return Response.status(Response.Status.NOT_FOUND).build();
         Event ev = Event.fromEntity(evEnt);
 
-        List<String> callerRoles = roles(token);
-        String       callerUser  = username(token);
+        List<String> callerRoles = roles();
+        String       callerUser  = username();
 
         if (!isElevated(callerRoles) && !callerUser.equals(ev.createdBy))
             return Response.status(Response.Status.FORBIDDEN).build();
@@ -409,10 +403,10 @@ public class EventResource {
         String token = jwt(auth);
         if (token == null) return Response.status(Response.Status.UNAUTHORIZED).build();
 
-        if (!roles(token).contains("RU"))
+        if (!roles().contains("RU"))
             return Response.status(Response.Status.FORBIDDEN).build();
 
-        String user = username(token);
+        String user = username();
 
         Query<Entity> qReg = Query.newEntityQueryBuilder()
                 .setKind("EventReg")
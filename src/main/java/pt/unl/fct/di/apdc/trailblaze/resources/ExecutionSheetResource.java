@@ -15,7 +15,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.cloud.datastore.Datastore;
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.EntityQuery;
 import com.google.cloud.datastore.Key;
@@ -48,6 +47,7 @@ import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
 import pt.unl.fct.di.apdc.trailblaze.util.OperationExecution;
 import pt.unl.fct.di.apdc.trailblaze.util.ParcelOperationExecution;
 import pt.unl.fct.di.apdc.trailblaze.util.UpdateExecutionSheetRequest;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 
 @Path("/fe")
@@ -58,7 +58,7 @@ public class ExecutionSheetResource {
     private static final ObjectMapper mapper = new ObjectMapper();
 
     private static final Datastore datastore =
-            DatastoreOptions.getDefaultInstance().getService();
+            DatastoreProvider.get();
     private static final KeyFactory esKeyFactory =
             datastore.newKeyFactory().setKind("ExecutionSheet");
     private static final KeyFactory opExecKeyFactory =
@@ -15,7 +15,7 @@ import java.util.stream.Collectors;
 @Produces(MediaType.APPLICATION_JSON)
 public class ForceLogoutResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
     private static final KeyFactory ACC_KF = DS.newKeyFactory().setKind("Account");
     private static final KeyFactory JWT_KF = DS.newKeyFactory().setKind("JwtActive");
 
@@ -97,6 +97,7 @@ public class ForceLogoutResource {
         DS.run(sessQ).forEachRemaining(e -> toDelete.add(e.getKey()));
         if (!toDelete.isEmpty())
             DS.delete(toDelete.toArray(Key[]::new));
+        toDelete.forEach(k -> OnlineUsersIndex.removeSession(k.getName()));
 
         /* ---------- 3-B. revogar JWT ---------- */
         if (req.targetJwt != null && !req.targetJwt.isBlank()) {
@@ -4,6 +4,7 @@ import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.*;
 
 import com.google.cloud.datastore.*;
+import jakarta.servlet.http.HttpServletRequest;
 
 import pt.unl.fct.di.apdc.trailblaze.util.*;
 
@@ -15,14 +16,15 @@ import java.util.stream.Collectors;
 @Produces(MediaType.APPLICATION_JSON)
 public class LoginJWTResource {
 
-    private static final Datastore           DS      = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore           DS      = DatastoreProvider.get();
     private static final KeyFactory          ACC_KF  = DS.newKeyFactory().setKind("Account");
 
     /* =========================================================== */
     /*                       POST  /login-jwt                      */
     /* =========================================================== */
     @POST
-    public Response login(LoginRequest req) {
+    public Response login(LoginRequest req,
+                          @Context HttpServletRequest http) {
 
         /* ---------- 0. validação do payload ---------- */
         if (req == null || req.username == null || req.password == null
@@ -30,23 +32,19 @@ public class LoginJWTResource {
             return Response.status(Response.Status.BAD_REQUEST)
                            .entity("username e password obrigatórios.").build();
 
+        /* ---------- 0.1 rate limiting (antes de qualquer acesso ao Datastore) ---------- */
+        long retryAfter = LoginRateLimiter.tryAcquire(
+                req.username, LoginRateLimiter.clientIp(http));
+        if (retryAfter > 0)
+            return LoginRateLimiter.tooManyRequests(retryAfter);
+
         /* ---------- 1. localizar conta (username ou email) ---------- */
-        String actualUsername = req.username;                       // pode ser username ou email
-        Entity user = DS.get(ACC_KF.newKey(actualUsername));
-
-        if (user == null) {                                         // procurar por email
-            Query<Entity> q = Query.newEntityQueryBuilder()
-                                    .setKind("Account")
-                                    .setFilter(StructuredQuery.PropertyFilter.eq("email", req.username))
-                                    .build();
-            var it = DS.run(q);
-            if (!it.hasNext())
-                return Response.status(Response.Status.UNAUTHORIZED)
-                               .entity("Utilizador não existe.").build();
-
-            user            = it.next();
-            actualUsername  = user.getKey().getName();              // username real
-        }
+        Entity user = AccountEmailIndex.findAccount(req.username);  // pode ser username ou email
+        if (user == null)
+            return Response.status(Response.Status.UNAUTHORIZED)
+                           .entity("Utilizador não existe.").build();
+
+        String actualUsername = user.getKey().getName();            // username real
 
         /* ---------- 2. password ---------- */
         if (!HashUtil.checkPassword(req.password, user.getString("password")))
@@ -58,6 +56,8 @@ public class LoginJWTResource {
             return Response.status(Response.Status.FORBIDDEN)
                            .entity("Conta não está ativada.").build();
 
+        AccountUtil.upgradePasswordHash(DS, user, req.password);    // hash antigo → esquema atual
+
         /* ---------- 4. lista de roles ---------- */
         List<String> roles;
         if (user.contains("roles")) {                               // conta já na versão nova
@@ -71,6 +71,8 @@ public class LoginJWTResource {
             System.out.println("User " + actualUsername + " has role from legacy 'role' field: " + roles);
         }
 
+        LoginRateLimiter.onSuccess(req.username);
+
         /* ---------- 5. gerar JWT ---------- */
         String jwt = JwtUtil.generateToken(actualUsername, roles);
 
@@ -6,6 +6,7 @@ import jakarta.ws.rs.core.*;
 import pt.unl.fct.di.apdc.trailblaze.util.*;
 
 import com.google.cloud.datastore.*;
+import jakarta.servlet.http.HttpServletRequest;
 
 @Path("/login")
 public class LoginResource {
@@ -13,26 +14,20 @@ public class LoginResource {
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response login(LoginRequest request) {
-		Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-		KeyFactory keyFactory = datastore.newKeyFactory().setKind("Account");
-		String actualUsername = request.username;
-		Key userKey = keyFactory.newKey(actualUsername);
-		Entity user = datastore.get(userKey);
+	public Response login(LoginRequest request,
+	                      @Context HttpServletRequest http) {
+		long retryAfter = LoginRateLimiter.tryAcquire(
+				request.username, LoginRateLimiter.clientIp(http));
+		if (retryAfter > 0) {
+			return LoginRateLimiter.tooManyRequests(retryAfter);
+		}
 
+		Datastore datastore = DatastoreProvider.get();
+		Entity user = AccountEmailIndex.findAccount(request.username);
 		if (user == null) {
-			Query<Entity> q = Query.newEntityQueryBuilder()
-					.setKind("Account")
-					.setFilter(StructuredQuery.PropertyFilter.eq("email", request.username))
-					.build();
-			QueryResults<Entity> results = datastore.run(q);
-			if (results.hasNext()) {
-				user = results.next();
-				actualUsername = user.getKey().getName();
-			} else {
-				return Response.status(Response.Status.UNAUTHORIZED).entity("Utilizador não existe.").build();
-			}
+			return Response.status(Response.Status.UNAUTHORIZED).entity("Utilizador não existe.").build();
 		}
+		String actualUsername = user.getKey().getName();
 
 		if (!HashUtil.checkPassword(request.password, user.getString("password"))) {
 			return Response.status(Response.Status.UNAUTHORIZED).entity("Password incorreta.").build();
@@ -42,14 +37,19 @@ public class LoginResource {
 			return Response.status(Response.Status.FORBIDDEN).entity("Conta não está ativada.").build();
 		}
 
+		AccountUtil.upgradePasswordHash(datastore, user, request.password);
+		LoginRateLimiter.onSuccess(request.username);
+
 		String token = java.util.UUID.randomUUID().toString();
+		long creationTime = System.currentTimeMillis();
 		Key sessionKey = datastore.newKeyFactory().setKind("Session").newKey(token);
 		Entity session = Entity.newBuilder(sessionKey)
                 .set("username", actualUsername)
 				.set("role", user.getString("role"))
-				.set("creationTime", System.currentTimeMillis())
+				.set("creationTime", creationTime)
 				.build();
 		datastore.put(session);
+		OnlineUsersIndex.addSession(actualUsername, token, creationTime);
 
 		return Response.ok("{\"token\":\"" + token + "\"}").build();
 	}
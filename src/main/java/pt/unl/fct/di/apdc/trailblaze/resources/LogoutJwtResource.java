@@ -11,7 +11,7 @@ import com.google.cloud.datastore.*;
 @Produces(MediaType.APPLICATION_JSON)
 public class LogoutJwtResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
     private static final KeyFactory KF = DS.newKeyFactory().setKind("JwtActive");
 
     /* ==================================================== */
@@ -4,11 +4,14 @@ import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.*;
 import com.google.cloud.datastore.*;
 
+import pt.unl.fct.di.apdc.trailblaze.util.OnlineUsersIndex;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
+
 @Path("/logout")
 public class LogoutResource {
 
     private static final Datastore datastore =
-            DatastoreOptions.getDefaultInstance().getService();
+            DatastoreProvider.get();
 
     @POST
     @Produces(MediaType.APPLICATION_JSON)
@@ -29,6 +32,7 @@ public class LogoutResource {
                            .entity("Sessão inexistente ou já terminada.").build();
 
         datastore.delete(key);
+        OnlineUsersIndex.removeSession(token);
         return Response.ok("{\"message\":\"Logout efetuado com sucesso.\"}").build();
     }
 }
\ No newline at end of file
@@ -15,9 +15,11 @@ import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
-import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import jakarta.ws.rs.core.SecurityContext;
+import pt.unl.fct.di.apdc.trailblaze.util.AuthPrincipal;
 
 @Path("/media")
 @Consumes(MediaType.APPLICATION_JSON)
@@ -28,6 +30,10 @@ public class MediaResource {
     private static final Storage STORAGE = StorageOptions.getDefaultInstance().getService();
     private static final String  BUCKET  = determineBucketName();
 
+    /** Principal do pedido (resolvido pelo AuthFilter). */
+    @Context
+    private SecurityContext security;
+
     private static String determineBucketName() {
         // Try environment variable first
         String bucketName = System.getenv("GCS_BUCKET_NAME");
@@ -69,15 +75,10 @@ public class MediaResource {
         if (token == null || token.isEmpty())
             return Response.status(Response.Status.UNAUTHORIZED).entity("Token ausente.").build();
 
-        List<String> roles;
-        try {
-            var claims = JwtUtil.validateToken(token).getBody();
-            roles = claims.containsKey("roles")
-                    ? (List<String>) claims.get("roles", List.class)
-                    : List.of(claims.get("role", String.class));
-        } catch (Exception e) {
-            return Response.status(Response.Status.UNAUTHORIZED).entity("Token inválido: " + e.getMessage()).build();
-        }
+        AuthPrincipal principal = AuthPrincipal.of(security);
+        if (principal == null)
+            return Response.status(Response.Status.UNAUTHORIZED).entity("Token inválido.").build();
+        List<String> roles = principal.roleNames();
 
         // Allow PO and other relevant roles to upload photos
         if (!roles.contains("PO") && !roles.contains("PRBO") && !roles.contains("SYSADMIN"))
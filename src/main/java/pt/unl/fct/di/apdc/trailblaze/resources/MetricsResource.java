@@ -0,0 +1,43 @@
+package pt.unl.fct.di.apdc.trailblaze.resources;
+
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.SecurityContext;
+
+import pt.unl.fct.di.apdc.trailblaze.util.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Contadores internos da instância (rate limiting, caches, limpezas).
+ * Só para SYSADMIN – os valores são por instância, não agregados.
+ */
+@Path("/metrics")
+@Produces(MediaType.APPLICATION_JSON)
+public class MetricsResource {
+
+    @Context
+    private SecurityContext security;
+
+    @GET
+    public Response metrics() {
+        AuthPrincipal p = AuthPrincipal.of(security);
+        if (p == null)
+            return Response.status(Response.Status.UNAUTHORIZED).entity("Token inválido.").build();
+        if (!p.hasRole(Role.SYSADMIN))
+            return Response.status(Response.Status.FORBIDDEN).entity("Sem permissões.").build();
+
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("loginRateLimiter", LoginRateLimiter.metrics());
+        m.put("revokedTokens",    TokenBlacklistUtil.size());
+        m.put("onlineUsers",      OnlineUsersIndex.onlineUsers().size());
+        m.put("tokenReaper",      ExpiredTokenReaper.lastRun());
+        m.put("geofence",         Geofence.metrics());
+        m.put("importQueue",      WorkSheetImportQueue.metrics());
+        m.put("batchWriter",      BatchWriter.metrics());
+        return Response.ok(m).build();
+    }
+}
@@ -9,6 +9,8 @@ import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.*;
 
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
+import pt.unl.fct.di.apdc.trailblaze.util.Geofence;
 
 import java.util.List;
 
@@ -18,7 +20,7 @@ import java.util.List;
 public class NotifyOutResource {
 
     /* --------------------------- DAO --------------------------- */
-    private static final Datastore     DS     = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore     DS     = DatastoreProvider.get();
     private static final ObjectMapper  MAPPER = new ObjectMapper();
 
     /* --------------------------- DTO --------------------------- */
@@ -40,32 +42,21 @@ public class NotifyOutResource {
             return Response.status(Response.Status.UNAUTHORIZED).entity("Token inválido.").build();
         }
 
-        // Procura atividades do operador ainda em curso
-        Query<Entity> q = Query.newEntityQueryBuilder()
-                .setKind("Activity")
-                .setFilter(StructuredQuery.CompositeFilter.and(
-                        StructuredQuery.PropertyFilter.eq("operatorId", operatorId),
-                        StructuredQuery.PropertyFilter.eq("endTime", 0L)))
-                .build();
+        if (pos == null)
+            return Response.status(Response.Status.BAD_REQUEST).entity("Posição em falta.").build();
 
-        QueryResults<Entity> results = DS.run(q);
+        // Atividades do operador ainda em curso (endTime == null) → parcelas → geofence
         boolean outside = false;
+        for (String activityId : Geofence.openActivities(operatorId)) {
+            Key parcelKey = Geofence.parcelKeyOf(activityId);
+            if (parcelKey == null) continue;
 
-        while (results.hasNext()) {
-            Entity act = results.next();
-            Entity parcel = DS.get(act.getKey().getParent());
-            if (parcel == null || !parcel.contains("geometry")) continue;
-
-            try {
-                var geom = MAPPER.readTree(parcel.getString("geometry"));
-                if (!isInsidePolygon(geom, pos.latitude(), pos.longitude())) {
-                    outside = true;
-                    break;
-                }
-            } catch (Exception e) {
-                return Response.serverError()
-                               .entity("Erro na geometria da parcela: " + e.getMessage())
-                               .build();
+            Geofence.Prepared fence = Geofence.polygon(parcelKey);
+            if (fence == null) continue;                       // parcela sem geometria
+
+            if (!fence.contains(pos.latitude(), pos.longitude())) {
+                outside = true;
+                break;
             }
         }
 
@@ -136,29 +127,4 @@ public class NotifyOutResource {
         if (header == null || header.isBlank()) return null;
         return header.replaceFirst("(?i)^Bearer\\s+", "").trim();
     }
-
-    /**
-     * Teste de ponto-no-polígono (Ray Casting) para GeoJSON.
-     * GeoJSON usa ordem [lon, lat]; aqui tratamos (lon, lat) = (x, y).
-     */
-    private boolean isInsidePolygon(com.fasterxml.jackson.databind.JsonNode geoJson,
-                                    double lat, double lon) {
-
-        var ring = geoJson.path("coordinates").get(0);   // exterior ring
-        int n = ring.size();
-        boolean inside = false;
-
-        for (int i = 0, j = n - 1; i < n; j = i++) {
-            double lonI = ring.get(i).get(0).asDouble(); // x_i
-            double latI = ring.get(i).get(1).asDouble(); // y_i
-            double lonJ = ring.get(j).get(0).asDouble(); // x_j
-            double latJ = ring.get(j).get(1).asDouble(); // y_j
-
-            boolean intersect = ((latI > lat) != (latJ > lat)) &&
-                                (lon < (lonJ - lonI) * (lat - latI) / (latJ - latI) + lonI);
-
-            if (intersect) inside = !inside;
-        }
-        return inside;
-    }
 }
\ No newline at end of file
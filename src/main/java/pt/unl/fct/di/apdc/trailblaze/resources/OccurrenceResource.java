@@ -16,7 +16,7 @@ import java.util.*;
 @Consumes(MediaType.APPLICATION_JSON)
 public class OccurrenceResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
     private static final KeyFactory OCC_KF = DS.newKeyFactory().setKind("Occurrence");
 
  
@@ -1,8 +1,10 @@
 package pt.unl.fct.di.apdc.trailblaze.resources;
 
+import java.io.StringReader;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -12,7 +14,6 @@ import java.util.stream.Collectors;
 import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreException;
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.KeyFactory;
@@ -24,8 +25,10 @@ import com.google.cloud.datastore.StructuredQuery;
 import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 import com.google.cloud.datastore.Value;
 
+import jakarta.inject.Inject;
 import jakarta.json.Json;
 import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonObject;
 import jakarta.json.JsonObjectBuilder;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
@@ -35,13 +38,18 @@ import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.SecurityContext;
 import pt.unl.fct.di.apdc.trailblaze.util.AddInfoRequest;
-import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.AuthPrincipal;
+import pt.unl.fct.di.apdc.trailblaze.util.BatchWriter;
 import pt.unl.fct.di.apdc.trailblaze.util.NotifyOutUtil;
 import pt.unl.fct.di.apdc.trailblaze.util.ParcelExecutionStatus;
 import pt.unl.fct.di.apdc.trailblaze.util.Role;
+import pt.unl.fct.di.apdc.trailblaze.util.TrackStore;
 
 
 
@@ -50,43 +58,45 @@ import pt.unl.fct.di.apdc.trailblaze.util.Role;
 @Consumes(MediaType.APPLICATION_JSON)
 public class OperationResource {
 
-    private final Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
-    private final KeyFactory workSheetKeyFactory = datastore.newKeyFactory().setKind("WorkSheet");
-    private final KeyFactory executionSheetKeyFactory = datastore.newKeyFactory().setKind("ExecutionSheet");
-    private final KeyFactory operationExecutionKeyFactory = datastore.newKeyFactory().setKind("OperationExecution");
-    private final KeyFactory parcelExecutionKeyFactory = datastore.newKeyFactory().setKind("ParcelOperationExecution");
-    private final KeyFactory actKeyFactory = datastore.newKeyFactory().setKind("Activity");
+    private final Datastore datastore;
+    private final KeyFactory workSheetKeyFactory;
+    private final KeyFactory executionSheetKeyFactory;
+    private final KeyFactory operationExecutionKeyFactory;
+    private final KeyFactory parcelExecutionKeyFactory;
+    private final KeyFactory actKeyFactory;
+
+    /** O cliente Datastore partilhado é injetado pelo HK2 (ver ApplicationConfig). */
+    @Inject
+    public OperationResource(Datastore datastore) {
+        this.datastore = datastore;
+        this.workSheetKeyFactory = datastore.newKeyFactory().setKind("WorkSheet");
+        this.executionSheetKeyFactory = datastore.newKeyFactory().setKind("ExecutionSheet");
+        this.operationExecutionKeyFactory = datastore.newKeyFactory().setKind("OperationExecution");
+        this.parcelExecutionKeyFactory = datastore.newKeyFactory().setKind("ParcelOperationExecution");
+        this.actKeyFactory = datastore.newKeyFactory().setKind("Activity");
+    }
+
+    /** Principal do pedido (resolvido pelo AuthFilter). */
+    @Context
+    private SecurityContext security;
 
-    
     private boolean hasRole(String token, Role required) {
         if (token == null || !token.startsWith("Bearer ")) {
             System.err.println("Token mal formatado ou ausente.");
             return false;
         }
-        token = token.substring("Bearer ".length());
-        List<String> userRolesStr = JwtUtil.getUserRoles(token);
-        if (userRolesStr == null || userRolesStr.isEmpty()) {
+        AuthPrincipal principal = AuthPrincipal.of(security);
+        if (principal == null || principal.roles().isEmpty()) {
             System.err.println("Token inválido ou sem roles.");
             return false;
         }
-
-        for (String roleStr : userRolesStr) {
-            try {
-                Role userRole = Role.valueOf(roleStr);
-                if (userRole.ordinal() >= required.ordinal()) {
-                    return true;
-                }
-            } catch (IllegalArgumentException e) {
-                System.err.println("Role desconhecida: " + roleStr);
-            }
-        }
-
-        return false;
+        return principal.hasRoleAtLeast(required);
     }
 
 
     private String getUsername(String token) {
-        return JwtUtil.getUsername(token);
+        AuthPrincipal principal = AuthPrincipal.of(security);
+        return principal != null ? principal.getName() : null;
     }
 
     /**
@@ -281,7 +291,7 @@ public class OperationResource {
 
         try {
             // 8. Guardar os ParcelOperationExecutions
-            datastore.put(parcelsToSave.toArray(new Entity[0]));
+            BatchWriter.put(datastore, parcelsToSave);
 
             // 9. Atualizar OperationExecution com os novos parcelOperationExecutionIds
             List<Value<String>> existingIds = opExecEntity.contains("parcelOperationExecutionIds")
@@ -376,7 +386,7 @@ public class OperationResource {
                 .set("startTime", Timestamp.ofTimeSecondsAndNanos(now.getEpochSecond(), 0))
                 .setNull("endTime")
                 .set("observations", StringValue.of(sanitize("Início da atividade por " + userId)))
-                .set("gpsTrack", StringValue.of(""))  // ou null se preferires
+                .set("gpsTrack", StringValue.of(""))  // só para leitores antigos; o trajeto está no TrackStore
                 .set("photoUrls", ListValue.of(Collections.emptyList()))
                 .build();
 
@@ -565,7 +575,8 @@ public class OperationResource {
     @Produces(MediaType.APPLICATION_JSON)
     public Response viewActivitiesForOperation(
             @HeaderParam("Authorization") String token,
-            @PathParam("operationExecutionId") String operationExecutionId) {
+            @PathParam("operationExecutionId") String operationExecutionId,
+            @QueryParam("includeTrack") boolean includeTrack) {
 
         if (!hasRole(token, Role.PO) && !hasRole(token, Role.PRBO)) {
             return Response.status(Response.Status.FORBIDDEN)
@@ -619,7 +630,8 @@ public class OperationResource {
                         	        ? activity.getTimestamp("endTime").toString()
                         	        : "")
                         .add("observations", activity.getString("observations"))
-                        .add("gpsTrack", activity.getString("gpsTrack"));
+                        .add("track", trackSummary(activity));          // trajeto segmentado: só o resumo
+                if (includeTrack) addLegacyTrack(activityJson, activity);
 
                 if (activity.contains("photoUrls")) {
                     JsonArrayBuilder photos = Json.createArrayBuilder();
@@ -647,7 +659,8 @@ public class OperationResource {
     public Response viewActivitiesForOperationParcel(
             @HeaderParam("Authorization") String token,
             @PathParam("operationExecutionId") String operationExecutionId,
-            @PathParam("parcelOperationExecutionId") String parcelOperationExecutionId) {
+            @PathParam("parcelOperationExecutionId") String parcelOperationExecutionId,
+            @QueryParam("includeTrack") boolean includeTrack) {
 
         // Verificar roles de acesso
         if (!hasRole(token, Role.PO) && !hasRole(token, Role.PRBO)) {
@@ -704,7 +717,8 @@ public class OperationResource {
                     	        ? activity.getTimestamp("endTime").toString()
                     	        : "")
                     .add("observations", activity.getString("observations"))
-                    .add("gpsTrack", activity.getString("gpsTrack"));
+                    .add("track", trackSummary(activity));              // trajeto segmentado: só o resumo
+            if (includeTrack) addLegacyTrack(activityJson, activity);
 
             if (activity.contains("photoUrls")) {
                 JsonArrayBuilder photos = Json.createArrayBuilder();
@@ -799,11 +813,17 @@ public class OperationResource {
                 updatedActivityBuilder.set("observations", StringValue.of(req.observations));
             }
 
-            // Update GPS tracks if provided
+            // Posições GPS vão para o trajeto segmentado (TrackStore), não para "gpsTrack"
+            List<TrackStore.Sample> samples = List.of();
             if (req.gpsTracks != null && !req.gpsTracks.isEmpty()) {
-                // Join GPS tracks with comma separator
-                String gpsTracksStr = String.join(",", req.gpsTracks);
-                updatedActivityBuilder.set("gpsTrack", StringValue.of(gpsTracksStr));
+                if (req.gpsTracks.size() > MAX_ADDINFO_SAMPLES)
+                    return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE)
+                            .entity("Máximo de " + MAX_ADDINFO_SAMPLES + " posições por pedido.").build();
+                try {
+                    samples = parseGpsTracks(req.gpsTracks, activityEntity);
+                } catch (IllegalArgumentException e) {
+                    return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+                }
             }
 
             // Update photos if provided
@@ -845,11 +865,15 @@ public class OperationResource {
             // Save the updated activity
             datastore.put(updatedActivityBuilder.build());
 
+            // depois do put: o append relê a atividade e atualiza o resumo do trajeto
+            int stored = samples.isEmpty() ? 0 : TrackStore.append(activityKey, samples);
+
             System.out.println("Successfully saved!");
 
             return Response.ok(Map.of(
                     "message", "Informações adicionadas à atividade.",
-                    "activityId", req.activityId
+                    "activityId", req.activityId,
+                    "trackPointsStored", stored
             )).build();
 
         } catch (DatastoreException e) {
@@ -1103,6 +1127,66 @@ public class OperationResource {
     }
 
 
+    /** Limite de posições por addinfo (o mesmo do POST /tracks). */
+    private static final int MAX_ADDINFO_SAMPLES = 5_000;
+
+    /**
+     * Posições do addinfo: cada entrada é {@code "lat,lon[,alt]"} ou um objeto
+     * JSON {@code {"ts":…,"lat":…,"lon":…,"alt":…}} (como no POST /tracks).
+     * Sem {@code ts}, as posições recebem instantes consecutivos (1 ms) a seguir
+     * ao último ponto do trajeto (ou ao início da atividade), mantendo a ordem.
+     */
+    private static List<TrackStore.Sample> parseGpsTracks(List<String> entries, Entity activity) {
+        long base = Math.max(TrackStore.Summary.of(activity).lastTs(),
+                             activity.contains("startTime") && activity.getTimestamp("startTime") != null
+                                 ? activity.getTimestamp("startTime").toDate().getTime() : 0);
+        List<TrackStore.Sample> out = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            String e = entries.get(i) == null ? "" : entries.get(i).trim();
+            TrackStore.Sample s;
+            try {
+                if (e.startsWith("{")) {
+                    JsonObject o = Json.createReader(new StringReader(e)).readObject();
+                    s = new TrackStore.Sample(
+                            o.containsKey("ts") ? o.getJsonNumber("ts").longValue() : base + i + 1,
+                            o.getJsonNumber("lat").doubleValue(),
+                            o.getJsonNumber("lon").doubleValue(),
+                            o.containsKey("alt") && !o.isNull("alt")
+                                    ? (float) o.getJsonNumber("alt").doubleValue() : Float.NaN);
+                } else {
+                    String[] f = e.split("[,;\\s]+");
+                    if (f.length < 2 || f.length > 3) throw new IllegalArgumentException();
+                    s = new TrackStore.Sample(base + i + 1, Double.parseDouble(f[0]), Double.parseDouble(f[1]),
+                                              f.length == 3 ? Float.parseFloat(f[2]) : Float.NaN);
+                }
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException("Posição GPS " + i + " inválida: \"" + e + "\"");
+            }
+            if (!s.isValid())
+                throw new IllegalArgumentException("Posição GPS " + i + " fora do intervalo: \"" + e + "\"");
+            out.add(s);
+        }
+        out.sort(Comparator.comparingLong(TrackStore.Sample::ts));
+        return out;
+    }
+
+    /** "gpsTrack" antigo (texto livre), só com {@code ?includeTrack=true}. */
+    private static void addLegacyTrack(JsonObjectBuilder json, Entity activity) {
+        json.add("gpsTrack", activity.contains("gpsTrack") ? activity.getString("gpsTrack") : "");
+    }
+
+    /** Resumo do trajeto GPS (pontos, distância, duração, bbox) guardado na própria Activity. */
+    private static JsonObjectBuilder trackSummary(Entity activity) {
+        TrackStore.Summary t = TrackStore.Summary.of(activity);
+        JsonObjectBuilder o = Json.createObjectBuilder().add("points", t.points());
+        if (t.points() > 0)
+            o.add("distanceM", Math.round(t.distanceM()))
+             .add("durationMs", t.durationMs())
+             .add("bbox", Json.createArrayBuilder()
+                              .add(t.minLon()).add(t.minLat()).add(t.maxLon()).add(t.maxLat()));
+        return o;
+    }
+
     private String sanitize(String input) {
         return input == null ? "" : input.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
     }
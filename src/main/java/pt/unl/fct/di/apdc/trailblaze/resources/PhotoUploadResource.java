@@ -24,9 +24,11 @@ import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
-import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import jakarta.ws.rs.core.SecurityContext;
+import pt.unl.fct.di.apdc.trailblaze.util.AuthPrincipal;
 
 @jakarta.ws.rs.Path("/photos")
 @Consumes(MediaType.MULTIPART_FORM_DATA)
@@ -34,6 +36,10 @@ import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
 public class PhotoUploadResource {
 
     private static final Logger logger = Logger.getLogger(PhotoUploadResource.class.getName());
+
+    /** Principal do pedido (resolvido pelo AuthFilter). */
+    @Context
+    private SecurityContext security;
     
     // Google Cloud Storage configuration
     private static final String PROJECT_ID = "trailblaze-460312";
@@ -127,17 +133,11 @@ public class PhotoUploadResource {
             return Response.status(Response.Status.UNAUTHORIZED).entity("Token ausente.").build();
         }
 
-        List<String> roles;
-        try {
-            var claims = JwtUtil.validateToken(token).getBody();
-            @SuppressWarnings("unchecked")
-            List<String> rolesList = claims.containsKey("roles")
-                    ? (List<String>) claims.get("roles", List.class)
-                    : List.of(claims.get("role", String.class));
-            roles = rolesList;
-        } catch (Exception e) {
+        AuthPrincipal principal = AuthPrincipal.of(security);
+        if (principal == null) {
             return Response.status(Response.Status.UNAUTHORIZED).entity("Token inválido.").build();
         }
+        List<String> roles = principal.roleNames();
 
         if (!hasValidRole(roles)) {
             return Response.status(Response.Status.FORBIDDEN)
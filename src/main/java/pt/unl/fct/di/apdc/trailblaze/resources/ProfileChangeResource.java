@@ -5,13 +5,14 @@ import jakarta.ws.rs.core.*;
 
 import com.google.cloud.datastore.*;
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 @Path("/profile")
 @Consumes(MediaType.APPLICATION_JSON)
 @Produces(MediaType.APPLICATION_JSON)
 public class ProfileChangeResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
 
     @POST
     public Response toggleProfile(@HeaderParam("Authorization") String header) {
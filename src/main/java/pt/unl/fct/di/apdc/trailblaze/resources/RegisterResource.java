@@ -16,7 +16,7 @@ public class RegisterResource {
     /* ------------------------------------------------------------------ *
      *  • Dependências e constantes                                        *
      * ------------------------------------------------------------------ */
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
 
     private static final Set<String> INSTITUTIONAL_ROLES = Set.of(
             "SYSADMIN","SYSBO","SMBO","SGVBO","SDVBO","PRBO","PO","ADLU");
@@ -118,6 +118,9 @@ public class RegisterResource {
             if (DS.get(accKey) != null)
                 return Response.status(Response.Status.CONFLICT)
                                .entity("Username já existe.").build();
+            if (DS.get(AccountEmailIndex.key(req.getEmail())) != null)
+                return Response.status(Response.Status.CONFLICT)
+                               .entity("Email já registado.").build();
 
             /* --- lista de roles atribuídos à conta --- */
             Set<String> roles = new LinkedHashSet<>();
@@ -166,7 +169,22 @@ public class RegisterResource {
             else if (req instanceof CivicRegisterRequest civ)
                 civ.applyToBuilder(b);
 
-            DS.put(b.build());
+            /* --- conta + índice de email na mesma transação --- */
+            Transaction txn = DS.newTransaction();
+            try {
+                Key emailKey = AccountEmailIndex.key(req.getEmail());
+                Iterator<Entity> taken = txn.get(accKey, emailKey);
+                if (taken.hasNext()) {                  // alguém registou entretanto
+                    boolean sameUser = taken.next().getKey().equals(accKey);
+                    return Response.status(Response.Status.CONFLICT)
+                                   .entity(sameUser ? "Username já existe." : "Email já registado.")
+                                   .build();
+                }
+                txn.put(b.build(), AccountEmailIndex.entry(req.getEmail(), req.getUsername()));
+                txn.commit();
+            } finally {
+                if (txn.isActive()) txn.rollback();
+            }
 
             return Response.status(Response.Status.CREATED)
                     .entity(responseMsg)             
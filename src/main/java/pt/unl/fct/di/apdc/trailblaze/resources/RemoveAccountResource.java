@@ -17,7 +17,7 @@ public class RemoveAccountResource {
     /* ==================================================================== *
      *  Dependências                                                         *
      * ==================================================================== */
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
     private static final KeyFactory ACC_KF = DS.newKeyFactory().setKind("Account");
 
     /* ==================================================================== *
@@ -162,6 +162,8 @@ public class RemoveAccountResource {
 
         /* ---------- remoção efetiva ---------- */
         DS.delete(target.getKey());
+        if (target.contains("email"))
+            AccountEmailIndex.remove(target.getString("email"), req.targetUsername);
 
         // limpar sessões ad-hoc associadas
         Query<Entity> sessQ = Query.newEntityQueryBuilder()
@@ -6,6 +6,7 @@ import com.google.cloud.datastore.*;
 
 import pt.unl.fct.di.apdc.trailblaze.util.AccountState;
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 @Path("/account")
 public class RemoveRequestResource {
@@ -26,7 +27,7 @@ public class RemoveRequestResource {
             String username = claims.getSubject();  // quem está autenticado
 
             // Todos os utilizadores podem pedir remoção da própria conta
-            Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+            Datastore datastore = DatastoreProvider.get();
             Key accountKey = datastore.newKeyFactory().setKind("Account").newKey(username);
             Entity account = datastore.get(accountKey);
 
@@ -3,7 +3,22 @@ package pt.unl.fct.di.apdc.trailblaze.resources;
 import jakarta.servlet.ServletContextEvent;
 import jakarta.servlet.ServletContextListener;
 import jakarta.servlet.annotation.WebListener;
+import pt.unl.fct.di.apdc.trailblaze.util.AccountEmailIndex;
+import pt.unl.fct.di.apdc.trailblaze.util.BackgroundJobs;
+import pt.unl.fct.di.apdc.trailblaze.util.BatchWriter;
+import pt.unl.fct.di.apdc.trailblaze.util.ExpiredTokenReaper;
 import pt.unl.fct.di.apdc.trailblaze.util.HashUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.LoginRateLimiter;
+import pt.unl.fct.di.apdc.trailblaze.util.Migrations;
+import pt.unl.fct.di.apdc.trailblaze.util.ParcelSpatialIndex;
+import pt.unl.fct.di.apdc.trailblaze.util.OnlineUsersIndex;
+import pt.unl.fct.di.apdc.trailblaze.util.TokenBlacklistUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.TrailIndex;
+import pt.unl.fct.di.apdc.trailblaze.util.TrailSimplifier;
+import pt.unl.fct.di.apdc.trailblaze.util.WorkSheetImportQueue;
+import pt.unl.fct.di.apdc.trailblaze.util.WorkSheetStreamImport;
+import pt.unl.fct.di.apdc.trailblaze.util.WorkSheetUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 import com.google.cloud.datastore.*;
 import java.util.List;
@@ -20,10 +35,46 @@ public class StartupListener implements ServletContextListener {
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
+        createRootAccount();
+        startBackgroundJobs();
+    }
+
+    /* ---------- tarefas periódicas da instância ---------- */
+    private void startBackgroundJobs() {
+        try {
+            HashUtil.configure();
+        } catch (Exception e) {
+            System.err.println("[INIT ERROR] Configuração do hash de passwords inválida: " + e.getMessage());
+        }
+
+        ExpiredTokenReaper.start();
+        LoginRateLimiter.start();
+        ParcelSpatialIndex.start();
+        Migrations.runOnceAsync(AccountEmailIndex.MIGRATION_ID, AccountEmailIndex::backfill);
+        Migrations.runOnceAsync(TrailIndex.MIGRATION_ID, TrailIndex::backfill);
+        Migrations.runOnceAsync(WorkSheetUtil.PARCEL_STATS_MIGRATION_ID, WorkSheetUtil::backfillParcelStats);
+        Migrations.runOnceAsync(TrailSimplifier.MIGRATION_ID, TrailSimplifier::backfill);
+
+        try {
+            TokenBlacklistUtil.start();
+            System.out.println("[INIT] Índice da blacklist de JWT carregado.");
+        } catch (Exception e) {
+            System.err.println("[INIT ERROR] Falha ao carregar a blacklist de JWT: " + e.getMessage());
+        }
+
+        try {
+            OnlineUsersIndex.start();
+            System.out.println("[INIT] Índice de utilizadores online carregado.");
+        } catch (Exception e) {
+            System.err.println("[INIT ERROR] Falha ao carregar utilizadores online: " + e.getMessage());
+        }
+    }
+
+    private void createRootAccount() {
         System.out.println("[INIT] A iniciar criação automática da conta root...");
 
         try {
-            Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+            Datastore datastore = DatastoreProvider.get();
             Key userKey = datastore.newKeyFactory().setKind("Account").newKey(ROOT_USERNAME);
 
             if (datastore.get(userKey) != null) {
@@ -48,7 +99,7 @@ public class StartupListener implements ServletContextListener {
                     .set("profile", "PRIVADO")
                     .build();
 
-            datastore.put(entity);
+            datastore.put(entity, AccountEmailIndex.entry("root@trailblaze.pt", ROOT_USERNAME));
             System.out.println("[INIT] Conta root criada com sucesso.");
 
         } catch (Exception e) {
@@ -75,6 +126,9 @@ public class StartupListener implements ServletContextListener {
 */
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
-        // Nada a fazer no shutdown
+        BackgroundJobs.shutdown();
+        WorkSheetImportQueue.shutdown();
+        WorkSheetStreamImport.shutdown();
+        BatchWriter.shutdown();
     }
 }
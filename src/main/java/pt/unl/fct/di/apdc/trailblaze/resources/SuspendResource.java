@@ -10,13 +10,14 @@ import java.util.stream.Collectors;
 
 import pt.unl.fct.di.apdc.trailblaze.util.AccountStateChangeRequest;
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 @Path("/suspend")
 @Consumes(MediaType.APPLICATION_JSON)
 @Produces(MediaType.APPLICATION_JSON)
 public class SuspendResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
 
     /* ------------------------------------------------------------- */
     /*                            POST                               */
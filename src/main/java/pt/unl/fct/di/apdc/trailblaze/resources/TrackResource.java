@@ -0,0 +1,279 @@
+package pt.unl.fct.di.apdc.trailblaze.resources;
+
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.SecurityContext;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.datastore.*;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import pt.unl.fct.di.apdc.trailblaze.util.AuthPrincipal;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
+import pt.unl.fct.di.apdc.trailblaze.util.Geofence;
+import pt.unl.fct.di.apdc.trailblaze.util.Role;
+import pt.unl.fct.di.apdc.trailblaze.util.TrackStore;
+import pt.unl.fct.di.apdc.trailblaze.util.TrackStore.Sample;
+
+/**
+ * Ingestão em lote de posições GPS de uma atividade em curso.
+ *
+ * • POST /rest/tracks/{activityId}
+ *     – application/x-ndjson : uma linha por amostra {"ts":…,"lat":…,"lon":…,"alt":…}
+ *     – application/octet-stream : registos big-endian de 28 bytes
+ *       (long ts, double lat, double lon, float alt)
+ *   As amostras são validadas, verificadas contra a parcela da atividade
+ *   e acrescentadas ao trajeto numa só passagem.
+ * • GET  /rest/tracks/{activityId}[?from=&to= | ?seg=a-b] – trajeto (ou parte dele)
+ * • GET  /rest/tracks/{activityId}/summary – pontos, bbox, distância e duração
+ */
+@Path("/tracks")
+@Produces(MediaType.APPLICATION_JSON)
+public class TrackResource {
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    /** Limite por pedido (~1 h de posições a 1 Hz). */
+    private static final int MAX_SAMPLES = 5_000;
+
+    private static final Datastore    DS     = DatastoreProvider.get();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Context
+    private SecurityContext security;
+
+    /* =============================================================== */
+    /*                    POST /tracks/{activityId}                    */
+    /* =============================================================== */
+    @POST
+    @Path("/{activityId}")
+    @Consumes({ NDJSON, MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM })
+    public Response append(@PathParam("activityId") String activityId,
+                           @HeaderParam("Content-Type") String contentType,
+                           InputStream body) {
+
+        AuthPrincipal p = AuthPrincipal.of(security);
+        if (p == null)
+            return Response.status(Response.Status.UNAUTHORIZED).entity("Token inválido ou ausente.").build();
+        if (!p.hasRole(Role.PO))
+            return Response.status(Response.Status.FORBIDDEN).entity("Apenas PO pode enviar posições.").build();
+
+        /* ---------- 1) atividade em curso do próprio operador ---------- */
+        Key actKey = TrackStore.activityKey(activityId);
+        Entity act = DS.get(actKey);
+        if (act == null)
+            return Response.status(Response.Status.NOT_FOUND).entity("Atividade não encontrada.").build();
+        if (!p.getName().equals(act.getString("operatorId")))
+            return Response.status(Response.Status.FORBIDDEN).entity("A atividade pertence a outro operador.").build();
+        if (act.contains("endTime") && !act.isNull("endTime"))
+            return Response.status(Response.Status.CONFLICT).entity("Atividade já finalizada.").build();
+
+        /* ---------- 2) parse + validação ---------- */
+        List<Sample> samples;
+        int rejected;
+        try {
+            samples = new ArrayList<>();
+            rejected = isBinary(contentType) ? readBinary(body, samples) : readNdjson(body, samples);
+        } catch (TooManySamples e) {
+            return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE)
+                           .entity("Máximo de " + MAX_SAMPLES + " amostras por pedido.").build();
+        } catch (IOException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                           .entity("Corpo inválido: " + e.getMessage()).build();
+        }
+        samples.sort(Comparator.comparingLong(Sample::ts));
+
+        /* ---------- 3) geofence (mesma passagem) ---------- */
+        Key parcelKey = Geofence.parcelKeyOf(activityId);
+        Geofence.Prepared fence = parcelKey == null ? null : Geofence.polygon(parcelKey);
+        int  outside       = 0;
+        long lastOutsideTs = 0;
+        if (fence != null)
+            for (Sample s : samples)
+                if (!fence.contains(s.lat(), s.lon())) {
+                    outside++;
+                    lastOutsideTs = s.ts();
+                }
+
+        /* ---------- 4) gravação em segmentos ---------- */
+        int stored;
+        try {
+            stored = samples.isEmpty() ? 0 : TrackStore.append(actKey, samples);
+        } catch (DatastoreException e) {
+            return Response.serverError().entity("Erro ao gravar trajeto: " + e.getMessage()).build();
+        }
+
+        ObjectNode res = MAPPER.createObjectNode();
+        res.put("received", samples.size() + rejected);
+        res.put("stored", stored);
+        res.put("duplicates", samples.size() - stored);
+        res.put("rejected", rejected);
+        res.put("outside", outside);
+        if (outside > 0) res.put("lastOutsideTs", lastOutsideTs);
+        res.put("status", fence == null ? "SEM PARCELA"
+                        : outside > 0   ? "FORA DA PARCELA"
+                                        : "DENTRO DAS PARCELAS");
+        return Response.ok(res.toString()).build();
+    }
+
+    /* =============================================================== */
+    /*                     GET /tracks/{activityId}                    */
+    /* =============================================================== */
+    @GET
+    @Path("/{activityId}")
+    public Response get(@PathParam("activityId") String activityId,
+                        @QueryParam("from") Long from,
+                        @QueryParam("to")   Long to,
+                        @QueryParam("seg")  String seg) {
+
+        AuthPrincipal p = AuthPrincipal.of(security);
+        if (p == null)
+            return Response.status(Response.Status.UNAUTHORIZED).entity("Token inválido ou ausente.").build();
+
+        Key actKey = TrackStore.activityKey(activityId);
+        Entity act = DS.get(actKey);
+        if (act == null)
+            return Response.status(Response.Status.NOT_FOUND).entity("Atividade não encontrada.").build();
+        if (!canRead(p, act))
+            return Response.status(Response.Status.FORBIDDEN).entity("Sem permissão para ver este trajeto.").build();
+
+        /* leitura parcial: por intervalo temporal ou por segmentos "a" / "a-b" */
+        List<Sample> samples;
+        if (seg != null) {
+            long[] r = parseRange(seg);
+            if (r == null)
+                return Response.status(Response.Status.BAD_REQUEST).entity("Parâmetro seg inválido (ex.: 3 ou 3-7).").build();
+            samples = TrackStore.readSegments(actKey, r[0], r[1]);
+        } else if (from != null || to != null) {
+            samples = TrackStore.readRange(actKey, from == null ? 0 : from, to == null ? Long.MAX_VALUE : to);
+        } else {
+            samples = TrackStore.read(actKey);
+        }
+
+        ArrayNode points = MAPPER.createArrayNode();
+        for (Sample s : samples) {
+            ArrayNode pt = points.addArray().add(s.ts()).add(s.lat()).add(s.lon());
+            if (!Float.isNaN(s.alt())) pt.add(s.alt());
+        }
+
+        ObjectNode res = MAPPER.createObjectNode();
+        res.put("activityId", activityId);
+        res.set("summary", summaryJson(act));
+        res.put("count", points.size());
+        res.set("points", points);                               // [ts, lat, lon, alt?]
+        return Response.ok(res.toString()).build();
+    }
+
+    /* =============================================================== */
+    /*                GET /tracks/{activityId}/summary                 */
+    /* =============================================================== */
+    @GET
+    @Path("/{activityId}/summary")
+    public Response summary(@PathParam("activityId") String activityId) {
+
+        AuthPrincipal p = AuthPrincipal.of(security);
+        if (p == null)
+            return Response.status(Response.Status.UNAUTHORIZED).entity("Token inválido ou ausente.").build();
+
+        Entity act = DS.get(TrackStore.activityKey(activityId));
+        if (act == null)
+            return Response.status(Response.Status.NOT_FOUND).entity("Atividade não encontrada.").build();
+        if (!canRead(p, act))
+            return Response.status(Response.Status.FORBIDDEN).entity("Sem permissão para ver este trajeto.").build();
+
+        return Response.ok(summaryJson(act).toString()).build();
+    }
+
+    /* ---------------- helpers ---------------- */
+
+    private static final class TooManySamples extends IOException { }
+
+    private static boolean canRead(AuthPrincipal p, Entity act) {
+        return p.getName().equals(act.getString("operatorId"))
+            || p.hasAnyRole(Role.PRBO, Role.SDVBO, Role.SYSBO, Role.SYSADMIN);
+    }
+
+    private static ObjectNode summaryJson(Entity act) {
+        TrackStore.Summary s = TrackStore.Summary.of(act);
+        ObjectNode o = MAPPER.createObjectNode();
+        o.put("points", s.points());
+        o.put("segments", act.contains("trackSegments") ? act.getLong("trackSegments") : 0);
+        if (s.points() == 0) return o;
+        o.put("firstTs", s.firstTs());
+        o.put("lastTs", s.lastTs());
+        o.put("durationMs", s.durationMs());
+        o.put("distanceM", Math.round(s.distanceM()));
+        ArrayNode bbox = o.putArray("bbox");                     // [minLon, minLat, maxLon, maxLat]
+        bbox.add(s.minLon()).add(s.minLat()).add(s.maxLon()).add(s.maxLat());
+        return o;
+    }
+
+    private static long[] parseRange(String seg) {
+        try {
+            int dash = seg.indexOf('-');
+            long a = Long.parseLong(dash < 0 ? seg.trim() : seg.substring(0, dash).trim());
+            long b = dash < 0 ? a : Long.parseLong(seg.substring(dash + 1).trim());
+            return a < 0 || b < a ? null : new long[]{ a, b };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isBinary(String contentType) {
+        return contentType != null && contentType.startsWith(MediaType.APPLICATION_OCTET_STREAM);
+    }
+
+    /** @return nº de amostras rejeitadas */
+    private static int readNdjson(InputStream in, List<Sample> out) throws IOException {
+        int rejected = 0;
+        try (MappingIterator<JsonNode> it = MAPPER.readerFor(JsonNode.class)
+                                                  .without(JsonParser.Feature.AUTO_CLOSE_SOURCE)
+                                                  .readValues(in)) {
+            while (it.hasNextValue()) {
+                JsonNode n = it.nextValue();
+                Sample s = new Sample(n.path("ts").asLong(0),
+                                      n.path("lat").asDouble(Double.NaN),
+                                      n.path("lon").asDouble(Double.NaN),
+                                      n.hasNonNull("alt") ? (float) n.get("alt").asDouble() : Float.NaN);
+                if (s.isValid()) add(out, s);
+                else             rejected++;
+            }
+        }
+        return rejected;
+    }
+
+    private static int readBinary(InputStream in, List<Sample> out) throws IOException {
+        int rejected = 0;
+        DataInputStream d = new DataInputStream(in);
+        while (true) {
+            long ts;
+            try {
+                ts = d.readLong();
+            } catch (EOFException eof) {
+                return rejected;
+            }
+            Sample s = new Sample(ts, d.readDouble(), d.readDouble(), d.readFloat());
+            if (s.isValid()) add(out, s);
+            else             rejected++;
+        }
+    }
+
+    private static void add(List<Sample> out, Sample s) throws TooManySamples {
+        if (out.size() == MAX_SAMPLES) throw new TooManySamples();
+        out.add(s);
+    }
+}
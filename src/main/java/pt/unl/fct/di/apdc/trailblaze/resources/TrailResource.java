@@ -1,13 +1,15 @@
 package pt.unl.fct.di.apdc.trailblaze.resources;
 
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
-import com.fasterxml.jackson.databind.*;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-
+import jakarta.ws.rs.core.SecurityContext;
 import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 
 import pt.unl.fct.di.apdc.trailblaze.util.*;
 
@@ -22,7 +24,7 @@ import java.util.List;
 @Consumes(MediaType.APPLICATION_JSON)
 public class TrailResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
 
     /**
      * Extrai token do header Authorization
@@ -34,16 +36,24 @@ public class TrailResource {
         return authHeader.substring("Bearer ".length()).trim();
     }
 
+    /** Principal do pedido (resolvido pelo AuthFilter). */
+    @Context
+    private SecurityContext security;
+
     /**
      * Verifica se o utilizador tem role RU
      */
-    private boolean hasRURole(String token) {
-        try {
-            List<String> roles = JwtUtil.getUserRoles(token);
-            return roles != null && roles.contains("RU");
-        } catch (Exception e) {
-            return false;
-        }
+    private boolean hasRURole() {
+        AuthPrincipal p = AuthPrincipal.of(security);
+        return p != null && p.hasRole(Role.RU);
+    }
+
+    /**
+     * Username do utilizador autenticado, ou null
+     */
+    private String username() {
+        AuthPrincipal p = AuthPrincipal.of(security);
+        return p != null ? p.getName() : null;
     }
 
     /**
@@ -60,94 +70,39 @@ public class TrailResource {
     }
 
     /**
-     * Procura trilho por ID em todas as worksheets
+     * {@code ?lod=} válido: ausente ou entre 0 (original) e o nível mais grosseiro
      */
-    private Entity findTrailById(String trailId) {
-        Query<Entity> query = Query.newEntityQueryBuilder()
-                .setKind("Trail")
-                .build();
+    private static boolean validLod(Integer lod) {
+        return lod == null || (lod >= 0 && lod <= TrailSimplifier.COARSEST);
+    }
 
-        QueryResults<Entity> results = DS.run(query);
-        while (results.hasNext()) {
-            Entity entity = results.next();
-            if (trailId.equals(entity.getKey().getName())) {
-                return entity;
-            }
-        }
-        return null;
+    private static Response badLod() {
+        return Response.status(Status.BAD_REQUEST)
+                .entity("Parâmetro lod inválido (0 a " + TrailSimplifier.COARSEST + ")").build();
+    }
+
+    /**
+     * Procura trilho por ID (com ou sem worksheet) através do TrailIndex
+     */
+    private Entity findTrailById(String trailId) {
+        return TrailIndex.find(trailId);
     }
     
     
     /* ------------------------- Geo utils ------------------------- */
-    private static final ObjectMapper MAPPER = new ObjectMapper();
-
-    private static double toRad(double deg) { return deg * Math.PI / 180.0; }
-
-    private static double haversine(double lat1, double lon1, double lat2, double lon2) {
-        final double R = 6371.0; // km
-        double dLat = toRad(lat2 - lat1);
-        double dLon = toRad(lon2 - lon1);
-        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
-                   Math.cos(toRad(lat1)) * Math.cos(toRad(lat2)) *
-                   Math.sin(dLon / 2) * Math.sin(dLon / 2);
-        return R * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-    }
-
-    private static double[] centroidOf(String geom) {
-        try {
-            JsonNode g = MAPPER.readTree(geom);
-            ArrayNode rings;
-            if ("Polygon".equals(g.path("type").asText())) {
-                rings = (ArrayNode) g.path("coordinates");
-            } else if ("MultiPolygon".equals(g.path("type").asText())) {
-                rings = (ArrayNode) g.path("coordinates").get(0);
-            } else {
-                return null;
-            }
-            if (rings.size() == 0) return null;
-            ArrayNode ring = (ArrayNode) rings.get(0);
-            double sumLat = 0, sumLon = 0; int count = 0;
-            for (JsonNode c : ring) {
-                if (c.size() >= 2) {
-                    double lon = c.get(0).asDouble();
-                    double lat = c.get(1).asDouble();
-                    sumLat += lat;
-                    sumLon += lon;
-                    count++;
-                }
-            }
-            if (count == 0) return null;
-            return new double[]{sumLat / count, sumLon / count};
-        } catch (Exception e) {
-            return null;
-        }
-    }
 
-    private String findNearbyWorksheet(List<TrailPoint> points, double maxKm) {
+    /**
+     * Folha de obra com uma parcela a menos de {@code maxKm} de algum ponto do
+     * trilho (consulta ao ParcelSpatialIndex, sem ler parcelas do Datastore).
+     */
+    private String findNearbyWorksheet(TrailTrack points, double maxKm) {
         if (points == null || points.isEmpty()) return null;
 
-        Query<Entity> q = Query.newEntityQueryBuilder().setKind("Parcel").build();
-        QueryResults<Entity> res = DS.run(q);
-
-        String candidate = null;
-        double minD = Double.MAX_VALUE;
-
-        while (res.hasNext()) {
-            Entity p = res.next();
-            if (!p.contains("geometry")) continue;
-            double[] c = centroidOf(p.getString("geometry"));
-            if (c == null) continue;
-            String wsId = String.valueOf(p.getKey().getParent().getId());
-            for (TrailPoint tp : points) {
-                double d = haversine(tp.latitude, tp.longitude, c[0], c[1]);
-                if (d < minD) {
-                    minD = d;
-                    candidate = wsId;
-                }
-            }
-        }
+        List<double[]> pts = new ArrayList<>(points.size());
+        for (int i = 0; i < points.size(); i++) pts.add(new double[]{ points.lat(i), points.lon(i) });
 
-        return minD <= maxKm ? candidate : null;
+        ParcelSpatialIndex.Nearest n = ParcelSpatialIndex.nearestWorksheet(pts, maxKm);
+        return n != null ? String.valueOf(n.worksheetId()) : null;
     }
 
 
@@ -165,12 +120,12 @@ public class TrailResource {
                     .entity("Token ausente").build();
         }
 
-        if (!hasRURole(token)) {
+        if (!hasRURole()) {
             return Response.status(Status.FORBIDDEN)
                     .entity("Apenas utilizadores RU podem criar trilhos").build();
         }
 
-        String username = JwtUtil.getUsername(token);
+        String username = username();
         if (username == null) {
             return Response.status(Status.UNAUTHORIZED)
                     .entity("Token inválido").build();
@@ -188,8 +143,11 @@ public class TrailResource {
              Trail trail = new Trail(request.name, username, wsId);
             trail.visibility = request.visibility != null ? request.visibility : TrailVisibility.PRIVATE;
             trail.points = request.points;
+            trail.totalPoints    = trail.points.size();
+            trail.distanceM      = trail.points.distanceM();
+            trail.elevationGainM = trail.points.elevationGainM();
 
-            DS.put(trail.toEntity(DS));
+            TrailIndex.put(trail.toEntity(DS));
 
             return Response.status(Status.CREATED).entity(trail).build();
 
@@ -200,11 +158,18 @@ public class TrailResource {
     }
 
     /**
-     * GET /trails/list - Listar todos os trilhos públicos + trilhos próprios do utilizador
+     * GET /trails/list - Trilhos públicos + trilhos privados do utilizador, por createdAt (desc).
+     *
+     * Duas queries indexadas (públicos; privados do próprio) fundidas por data, paginadas com
+     * cursores do Datastore: {@code limit} (1..200, omissão 50) e {@code cursor} opaco.
+     * O cursor da página seguinte vai no header X-Next-Cursor (ausente na última página).
      */
     @GET
     @Path("/list")
-    public Response listTrails(@HeaderParam("Authorization") String authHeader) {
+    public Response listTrails(@HeaderParam("Authorization") String authHeader,
+                               @QueryParam("lod") Integer lod,
+                               @QueryParam("limit") Integer limit,
+                               @QueryParam("cursor") String cursor) {
         
         String token = extractToken(authHeader);
         if (token == null) {
@@ -212,40 +177,49 @@ public class TrailResource {
                     .entity("Token ausente").build();
         }
 
-        if (!hasRURole(token)) {
+        if (!hasRURole()) {
             return Response.status(Status.FORBIDDEN)
                     .entity("Apenas utilizadores RU podem ver trilhos").build();
         }
 
-        String username = JwtUtil.getUsername(token);
+        String username = username();
         if (username == null) {
             return Response.status(Status.UNAUTHORIZED)
                     .entity("Token inválido").build();
         }
 
-        try {
-            List<Trail> trails = new ArrayList<>();
+        if (!validLod(lod)) return badLod();
+        int level = lod != null ? lod : TrailSimplifier.COARSEST;   // listagens: nível mais grosseiro
 
-            // Query para todos os trilhos
-            Query<Entity> query = Query.newEntityQueryBuilder()
-                    .setKind("Trail")
-                    .build();
-            
-            QueryResults<Entity> results = DS.run(query);
+        int pageSize = limit == null ? DEFAULT_PAGE : Math.max(1, Math.min(MAX_PAGE, limit));
+        String[] start = decodeCursor(cursor);
+        if (start == null) {
+            return Response.status(Status.BAD_REQUEST)
+                    .entity("Cursor inválido").build();
+        }
 
-            while (results.hasNext()) {
-                Entity entity = results.next();
-                Trail trail = Trail.fromEntity(entity);
-                
-                // Incluir se:
-                // 1. É trilho público (qualquer utilizador pode ver)
-                // 2. É trilho do próprio utilizador (independente da visibilidade)
-                if (trail.visibility == TrailVisibility.PUBLIC || trail.createdBy.equals(username)) {
-                    trails.add(trail);
-                }
+        try {
+            Page pub = page(PropertyFilter.eq("visibility", TrailVisibility.PUBLIC.name()),
+                            start[0], pageSize, level);
+            Page own = page(CompositeFilter.and(
+                                PropertyFilter.eq("createdBy", username),
+                                PropertyFilter.eq("visibility", TrailVisibility.PRIVATE.name())),
+                            start[1], pageSize, level);
+
+            /* merge por createdAt (desc) */
+            List<Trail> trails = new ArrayList<>(pageSize);
+            int i = 0, j = 0;
+            while (trails.size() < pageSize && (i < pub.items().size() || j < own.items().size())) {
+                boolean takePub = j >= own.items().size()
+                        || (i < pub.items().size()
+                            && !pub.items().get(i).createdAt.before(own.items().get(j).createdAt));
+                trails.add(takePub ? pub.items().get(i++) : own.items().get(j++));
             }
 
-            return Response.ok(trails).build();
+            String next = encodeCursor(pub.cursorAfter(i), own.cursorAfter(j));
+            Response.ResponseBuilder rb = Response.ok(trails);
+            if (next != null) rb.header("X-Next-Cursor", next);
+            return rb.build();
 
         } catch (Exception e) {
             return Response.status(Status.INTERNAL_SERVER_ERROR)
@@ -253,13 +227,76 @@ public class TrailResource {
         }
     }
 
+    /* ------------------------- Paginação ------------------------- */
+
+    private static final int DEFAULT_PAGE = 50;
+    private static final int MAX_PAGE     = 200;
+
+    /** Estado de cada stream no cursor: "" = início, "~" = esgotado, senão cursor url-safe. */
+    private static final String EXHAUSTED = "~";
+
+    /**
+     * Página de uma das queries, com o cursor a seguir a cada item
+     * (para retomar exatamente onde o merge parou).
+     */
+    private record Page(List<Trail> items, List<String> after, String start, boolean more) {
+
+        String cursorAfter(int consumed) {
+            if (consumed == 0)                         return start;
+            if (consumed == items.size() && !more)     return EXHAUSTED;
+            return after.get(consumed - 1);
+        }
+    }
+
+    private Page page(StructuredQuery.Filter filter, String start, int pageSize, int level) {
+        if (EXHAUSTED.equals(start))
+            return new Page(List.of(), List.of(), EXHAUSTED, false);
+
+        EntityQuery.Builder qb = Query.newEntityQueryBuilder()
+                .setKind("Trail")
+                .setFilter(filter)
+                .setOrderBy(OrderBy.desc("createdAt"))
+                .setLimit(pageSize);
+        if (!start.isEmpty()) qb.setStartCursor(Cursor.fromUrlSafe(start));
+
+        List<Trail>  items = new ArrayList<>();
+        List<String> after = new ArrayList<>();
+        QueryResults<Entity> res = DS.run(qb.build());
+        while (res.hasNext()) {
+            items.add(Trail.fromEntity(res.next(), level));
+            after.add(res.getCursorAfter().toUrlSafe());
+        }
+        return new Page(items, after, start, items.size() == pageSize);
+    }
+
+    /** {@code null} se o cursor for inválido; {"", ""} sem cursor (primeira página). */
+    private static String[] decodeCursor(String cursor) {
+        if (cursor == null || cursor.isBlank()) return new String[]{ "", "" };
+        String[] parts = cursor.split("\\.", -1);
+        if (parts.length != 2) return null;
+        try {
+            for (String p : parts)
+                if (!p.isEmpty() && !EXHAUSTED.equals(p)) Cursor.fromUrlSafe(p);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return parts;
+    }
+
+    /** {@code null} quando as duas queries estão esgotadas. */
+    private static String encodeCursor(String pub, String own) {
+        if (EXHAUSTED.equals(pub) && EXHAUSTED.equals(own)) return null;
+        return pub + "." + own;
+    }
+
     /**
      * GET /trails/get/{id} - Obter trilho específico
      */
     @GET
     @Path("/get/{id}")
     public Response getTrail(@HeaderParam("Authorization") String authHeader,
-                            @PathParam("id") String trailId) {
+                            @PathParam("id") String trailId,
+                            @QueryParam("lod") Integer lod) {
         
         String token = extractToken(authHeader);
         if (token == null) {
@@ -267,26 +304,28 @@ public class TrailResource {
                     .entity("Token ausente").build();
         }
 
-        if (!hasRURole(token)) {
+        if (!hasRURole()) {
             return Response.status(Status.FORBIDDEN)
                     .entity("Apenas utilizadores RU podem ver trilhos").build();
         }
 
-        String username = JwtUtil.getUsername(token);
+        String username = username();
         if (username == null) {
             return Response.status(Status.UNAUTHORIZED)
                     .entity("Token inválido").build();
         }
 
+        if (!validLod(lod)) return badLod();
+
         try {
-            Entity entity = findTrailById(trailId);
+            Entity entity = TrailIndex.findCached(trailId);   // só leitura
             
             if (entity == null) {
                 return Response.status(Status.NOT_FOUND)
                         .entity("Trilho não encontrado").build();
             }
 
-            Trail trail = Trail.fromEntity(entity);
+            Trail trail = Trail.fromEntity(entity, lod != null ? lod : 0);
 
             if (!trail.canBeViewedBy(username)) {
                 return Response.status(Status.FORBIDDEN)
@@ -316,12 +355,12 @@ public class TrailResource {
                     .entity("Token ausente").build();
         }
 
-        if (!hasRURole(token)) {
+        if (!hasRURole()) {
             return Response.status(Status.FORBIDDEN)
                     .entity("Apenas utilizadores RU podem editar trilhos").build();
         }
 
-        String username = JwtUtil.getUsername(token);
+        String username = username();
         if (username == null) {
             return Response.status(Status.UNAUTHORIZED)
                     .entity("Token inválido").build();
@@ -350,7 +389,7 @@ public class TrailResource {
             // Adicionar nova observação
             trail.addObservation(username, request.observation);
 
-            DS.put(trail.toEntity(DS));
+            TrailIndex.put(trail.toEntity(DS));
 
             return Response.ok(trail).build();
 
@@ -375,12 +414,12 @@ public class TrailResource {
                     .entity("Token ausente").build();
         }
 
-        if (!hasRURole(token)) {
+        if (!hasRURole()) {
             return Response.status(Status.FORBIDDEN)
                     .entity("Apenas utilizadores RU podem editar trilhos").build();
         }
 
-        String username = JwtUtil.getUsername(token);
+        String username = username();
         if (username == null) {
             return Response.status(Status.UNAUTHORIZED)
                     .entity("Token inválido").build();
@@ -415,7 +454,7 @@ public class TrailResource {
                 trail.status = TrailStatus.ACTIVE;
             }
 
-            DS.put(trail.toEntity(DS));
+            TrailIndex.put(trail.toEntity(DS));
 
             return Response.ok(trail).build();
 
@@ -440,12 +479,12 @@ public class TrailResource {
                     .entity("Token ausente").build();
         }
 
-        if (!hasRURole(token)) {
+        if (!hasRURole()) {
             return Response.status(Status.FORBIDDEN)
                     .entity("Apenas utilizadores RU podem editar trilhos").build();
         }
 
-        String username = JwtUtil.getUsername(token);
+        String username = username();
         if (username == null) {
             return Response.status(Status.UNAUTHORIZED)
                     .entity("Token inválido").build();
@@ -479,7 +518,7 @@ public class TrailResource {
             // Atualizar status
             trail.status = request.status;
 
-            DS.put(trail.toEntity(DS));
+            TrailIndex.put(trail.toEntity(DS));
 
             return Response.ok(trail).build();
 
@@ -503,12 +542,12 @@ public class TrailResource {
                     .entity("Token ausente").build();
         }
 
-        if (!hasRURole(token)) {
+        if (!hasRURole()) {
             return Response.status(Status.FORBIDDEN)
                     .entity("Apenas utilizadores RU podem apagar trilhos").build();
         }
 
-        String username = JwtUtil.getUsername(token);
+        String username = username();
         if (username == null) {
             return Response.status(Status.UNAUTHORIZED)
                     .entity("Token inválido").build();
@@ -529,7 +568,7 @@ public class TrailResource {
                         .entity("Apenas o criador pode apagar este trilho").build();
             }
 
-            DS.delete(entity.getKey());
+            TrailIndex.delete(entity.getKey());
 
             return Response.ok()
                     .entity("Trilho apagado com sucesso")
@@ -547,7 +586,8 @@ public class TrailResource {
     @GET
     @Path("/worksheet/{worksheetId}")
     public Response getTrailsByWorksheet(@HeaderParam("Authorization") String authHeader,
-                                        @PathParam("worksheetId") String worksheetId) {
+                                        @PathParam("worksheetId") String worksheetId,
+                                        @QueryParam("lod") Integer lod) {
         
         String token = extractToken(authHeader);
         if (token == null) {
@@ -555,12 +595,12 @@ public class TrailResource {
                     .entity("Token ausente").build();
         }
 
-        if (!hasRURole(token)) {
+        if (!hasRURole()) {
             return Response.status(Status.FORBIDDEN)
                     .entity("Apenas utilizadores RU podem ver trilhos").build();
         }
 
-        String username = JwtUtil.getUsername(token);
+        String username = username();
         if (username == null) {
             return Response.status(Status.UNAUTHORIZED)
                     .entity("Token inválido").build();
@@ -571,6 +611,9 @@ public class TrailResource {
                     .entity("Worksheet não encontrada").build();
         }
 
+        if (!validLod(lod)) return badLod();
+        int level = lod != null ? lod : TrailSimplifier.COARSEST;   // listagens: nível mais grosseiro
+
         try {
             List<Trail> trails = new ArrayList<>();
 
@@ -584,7 +627,7 @@ public class TrailResource {
 
             while (results.hasNext()) {
                 Entity entity = results.next();
-                Trail trail = Trail.fromEntity(entity);
+                Trail trail = Trail.fromEntity(entity, level);
                 
                 // Filtro no backend: próprios trilhos OU trilhos públicos
                 if (trail.canBeViewedBy(username)) {
@@ -8,6 +8,7 @@ import com.google.cloud.datastore.Value.*;
 
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
 import pt.unl.fct.di.apdc.trailblaze.util.UpdateRequest;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -17,7 +18,7 @@ import java.util.stream.Collectors;
 @Produces(MediaType.APPLICATION_JSON)
 public class UpdateAccountResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
     /* ------------------------------------------------------------ *
      *                       PUT /account/update                     *
      * ------------------------------------------------------------ */
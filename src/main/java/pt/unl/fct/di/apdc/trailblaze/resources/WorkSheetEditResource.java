@@ -8,15 +8,19 @@ import com.google.cloud.datastore.*;
 import java.time.LocalDate;
 import java.time.format.DateTimeParseException;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import pt.unl.fct.di.apdc.trailblaze.util.EditWorkSheetRequest;
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
+import pt.unl.fct.di.apdc.trailblaze.util.Geofence;
+import pt.unl.fct.di.apdc.trailblaze.util.ParcelSpatialIndex;
 
 @Path("/fo")
 @Produces(MediaType.APPLICATION_JSON)
 public class WorkSheetEditResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
     private static final KeyFactory WS_KF = DS.newKeyFactory().setKind("WorkSheet");
 
     /* ============================================================= *
@@ -97,6 +101,12 @@ public class WorkSheetEditResource {
             }
 
             txn.commit();
+            if (req.removePolygonIds != null && !req.removePolygonIds.isEmpty()) {
+                ParcelSpatialIndex.removeParcels(id, req.removePolygonIds.stream()
+                                                       .map(Integer::longValue)
+                                                       .collect(Collectors.toSet()));
+                Geofence.invalidateWorksheet(id);
+            }
             return Response.ok("{\"msg\":\"Folha de obra editada com sucesso.\"}").build();
 
         } catch (Exception ex) {
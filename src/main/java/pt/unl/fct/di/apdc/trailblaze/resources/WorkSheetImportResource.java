@@ -1,11 +1,14 @@
 package pt.unl.fct.di.apdc.trailblaze.resources;
 
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.SecurityContext;
 
 import com.google.cloud.datastore.*;
 
+import java.io.InputStream;
 import java.util.List;
 
 import pt.unl.fct.di.apdc.trailblaze.util.*;
@@ -15,9 +18,13 @@ import pt.unl.fct.di.apdc.trailblaze.util.*;
 @Produces(MediaType.APPLICATION_JSON)
 public class WorkSheetImportResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
     private static final KeyFactory WS_KF = DS.newKeyFactory().setKind("WorkSheet");
 
+    /** Principal do pedido (resolvido pelo AuthFilter). */
+    @Context
+    private SecurityContext security;
+
     /* =============================================================== *
      *                POST /fo/import      (SMBO)                       *
      * =============================================================== */
@@ -26,32 +33,10 @@ public class WorkSheetImportResource {
     public Response importFO(@HeaderParam("Authorization") String hdr,
                              String geoJsonBody) {
 
-        /* ---------- 1) autenticação ---------- */
-        String jwt = token(hdr);
-        if (jwt == null)
-            return unauthorized("JWT ausente.");
-
-        String username;
-        List<String> callerRoles;
-        try {
-            var claims   = JwtUtil.validateToken(jwt).getBody();
-            username     = claims.getSubject();
-            callerRoles  = claims.containsKey("roles")
-                         ? claims.get("roles", List.class)
-                         : List.of(claims.get("role", String.class));   // compat. tokens antigos
-        } catch (Exception e) {
-            return unauthorized("JWT inválido.");
-        }
-
-        if (!callerRoles.contains("SMBO"))
-            return Response.status(Response.Status.FORBIDDEN)
-                           .entity("Apenas SMBO pode importar folhas de obra.").build();
-
-        /* ---------- 2) estado da conta ---------- */
-        Entity acc = DS.get(DS.newKeyFactory().setKind("Account").newKey(username));
-        if (acc == null || !"ATIVADA".equals(acc.getString("state")))
-            return Response.status(Response.Status.FORBIDDEN)
-                           .entity("Conta inativa ou inexistente.").build();
+        /* ---------- 1+2) autenticação e estado da conta ---------- */
+        Caller caller = authorize(hdr);
+        if (caller.error() != null) return caller.error();
+        String username = caller.username();
 
         /* ---------- 3) validação do GeoJSON ---------- */
         WorkSheetUtil.ParsedWS dto;
@@ -68,21 +53,30 @@ public class WorkSheetImportResource {
             return Response.status(Response.Status.CONFLICT)
                            .entity("Folha de obra já existe.").build();
 
-        /* ---------- 5) transação ---------- */
+        /* ---------- 5) parcelas (geometria normalizada em paralelo) ---------- */
+        List<Entity> parcels;
+        try {
+            parcels = WorkSheetUtil.buildParcelEntities(dto, wsKey);
+        } catch (GeometryNormalizer.InvalidFeatures ex) {
+            return invalidFeatures(ex);
+        }
+
+        /* ---------- 6) transação ---------- */
         Transaction txn = DS.newTransaction();
         try {
-            // 5-A WorkSheet
+            // 6-A WorkSheet
             txn.put(WorkSheetUtil.buildWorkSheetEntity(dto, wsKey, username));
 
-            // 5-B Operations (até 5)
+            // 6-B Operations (até 5)
             WorkSheetUtil.buildOperationEntities(dto, wsKey)
                          .forEach(txn::put);
 
-            // 5-C Parcels
-            WorkSheetUtil.buildParcelEntities(dto, wsKey)
-                         .forEach(txn::put);
+            // 6-C Parcels
+            parcels.forEach(txn::put);
 
             txn.commit();
+            ParcelSpatialIndex.putWorksheet(dto.id(), parcels);
+            Geofence.invalidateWorksheet(dto.id());
             return Response.status(Response.Status.CREATED)
                            .entity("{\"msg\":\"Folha de obra importada com sucesso\", \"id\":" + dto.id() + "}").build();
 
@@ -94,9 +88,211 @@ public class WorkSheetImportResource {
         }
     }
 
+    /* =============================================================== *
+     *            POST /fo/import/stream      (SMBO)                    *
+     * =============================================================== *
+     *  Mesmo formato que /fo/import, lido em streaming e gravado em     *
+     *  lotes – para folhas com milhares de parcelas. «metadata» tem de  *
+     *  vir antes de «features».                                          *
+     * =============================================================== */
+    @POST
+    @Path("/import/stream")
+    public Response importFOStream(@HeaderParam("Authorization") String hdr,
+                                   InputStream body) {
+
+        Caller caller = authorize(hdr);
+        if (caller.error() != null) return caller.error();
+
+        try {
+            WorkSheetStreamImport.Result r = WorkSheetStreamImport.run(body, caller.username());
+            return Response.status(Response.Status.CREATED)
+                           .entity("{\"msg\":\"Folha de obra importada com sucesso\", \"id\":" + r.worksheetId()
+                                 + ", \"parcels\":" + r.parcels() + "}").build();
+
+        } catch (WorkSheetStreamImport.AlreadyExists ex) {
+            return Response.status(Response.Status.CONFLICT)
+                           .entity(ex.getMessage()).build();
+        } catch (GeometryNormalizer.InvalidFeatures ex) {
+            return invalidFeatures(ex);
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                           .entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                           .entity("Erro ao persistir: " + ex.getMessage()).build();
+        }
+    }
+
+    /* =============================================================== *
+     *            POST /fo/import/job[?batch=N]      (SMBO)             *
+     * =============================================================== *
+     *  Import em modo job: lotes de N parcelas gravados em paralelo,    *
+     *  progresso em ImportJob. Se falhar (ou a instância cair),         *
+     *  reenviar o mesmo ficheiro retoma o import onde parou.            *
+     * =============================================================== */
+    @POST
+    @Path("/import/job")
+    public Response importFOJob(@HeaderParam("Authorization") String hdr,
+                                @QueryParam("batch") Integer batch,
+                                InputStream body) {
+
+        Caller caller = authorize(hdr);
+        if (caller.error() != null) return caller.error();
+
+        int batchSize = batchSize(batch);
+        if (batchSize < 0) return badBatch();
+
+        try {
+            WorkSheetStreamImport.Result r = WorkSheetStreamImport.runJob(body, caller.username(), batchSize);
+            return Response.status(Response.Status.CREATED)
+                           .entity(ImportJob.load(DS, r.worksheetId())).build();
+
+        } catch (WorkSheetStreamImport.AlreadyExists ex) {
+            return Response.status(Response.Status.CONFLICT)
+                           .entity(ex.getMessage()).build();
+        } catch (GeometryNormalizer.InvalidFeatures ex) {
+            return invalidFeatures(ex);
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                           .entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                           .entity("Erro ao persistir (reenviar o ficheiro retoma o import): " + ex.getMessage()).build();
+        }
+    }
+
+    /* =============================================================== *
+     *            POST /fo/import/async[?batch=N]      (SMBO)           *
+     * =============================================================== *
+     *  Como /fo/import/job, mas responde 202 logo após guardar o        *
+     *  ficheiro; o progresso consulta-se em /fo/import/job/{id}.        *
+     * =============================================================== */
+    @POST
+    @Path("/import/async")
+    public Response importFOAsync(@HeaderParam("Authorization") String hdr,
+                                  @QueryParam("batch") Integer batch,
+                                  InputStream body) {
+
+        Caller caller = authorize(hdr);
+        if (caller.error() != null) return caller.error();
+
+        int batchSize = batchSize(batch);
+        if (batchSize < 0) return badBatch();
+
+        try {
+            long id = WorkSheetImportQueue.submit(body, caller.username(), batchSize);
+            return Response.status(Response.Status.ACCEPTED)
+                           .header("Location", "/rest/fo/import/job/" + id)
+                           .entity("{\"msg\":\"Import em fila\", \"id\":" + id + ", \"state\":\"QUEUED\"}").build();
+
+        } catch (WorkSheetImportQueue.TooLarge ex) {
+            return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE)
+                           .entity(ex.getMessage()).build();
+        } catch (WorkSheetImportQueue.QueueFull ex) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                           .header("Retry-After", "30")
+                           .entity(ex.getMessage()).build();
+        } catch (WorkSheetStreamImport.AlreadyExists ex) {
+            return Response.status(Response.Status.CONFLICT)
+                           .entity(ex.getMessage()).build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                           .entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                           .entity("Erro ao guardar o ficheiro: " + ex.getMessage()).build();
+        }
+    }
+
+    /* =============================================================== *
+     *            GET /fo/import/job/{worksheetId}      (SMBO)          *
+     * =============================================================== */
+    @GET
+    @Path("/import/job/{worksheetId}")
+    public Response importJobStatus(@HeaderParam("Authorization") String hdr,
+                                    @PathParam("worksheetId") long worksheetId) {
+
+        Caller caller = authorize(hdr);
+        if (caller.error() != null) return caller.error();
+
+        ImportJob job = ImportJob.load(DS, worksheetId);
+        if (job == null)
+            return Response.status(Response.Status.NOT_FOUND)
+                           .entity("Sem import para esta folha de obra.").build();
+        return Response.ok(job).build();
+    }
+
+    /* =============================================================== *
+     *            DELETE /fo/import/job/{worksheetId}      (SMBO)       *
+     * =============================================================== *
+     *  Descarta um import interrompido (parcelas já gravadas + job),    *
+     *  p.ex. para recomeçar com outro ficheiro.                          *
+     * =============================================================== */
+    @DELETE
+    @Path("/import/job/{worksheetId}")
+    public Response discardImportJob(@HeaderParam("Authorization") String hdr,
+                                     @PathParam("worksheetId") long worksheetId) {
+
+        Caller caller = authorize(hdr);
+        if (caller.error() != null) return caller.error();
+
+        try {
+            if (!WorkSheetStreamImport.discardJob(worksheetId))
+                return Response.status(Response.Status.NOT_FOUND)
+                               .entity("Sem import para esta folha de obra.").build();
+            return Response.ok("{\"msg\":\"Import descartado\", \"id\":" + worksheetId + "}").build();
+
+        } catch (WorkSheetStreamImport.AlreadyExists ex) {
+            return Response.status(Response.Status.CONFLICT)
+                           .entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                           .entity("Erro ao descartar: " + ex.getMessage()).build();
+        }
+    }
+
     /* ---------------- helpers ---------------- */
-    private static String token(String hdr) {
-        return hdr != null ? hdr.replaceFirst("(?i)^Bearer\\s+", "").trim() : null;
+
+    private record Caller(String username, Response error) { }
+
+    /** SMBO com conta ativa; senão {@code error} tem a resposta a devolver. */
+    private Caller authorize(String hdr) {
+        AuthPrincipal principal = AuthPrincipal.of(security);
+        if (principal == null)
+            return new Caller(null, unauthorized(hdr == null ? "JWT ausente." : "JWT inválido."));
+
+        if (!principal.hasRole(Role.SMBO))
+            return new Caller(null, Response.status(Response.Status.FORBIDDEN)
+                           .entity("Apenas SMBO pode importar folhas de obra.").build());
+
+        String username = principal.getName();
+        Entity acc = DS.get(DS.newKeyFactory().setKind("Account").newKey(username));
+        if (acc == null || !"ATIVADA".equals(acc.getString("state")))
+            return new Caller(null, Response.status(Response.Status.FORBIDDEN)
+                           .entity("Conta inativa ou inexistente.").build());
+
+        return new Caller(username, null);
+    }
+
+    /** {@code -1} se o tamanho pedido for inválido. */
+    private static int batchSize(Integer batch) {
+        int n = batch != null ? batch : WorkSheetStreamImport.DEFAULT_JOB_BATCH;
+        return n < 1 || n > WorkSheetStreamImport.MAX_BATCH_ENTITIES ? -1 : n;
+    }
+
+    private static Response badBatch() {
+        return Response.status(Response.Status.BAD_REQUEST)
+                       .entity("batch deve estar entre 1 e " + WorkSheetStreamImport.MAX_BATCH_ENTITIES + ".").build();
+    }
+
+    /** 400 com os erros de cada feature inválida. */
+    private static Response invalidFeatures(GeometryNormalizer.InvalidFeatures ex) {
+        return Response.status(Response.Status.BAD_REQUEST)
+                       .entity(ex.toJson()).build();
     }
 
     private static Response unauthorized(String msg) {
@@ -12,6 +12,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
+import pt.unl.fct.di.apdc.trailblaze.util.Geofence;
+import pt.unl.fct.di.apdc.trailblaze.util.ImportJob;
+import pt.unl.fct.di.apdc.trailblaze.util.ParcelSpatialIndex;
+import pt.unl.fct.di.apdc.trailblaze.util.TrackStore;
 
 /**
  * REM-FO – Remoção de uma folha de obra e de todas as entidades filhas.
@@ -22,7 +27,7 @@ import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
 @Produces(MediaType.APPLICATION_JSON)
 public class WorkSheetRemoveResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
     private static final KeyFactory WS_KF = DS.newKeyFactory().setKind("WorkSheet");
     private static final KeyFactory ACC_KF = DS.newKeyFactory().setKind("Account");
 
@@ -67,6 +72,7 @@ public class WorkSheetRemoveResource {
                            .entity("Folha de obra não encontrada.").build();
 
         /* ---------- 4) remoção em transação ---------- */
+        List<Key> trackedActivities = new ArrayList<>();     // trajetos GPS apagados depois do commit
         Transaction txn = DS.newTransaction();
         try {
             // 🔹 4-A  Apagar Operations associadas à worksheet
@@ -133,6 +139,7 @@ public class WorkSheetRemoveResource {
                     while (activities.hasNext()) {
                         Entity act = activities.next();
                         activityKeys.add(act.getKey());
+                        if (act.contains("trackSegments")) trackedActivities.add(act.getKey());
                     }
                 }
 
@@ -145,8 +152,12 @@ public class WorkSheetRemoveResource {
 
             // 🔹 4-D  Apagar a própria WorkSheet
             txn.delete(wsKey);
+            txn.delete(ImportJob.key(DS, id));   // o progresso do import deixa de ter folha
 
             txn.commit();
+            deleteTracks(trackedActivities);
+            ParcelSpatialIndex.removeWorksheet(id);
+            Geofence.invalidateWorksheet(id);
             return Response.ok("{\"msg\":\"Folha de obra removida com sucesso\"}").build();
 
         } catch (Exception ex) {
@@ -160,6 +171,28 @@ public class WorkSheetRemoveResource {
 
     /* ---------------- helpers ---------------- */
 
+    /**
+     * Segmentos GPS fora da transação: uma atividade longa tem dezenas de
+     * segmentos e o commit tem limite de 500 mutações. Apagar é idempotente;
+     * se falhar, os segmentos ficam órfãos (sem atividade, ninguém os lê).
+     */
+    private static void deleteTracks(List<Key> activityKeys) {
+        List<Key> batch = new ArrayList<>();
+        try {
+            for (Key act : activityKeys)
+                for (Key seg : TrackStore.segmentKeys(act)) {
+                    batch.add(seg);
+                    if (batch.size() == 500) {
+                        DS.delete(batch.toArray(new Key[0]));
+                        batch.clear();
+                    }
+                }
+            if (!batch.isEmpty()) DS.delete(batch.toArray(new Key[0]));
+        } catch (Exception e) {
+            System.err.println("[REM-FO] Falha ao apagar trajetos GPS: " + e.getMessage());
+        }
+    }
+
     /** Remove “Bearer ” (case-insensitive) e devolve null se header vazio. */
     private static String token(String hdr) {
         return hdr == null ? null : hdr.replaceFirst("(?i)^Bearer\\s+", "").trim();
@@ -7,7 +7,6 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.cloud.datastore.Datastore;
-import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.EntityQuery;
 import com.google.cloud.datastore.Key;
@@ -22,18 +21,27 @@ import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
-import pt.unl.fct.di.apdc.trailblaze.util.JwtUtil;
+import jakarta.ws.rs.core.SecurityContext;
+import io.jsonwebtoken.JwtException;
+import pt.unl.fct.di.apdc.trailblaze.util.AuthPrincipal;
+import pt.unl.fct.di.apdc.trailblaze.util.GeometryCodec;
 import pt.unl.fct.di.apdc.trailblaze.util.WorkSheetUtil;
+import pt.unl.fct.di.apdc.trailblaze.util.DatastoreProvider;
 
 @Path("/fo")
 @Produces(MediaType.APPLICATION_JSON)
 public class WorkSheetViewResource {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
     private static final ObjectMapper MAPPER = new ObjectMapper();
 
+    /** Principal do pedido (resolvido pelo AuthFilter). */
+    @Context
+    private SecurityContext security;
+
     /* =============================================================== *
      *                    GET /fo/{id}/generic                         *
      * =============================================================== */
@@ -152,9 +160,9 @@ public class WorkSheetViewResource {
                 Object polygonId = parcel.getValue("polygonId").get();
                 parcelJson.put("polygonId", polygonId.toString());
             }
-            if (parcel.contains("geometry")) {
-                Object geometry = parcel.getValue("geometry").get();
-                parcelJson.put("geometry", geometry.toString());
+            if (GeometryCodec.hasGeometry(parcel)) {
+                JsonNode geometry = GeometryCodec.geometryJson(parcel);
+                if (geometry != null) parcelJson.put("geometry", geometry.toString());
             }
             
             parcelsArray.add(parcelJson);
@@ -193,13 +201,12 @@ public class WorkSheetViewResource {
         return hdr.replaceFirst("(?i)^Bearer\\s+", "").trim();
     }
 
-    /** Extrai a lista completa de roles do JWT (compatível com tokens antigos). */
-    @SuppressWarnings("unchecked")
-    private static List<String> rolesFromToken(String jwt) {
-        var claims = JwtUtil.validateToken(jwt).getBody();
-        return claims.containsKey("roles")
-               ? claims.get("roles", List.class)
-               : List.of(claims.get("role", String.class));
+    /** Lista completa de roles do utilizador autenticado (compatível com tokens antigos). */
+    private List<String> rolesFromToken(String jwt) {
+        AuthPrincipal p = AuthPrincipal.of(security);
+        if (jwt == null || p == null)
+            throw new JwtException("Token inválido.");
+        return p.roleNames();
     }
 
     /* =============================================================== *
@@ -261,15 +268,10 @@ public class WorkSheetViewResource {
         }
 
     // Correctly parse and add geometry as a JSON object
-    if (parcel.contains("geometry")) {
-        String geometryStr = parcel.getString("geometry");
-        try {
-            JsonNode geometryJson = MAPPER.readTree(geometryStr);
-            parcelJson.set("geometry", geometryJson);
-        } catch (Exception e) {
-            System.err.println("Could not parse geometry for parcel " + id + ": " + e.getMessage());
-            parcelJson.putNull("geometry");
-        }
+    if (GeometryCodec.hasGeometry(parcel)) {
+        JsonNode geometryJson = GeometryCodec.geometryJson(parcel);   // texto ou binário
+        if (geometryJson != null) parcelJson.set("geometry", geometryJson);
+        else                      parcelJson.putNull("geometry");
     }
 
     return Response.ok(parcelJson.toString()).build();
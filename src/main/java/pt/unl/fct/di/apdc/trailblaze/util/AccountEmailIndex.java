@@ -0,0 +1,128 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *  Índice secundário email → username (kind «AccountEmail», chave = email
+ *  normalizado). Permite o login por email com lookups por chave em vez de
+ *  uma query à propriedade {@code Account.email}.
+ *
+ *  Enquanto a migração {@link #MIGRATION_ID} não terminar, as pesquisas que
+ *  falham no índice caem na query antiga.
+ */
+public final class AccountEmailIndex {
+
+    public static final String KIND         = "AccountEmail";
+    public static final String MIGRATION_ID = "account-email-index-v1";
+
+    private static final Datastore DS = DatastoreProvider.get();
+
+    private static final int BATCH = 500;
+
+    private AccountEmailIndex() { }
+
+    public static String normalize(String email) {
+        return email == null ? null : email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public static Key key(String email) {
+        return DS.newKeyFactory().setKind(KIND).newKey(normalize(email));
+    }
+
+    public static Entity entry(String email, String username) {
+        return Entity.newBuilder(key(email))
+                     .set("username", username)
+                     .build();
+    }
+
+    /**
+     * Conta identificada por {@code login} (username ou email):
+     * um get em lote (Account + AccountEmail) e, se for email, um segundo get.
+     */
+    public static Entity findAccount(String login) {
+        if (login == null || login.isBlank()) return null;
+
+        Key accKey   = DS.newKeyFactory().setKind("Account").newKey(login);
+        Key emailKey = key(login);
+
+        Entity account = null, email = null;
+        Iterator<Entity> it = DS.get(accKey, emailKey);
+        while (it.hasNext()) {
+            Entity e = it.next();
+            if (e.getKey().equals(accKey)) account = e;
+            else                            email   = e;
+        }
+        if (account != null) return account;
+
+        if (email != null)
+            return DS.get(DS.newKeyFactory().setKind("Account").newKey(email.getString("username")));
+
+        if (!Migrations.isDone(MIGRATION_ID)) {                // índice ainda incompleto
+            Query<Entity> q = Query.newEntityQueryBuilder()
+                    .setKind("Account")
+                    .setFilter(StructuredQuery.PropertyFilter.eq("email", login))
+                    .build();
+            QueryResults<Entity> res = DS.run(q);
+            return res.hasNext() ? res.next() : null;
+        }
+        return null;
+    }
+
+    /** Remove a entrada do email se ainda apontar para {@code username}. */
+    public static void remove(String email, String username) {
+        if (email == null) return;
+        Key k = key(email);
+        Entity e = DS.get(k);
+        if (e != null && username.equals(e.getString("username")))
+            DS.delete(k);
+    }
+
+    /* ---------- backfill ---------- */
+
+    /** Cria as entradas em falta para todas as contas existentes. Idempotente. */
+    public static void backfill() {
+        Query<Entity> q = Query.newEntityQueryBuilder().setKind("Account").build();
+
+        Map<Key, String> pending = new HashMap<>();
+        int[] created = {0};
+        DS.run(q).forEachRemaining(acc -> {
+            if (!acc.contains("email")) return;
+            String email = acc.getString("email");
+            if (email == null || email.isBlank()) return;
+            pending.putIfAbsent(key(email), acc.getKey().getName());
+            if (pending.size() >= BATCH) {
+                created[0] += writeMissing(pending);
+                pending.clear();
+            }
+        });
+        created[0] += writeMissing(pending);
+
+        System.out.println("[MIGRATION] AccountEmail: " + created[0] + " entradas criadas.");
+    }
+
+    private static int writeMissing(Map<Key, String> pending) {
+        if (pending.isEmpty()) return 0;
+
+        Iterator<Entity> existing = DS.get(pending.keySet().toArray(new Key[0]));
+        while (existing.hasNext()) {
+            Entity e = existing.next();
+            String owner = pending.remove(e.getKey());
+            if (owner != null && !owner.equals(e.getString("username")))
+                System.err.println("[MIGRATION] Email " + e.getKey().getName()
+                                   + " partilhado por " + owner + " e " + e.getString("username"));
+        }
+
+        List<Entity> toPut = new ArrayList<>(pending.size());
+        pending.forEach((k, user) -> toPut.add(Entity.newBuilder(k).set("username", user).build()));
+        if (!toPut.isEmpty())
+            DS.put(toPut.toArray(new Entity[0]));
+        return toPut.size();
+    }
+}
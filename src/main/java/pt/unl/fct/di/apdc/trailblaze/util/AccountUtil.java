@@ -1,9 +1,39 @@
 package pt.unl.fct.di.apdc.trailblaze.util;
 
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Transaction;
 
 public class AccountUtil {
 
+    /**
+     * Regrava a password da conta com o esquema de hash atual, se o hash guardado
+     * estiver desatualizado. Best-effort: falhas não impedem o login.
+     */
+    public static void upgradePasswordHash(Datastore ds, Entity account, String plainPassword) {
+        String stored = account.getString("password");
+        if (!HashUtil.needsRehash(stored)) return;
+
+        Transaction txn = ds.newTransaction();
+        try {
+            Entity fresh = txn.get(account.getKey());
+            // só se a password não tiver mudado entretanto
+            if (fresh != null && stored.equals(fresh.getString("password"))) {
+                txn.put(Entity.newBuilder(fresh)
+                              .set("password", HashUtil.hashPassword(plainPassword))
+                              .build());
+                txn.commit();
+            }
+        } catch (DatastoreException e) {
+            System.err.println("Falha ao atualizar hash da password: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Erro ao gerar hash da password: " + e.getMessage());
+        } finally {
+            if (txn.isActive()) txn.rollback();
+        }
+    }
+
     public static void addRoleAttributes(Entity.Builder builder, RegisterRequest req) {
         switch (req.getRole()) {
             case "RU":
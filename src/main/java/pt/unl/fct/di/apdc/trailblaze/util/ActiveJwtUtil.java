@@ -4,7 +4,7 @@ import com.google.cloud.datastore.*;
 
 public final class ActiveJwtUtil {
 
-    private static final Datastore ds = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore ds = DatastoreProvider.get();
 
         public static void register(String username, String jti, long expMillis) {
         Key k = ds.newKeyFactory().setKind("JwtActive").newKey(jti);
@@ -12,6 +12,7 @@ public final class ActiveJwtUtil {
                      .set("username", username)
                      .set("exp", expMillis)
                      .build());
+        OnlineUsersIndex.addJwt(username, jti, expMillis);
     }
 
 
@@ -24,5 +25,8 @@ public final class ActiveJwtUtil {
     }
 
 
-    public static void delete(Key k) { ds.delete(k); }
+    public static void delete(Key k) {
+        ds.delete(k);
+        OnlineUsersIndex.removeJwt(k.getName());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import io.jsonwebtoken.Claims;
+import jakarta.ws.rs.core.SecurityContext;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *  Utilizador autenticado do pedido corrente, resolvido uma única vez
+ *  pelo {@code AuthFilter} a partir do JWT do header Authorization.
+ *  Imutável – pode ser partilhado à vontade dentro do pedido.
+ */
+public final class AuthPrincipal implements Principal {
+
+    private final String       username;
+    private final String       jti;
+    private final long         expMillis;
+    private final List<String> roleNames;   // ordem do token (o primeiro é o role principal)
+    private final Set<Role>    roles;       // só os roles conhecidos do enum
+
+    private AuthPrincipal(String username, String jti, long expMillis, List<String> roleNames) {
+        this.username  = username;
+        this.jti       = jti;
+        this.expMillis = expMillis;
+        this.roleNames = Collections.unmodifiableList(roleNames);
+
+        EnumSet<Role> set = EnumSet.noneOf(Role.class);
+        for (String r : roleNames) {
+            try {
+                set.add(Role.valueOf(r));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Role desconhecida: " + r);
+            }
+        }
+        this.roles = Collections.unmodifiableSet(set);
+    }
+
+    /** Constrói o principal a partir de claims já validadas (compatível com o claim legado «role»). */
+    public static AuthPrincipal fromClaims(Claims c) {
+        List<String> names = new ArrayList<>();
+        Object raw = c.get("roles");
+        if (raw instanceof List<?> list)
+            list.forEach(r -> names.add(String.valueOf(r)));
+        if (names.isEmpty()) {
+            String legacy = c.get("role", String.class);
+            if (legacy != null) names.add(legacy);
+        }
+        long exp = c.getExpiration() != null ? c.getExpiration().getTime() : Long.MAX_VALUE;
+        return new AuthPrincipal(c.getSubject(), c.getId(), exp, names);
+    }
+
+    /** Principal associado ao pedido, ou {@code null} se não houver JWT válido. */
+    public static AuthPrincipal of(SecurityContext sc) {
+        return sc != null && sc.getUserPrincipal() instanceof AuthPrincipal p ? p : null;
+    }
+
+    /* ------------------------------------------------------------------ */
+
+    @Override
+    public String getName()          { return username; }
+
+    public String jti()              { return jti; }
+
+    public long expMillis()          { return expMillis; }
+
+    public List<String> roleNames()  { return roleNames; }
+
+    public Set<Role> roles()         { return roles; }
+
+    public boolean hasRole(Role r)   { return roles.contains(r); }
+
+    public boolean hasAnyRole(Role... rs) {
+        for (Role r : rs)
+            if (roles.contains(r)) return true;
+        return false;
+    }
+
+    /** Hierarquia por ordem do enum – equivalente ao antigo {@code ordinal() >= required.ordinal()}. */
+    public boolean hasRoleAtLeast(Role required) {
+        for (Role r : roles)
+            if (r.ordinal() >= required.ordinal()) return true;
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "AuthPrincipal[" + username + ", " + roleNames + "]";
+    }
+}
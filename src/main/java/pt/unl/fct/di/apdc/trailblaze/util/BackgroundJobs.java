@@ -0,0 +1,77 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Scheduler partilhado para as tarefas periódicas da instância
+ *  (sincronização da blacklist, limpezas, …).
+ *  Arranca/pára com o {@code StartupListener}; as threads são daemon.
+ */
+public final class BackgroundJobs {
+
+    private static final AtomicInteger SEQ = new AtomicInteger();
+
+    private static volatile ScheduledExecutorService scheduler;
+
+    private BackgroundJobs() { }
+
+    private static ScheduledExecutorService scheduler() {
+        ScheduledExecutorService s = scheduler;
+        if (s == null) {
+            synchronized (BackgroundJobs.class) {
+                if (scheduler == null)
+                    scheduler = Executors.newScheduledThreadPool(2, r -> {
+                        Thread t = new Thread(r, "trailblaze-bg-" + SEQ.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                s = scheduler;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Agenda {@code task} a cada {@code period}. Exceções são registadas e não
+     * cancelam as execuções seguintes.
+     */
+    public static ScheduledFuture<?> every(String name, long initialDelay, long period,
+                                           TimeUnit unit, Runnable task) {
+        return scheduler().scheduleWithFixedDelay(guarded(name, task), initialDelay, period, unit);
+    }
+
+    /** Execução única, em background. */
+    public static void submit(String name, Runnable task) {
+        scheduler().execute(guarded(name, task));
+    }
+
+    private static Runnable guarded(String name, Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                System.err.println("[JOB " + name + "] Falhou: " + t.getMessage());
+            }
+        };
+    }
+
+    public static synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /** Lê um long de uma system property, com valor por omissão. */
+    public static long longProperty(String name, long def) {
+        try {
+            return Long.parseLong(System.getProperty(name, String.valueOf(def)).trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Escritas em lote no Datastore.
+ *
+ *   • agrupa as entidades em chamadas {@code put(Entity...)} de até
+ *     {@link #BATCH_SIZE} entidades (máx. 500 por commit)
+ *   • os lotes independentes são gravados em paralelo num pool próprio;
+ *     a escrita não é atómica entre lotes – para escritas que têm de ser
+ *     atómicas usar uma transação ou um só {@code put}
+ *   • latência por lote em {@link #metrics()} (GET /metrics), para afinar
+ *     {@code -Dtrailblaze.datastore.batchSize}
+ */
+public final class BatchWriter {
+
+    /** Limite do Datastore por commit. */
+    public static final int MAX_ENTITIES = 500;
+
+    public static final int BATCH_SIZE = (int) Math.min(MAX_ENTITIES,
+            Math.max(1, BackgroundJobs.longProperty("trailblaze.datastore.batchSize", MAX_ENTITIES)));
+    private static final int WRITERS =
+            (int) Math.max(1, BackgroundJobs.longProperty("trailblaze.datastore.batchWriters", 4));
+
+    private static final AtomicInteger SEQ = new AtomicInteger();
+    private static volatile ExecutorService pool;
+
+    /* ---------- métricas ---------- */
+    private static final LongAdder  BATCHES  = new LongAdder();
+    private static final LongAdder  ENTITIES = new LongAdder();
+    private static final LongAdder  FAILURES = new LongAdder();
+    private static final LongAdder  TOTAL_MS = new LongAdder();
+    private static final AtomicLong MAX_MS   = new AtomicLong();
+    private static final AtomicLong LAST_MS  = new AtomicLong();
+
+    private BatchWriter() { }
+
+    /**
+     * Grava as entidades em lotes; com mais de um lote, em paralelo.
+     * Espera por todos e relança o primeiro erro.
+     */
+    public static void put(Datastore ds, List<Entity> entities) {
+        List<List<Entity>> batches = split(entities);
+        if (batches.isEmpty()) return;
+        if (batches.size() == 1) {
+            putBatch(ds, batches.get(0));
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>(batches.size());
+        for (List<Entity> b : batches)
+            futures.add(pool().submit(() -> putBatch(ds, b)));
+
+        RuntimeException first = null;
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                if (first == null)
+                    first = e.getCause() instanceof RuntimeException re ? re
+                          : new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (first == null) first = new IllegalStateException("Escrita em lote interrompida", e);
+            }
+        }
+        if (first != null) throw first;
+    }
+
+    /** Um só lote (até {@value #MAX_ENTITIES} entidades), com registo da latência. */
+    public static void putBatch(Datastore ds, List<Entity> batch) {
+        if (batch.isEmpty()) return;
+        long t0 = System.nanoTime();
+        try {
+            ds.put(batch.toArray(new Entity[0]));
+        } catch (RuntimeException e) {
+            FAILURES.increment();
+            throw e;
+        }
+        record(batch.size(), (System.nanoTime() - t0) / 1_000_000);
+    }
+
+    private static List<List<Entity>> split(List<Entity> entities) {
+        List<List<Entity>> out = new ArrayList<>();
+        for (int i = 0; i < entities.size(); i += BATCH_SIZE)
+            out.add(entities.subList(i, Math.min(entities.size(), i + BATCH_SIZE)));
+        return out;
+    }
+
+    private static void record(int entities, long ms) {
+        BATCHES.increment();
+        ENTITIES.add(entities);
+        TOTAL_MS.add(ms);
+        LAST_MS.set(ms);
+        MAX_MS.accumulateAndGet(ms, Math::max);
+    }
+
+    private static ExecutorService pool() {
+        ExecutorService p = pool;
+        if (p == null) {
+            synchronized (BatchWriter.class) {
+                if (pool == null)
+                    pool = Executors.newFixedThreadPool(WRITERS, r -> {
+                        Thread t = new Thread(r, "trailblaze-batch-" + SEQ.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                p = pool;
+            }
+        }
+        return p;
+    }
+
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        long batches = BATCHES.sum();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("batchSize", BATCH_SIZE);
+        m.put("batches", batches);
+        m.put("entities", ENTITIES.sum());
+        m.put("failures", FAILURES.sum());
+        m.put("avgEntitiesPerBatch", batches == 0 ? 0 : ENTITIES.sum() / batches);
+        m.put("avgMs", batches == 0 ? 0 : TOTAL_MS.sum() / batches);
+        m.put("maxMs", MAX_MS.get());
+        m.put("lastMs", LAST_MS.get());
+        return m;
+    }
+}
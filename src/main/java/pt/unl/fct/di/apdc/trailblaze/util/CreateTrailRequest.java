@@ -1,7 +1,5 @@
 package pt.unl.fct.di.apdc.trailblaze.util;
 
-import java.util.List;
-
 /**
  * Request para criar um novo trilho
  */
@@ -9,7 +7,7 @@ public class CreateTrailRequest {
     public String name;
     public String worksheetId;
     public TrailVisibility visibility;
-    public List<TrailPoint> points;
+    public TrailTrack points;
 
     public CreateTrailRequest() {}
 
@@ -20,6 +18,6 @@ public class CreateTrailRequest {
         return name != null && !name.trim().isEmpty() &&
         
                points != null && !points.isEmpty() &&
-               points.stream().allMatch(TrailPoint::isValid);
+               points.isValid();
     }
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.api.gax.retrying.RetrySettings;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.http.HttpTransportOptions;
+
+import org.threeten.bp.Duration;
+
+/**
+ *  Cliente Datastore único da aplicação.
+ *
+ *  Todas as classes usam {@link #get()} (ou injeção HK2 nos resources, ver
+ *  {@code ApplicationConfig}) – um só cliente, um só pool de ligações HTTP
+ *  já aquecido, e um único sítio para afinar timeouts e retries.
+ *
+ *  Configuração (system properties ou variáveis de ambiente):
+ *   trailblaze.datastore.projectId           – projeto (omissão: o do ambiente)
+ *   trailblaze.datastore.emulatorHost        – host:porta do emulador
+ *                                              (ou DATASTORE_EMULATOR_HOST)
+ *   trailblaze.datastore.connectTimeoutMs    – omissão 10000
+ *   trailblaze.datastore.readTimeoutMs       – omissão 20000
+ *   trailblaze.datastore.maxAttempts         – omissão 4
+ *   trailblaze.datastore.totalTimeoutMs      – omissão 30000
+ *   trailblaze.datastore.initialRetryDelayMs – omissão 100
+ *
+ *  Esta versão do cliente usa transporte HTTP; não há pool de canais gRPC a configurar.
+ */
+public final class DatastoreProvider {
+
+    private static final Datastore INSTANCE = create();
+
+    private DatastoreProvider() { }
+
+    public static Datastore get() {
+        return INSTANCE;
+    }
+
+    private static Datastore create() {
+        long connectTimeout = BackgroundJobs.longProperty("trailblaze.datastore.connectTimeoutMs", 10_000);
+        long readTimeout    = BackgroundJobs.longProperty("trailblaze.datastore.readTimeoutMs", 20_000);
+        long maxAttempts    = BackgroundJobs.longProperty("trailblaze.datastore.maxAttempts", 4);
+        long totalTimeout   = BackgroundJobs.longProperty("trailblaze.datastore.totalTimeoutMs", 30_000);
+        long initialDelay   = BackgroundJobs.longProperty("trailblaze.datastore.initialRetryDelayMs", 100);
+
+        DatastoreOptions.Builder b = DatastoreOptions.newBuilder()
+                .setTransportOptions(HttpTransportOptions.newBuilder()
+                        .setConnectTimeout((int) connectTimeout)
+                        .setReadTimeout((int) readTimeout)
+                        .build())
+                .setRetrySettings(RetrySettings.newBuilder()
+                        .setMaxAttempts((int) maxAttempts)
+                        .setInitialRetryDelay(Duration.ofMillis(initialDelay))
+                        .setRetryDelayMultiplier(2.0)
+                        .setMaxRetryDelay(Duration.ofMillis(Math.max(initialDelay, totalTimeout / 4)))
+                        .setTotalTimeout(Duration.ofMillis(totalTimeout))
+                        .setInitialRpcTimeout(Duration.ofMillis(readTimeout))
+                        .setRpcTimeoutMultiplier(1.0)
+                        .setMaxRpcTimeout(Duration.ofMillis(readTimeout))
+                        .build());
+
+        String projectId = setting("trailblaze.datastore.projectId", null);
+        if (projectId != null)
+            b.setProjectId(projectId);
+
+        String emulator = setting("trailblaze.datastore.emulatorHost", "DATASTORE_EMULATOR_HOST");
+        if (emulator != null) {
+            b.setHost(emulator.startsWith("http") ? emulator : "http://" + emulator)
+             .setCredentials(NoCredentials.getInstance());
+            if (projectId == null) {
+                String envProject = setting(null, "DATASTORE_PROJECT_ID");
+                b.setProjectId(envProject != null ? envProject : "trailblaze-460312");
+            }
+            System.out.println("[DATASTORE] A usar emulador em " + emulator);
+        }
+
+        return b.build().getService();
+    }
+
+    private static String setting(String property, String env) {
+        String v = property != null ? System.getProperty(property) : null;
+        if ((v == null || v.isBlank()) && env != null) v = System.getenv(env);
+        return v == null || v.isBlank() ? null : v.trim();
+    }
+}
@@ -3,7 +3,7 @@ package pt.unl.fct.di.apdc.trailblaze.util;
 import com.google.cloud.datastore.*;
 
 public class ExecutionSheetUtil {
-    private static final Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore datastore = DatastoreProvider.get();
 
     public static boolean workSheetExists(String workSheetId) {
         if (workSheetId == null || workSheetId.isBlank()) return false;
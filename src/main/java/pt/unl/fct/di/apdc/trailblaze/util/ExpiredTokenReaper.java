@@ -0,0 +1,85 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Limpeza periódica das entidades de autenticação que já não servem:
+ *   • JwtActive / JwtBlacklist com {@code exp} no passado
+ *   • Session com {@code creationTime} anterior a {@link OnlineUsersIndex#SESSION_TTL_MS}
+ *
+ *  Usa queries keys-only e apaga em lotes de {@link #BATCH}.
+ */
+public final class ExpiredTokenReaper {
+
+    private static final Datastore DS = DatastoreProvider.get();
+
+    /** Máximo de chaves por {@code delete} (limite do Datastore). */
+    private static final int BATCH = 500;
+
+    private static final long PERIOD_MINUTES =
+            BackgroundJobs.longProperty("trailblaze.reaper.periodMinutes", 15);
+
+    private static volatile Map<String, Integer> lastRun = Map.of();
+
+    private ExpiredTokenReaper() { }
+
+    public static void start() {
+        BackgroundJobs.every("token-reaper", 1, PERIOD_MINUTES, TimeUnit.MINUTES,
+                             ExpiredTokenReaper::runOnce);
+    }
+
+    /** Executa uma passagem e devolve o nº de entidades apagadas por kind. */
+    public static Map<String, Integer> runOnce() {
+        long now = System.currentTimeMillis();
+
+        Map<String, Integer> removed = new LinkedHashMap<>();
+        removed.put("JwtActive",    purge("JwtActive",    PropertyFilter.lt("exp", now)));
+        removed.put("JwtBlacklist", purge("JwtBlacklist", PropertyFilter.lt("exp", now)));
+        removed.put("Session",      purge("Session",      PropertyFilter.lt("creationTime", now - OnlineUsersIndex.SESSION_TTL_MS)));
+
+        System.out.println("[REAPER] Entidades expiradas removidas: " + removed);
+        lastRun = Map.copyOf(removed);
+        return removed;
+    }
+
+    /** Contagens da última passagem (vazio se ainda não correu). */
+    public static Map<String, Integer> lastRun() {
+        return lastRun;
+    }
+
+    /* ------------------------------------------------------------------ */
+
+    private static int purge(String kind, PropertyFilter filter) {
+        KeyQuery q = Query.newKeyQueryBuilder()
+                          .setKind(kind)
+                          .setFilter(filter)
+                          .build();
+
+        int total = 0;
+        List<Key> batch = new ArrayList<>(BATCH);
+        QueryResults<Key> keys = DS.run(q);
+        while (keys.hasNext()) {
+            batch.add(keys.next());
+            if (batch.size() == BATCH) {
+                total += delete(batch);
+            }
+        }
+        total += delete(batch);
+        return total;
+    }
+
+    private static int delete(List<Key> batch) {
+        if (batch.isEmpty()) return 0;
+        int n = batch.size();
+        DS.delete(batch.toArray(new Key[0]));
+        batch.clear();
+        return n;
+    }
+}
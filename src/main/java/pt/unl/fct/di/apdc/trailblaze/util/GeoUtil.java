@@ -0,0 +1,138 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Pequenas funções geográficas partilhadas (GeoJSON em WGS84, [lon, lat]).
+ */
+public final class GeoUtil {
+
+    public static final double EARTH_RADIUS_KM = 6371.0;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private GeoUtil() { }
+
+    public static double toRad(double deg) { return deg * Math.PI / 180.0; }
+
+    /** Distância em km entre dois pontos (fórmula de haversine). */
+    public static double haversineKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = toRad(lat2 - lat1);
+        double dLon = toRad(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                   Math.cos(toRad(lat1)) * Math.cos(toRad(lat2)) *
+                   Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return EARTH_RADIUS_KM * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /** Primeiro anel exterior de um Polygon / MultiPolygon, ou {@code null}. */
+    public static JsonNode outerRing(JsonNode geometry) {
+        if (geometry == null) return null;
+        JsonNode coords = geometry.path("coordinates");
+        switch (geometry.path("type").asText()) {
+            case "Polygon":      return coords.path(0).isArray()         ? coords.path(0)         : null;
+            case "MultiPolygon": return coords.path(0).path(0).isArray() ? coords.path(0).path(0) : null;
+            default:             return null;
+        }
+    }
+
+    /**
+     * Centróide (média dos vértices do anel exterior) e bbox de uma geometria.
+     * @return {lat, lon, minLat, minLon, maxLat, maxLon} ou {@code null}
+     */
+    public static double[] centroidAndBbox(String geometryJson) {
+        try {
+            return centroidAndBbox(MAPPER.readTree(geometryJson));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public static double[] centroidAndBbox(JsonNode geometry) {
+        JsonNode ring = outerRing(geometry);
+        if (ring == null) return null;
+
+        double sumLat = 0, sumLon = 0;
+        double minLat =  Double.MAX_VALUE, minLon =  Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        int count = 0;
+        for (JsonNode c : ring) {
+            if (c.size() < 2) continue;
+            double lon = c.get(0).asDouble();
+            double lat = c.get(1).asDouble();
+            sumLat += lat;  sumLon += lon;
+            minLat = Math.min(minLat, lat);  maxLat = Math.max(maxLat, lat);
+            minLon = Math.min(minLon, lon);  maxLon = Math.max(maxLon, lon);
+            count++;
+        }
+        if (count == 0) return null;
+        return new double[]{ sumLat / count, sumLon / count, minLat, minLon, maxLat, maxLon };
+    }
+
+    /* ---------- estatísticas pré-calculadas das parcelas ---------- */
+
+    /**
+     * Valores derivados da geometria de uma parcela, calculados uma vez no import.
+     * O centróide é a média dos vértices do primeiro anel exterior (o mesmo critério
+     * de {@link #centroidAndBbox}); o bbox cobre todos os anéis exteriores.
+     */
+    public record Stats(double centroidLat, double centroidLon,
+                        double minLat, double minLon, double maxLat, double maxLon,
+                        int vertexCount, double areaHa) { }
+
+    /** @return estatísticas de um Polygon / MultiPolygon, ou {@code null} se inválido */
+    public static Stats stats(JsonNode geometry) {
+        double[] c = centroidAndBbox(geometry);
+        if (c == null) return null;
+
+        JsonNode coords = geometry.path("coordinates");
+        List<JsonNode> polygons = new ArrayList<>();
+        if ("MultiPolygon".equals(geometry.path("type").asText()))
+            coords.forEach(polygons::add);
+        else
+            polygons.add(coords);
+
+        double minLat = c[2], minLon = c[3], maxLat = c[4], maxLon = c[5];
+        double areaM2 = 0;
+        int vertices = 0;
+        for (JsonNode poly : polygons) {
+            for (int r = 0; r < poly.size(); r++) {
+                JsonNode ring = poly.get(r);
+                vertices += ring.size();
+                double a = Math.abs(ringAreaM2(ring));
+                areaM2 += r == 0 ? a : -a;                      // anéis seguintes são buracos
+                if (r > 0) continue;
+                for (JsonNode p : ring) {
+                    if (p.size() < 2) continue;
+                    double lon = p.get(0).asDouble(), lat = p.get(1).asDouble();
+                    minLat = Math.min(minLat, lat);  maxLat = Math.max(maxLat, lat);
+                    minLon = Math.min(minLon, lon);  maxLon = Math.max(maxLon, lon);
+                }
+            }
+        }
+        return new Stats(c[0], c[1], minLat, minLon, maxLat, maxLon,
+                         vertices, Math.max(0, areaM2) / 10_000.0);
+    }
+
+    /**
+     * Área (m², com sinal) de um anel [lon, lat] sobre a esfera –
+     * aproximação de Chamberlain &amp; Duquette, suficiente para parcelas.
+     */
+    static double ringAreaM2(JsonNode ring) {
+        int n = ring.size();
+        if (n < 3) return 0;
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            JsonNode p1 = ring.get(i), p2 = ring.get((i + 1) % n);
+            if (p1.size() < 2 || p2.size() < 2) continue;
+            sum += toRad(p2.get(0).asDouble() - p1.get(0).asDouble())
+                 * (2 + Math.sin(toRad(p1.get(1).asDouble())) + Math.sin(toRad(p2.get(1).asDouble())));
+        }
+        double r = EARTH_RADIUS_KM * 1000;
+        return sum * r * r / 2.0;
+    }
+}
@@ -0,0 +1,250 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Motor de geofencing para o acompanhamento de posições dos operadores.
+ *
+ *   • cada parcela é preparada uma vez: anéis em {@code double[]}, bbox e,
+ *     para polígonos grandes, um índice de arestas por faixas de latitude
+ *   • ponto-no-polígono par-ímpar sobre todos os anéis → buracos e
+ *     MultiPolygons tratados corretamente
+ *   • as consultas não alocam memória
+ *   • caches limitadas: parcela → polígono preparado, atividade → parcela
+ */
+public final class Geofence {
+
+    private static final int  POLYGON_CACHE_SIZE  = 1024;
+    private static final int  ACTIVITY_CACHE_SIZE = 4096;
+    private static final long POLYGON_TTL_MS      = 10 * 60_000L;
+
+    /** Polígonos com menos arestas do que isto não usam o índice por faixas. */
+    private static final int BAND_THRESHOLD = 64;
+
+    private static final Datastore DS = DatastoreProvider.get();
+
+    private Geofence() { }
+
+    /* =============================================================== */
+    /*                      Polígono preparado                         */
+    /* =============================================================== */
+
+    public static final class Prepared {
+
+        private final double minLat, minLon, maxLat, maxLon;
+
+        /* arestas de todos os anéis: (x1,y1)-(x2,y2) com x = lon, y = lat */
+        private final double[] x1, y1, x2, y2;
+
+        /* índice opcional: faixa de latitude → arestas que a atravessam */
+        private final int[][] bands;
+        private final int     nBands;
+        private final double  bandH;
+
+        private final long loadedAt = System.currentTimeMillis();
+
+        /** @param polygons {@code [polígono][anel] = {lon0, lat0, lon1, lat1, …}} */
+        Prepared(double[][][] polygons) {
+            int edges = 0;
+            for (double[][] poly : polygons)
+                for (double[] ring : poly) edges += ring.length / 2;
+
+            x1 = new double[edges];  y1 = new double[edges];
+            x2 = new double[edges];  y2 = new double[edges];
+
+            double mnLat =  Double.MAX_VALUE, mnLon =  Double.MAX_VALUE;
+            double mxLat = -Double.MAX_VALUE, mxLon = -Double.MAX_VALUE;
+            int e = 0;
+            for (double[][] poly : polygons)
+                for (double[] ring : poly) {
+                    int n = ring.length / 2;
+                    for (int i = 0, j = n - 1; i < n; j = i++) {
+                        x1[e] = ring[2 * j];  y1[e] = ring[2 * j + 1];
+                        x2[e] = ring[2 * i];  y2[e] = ring[2 * i + 1];
+                        e++;
+                        mnLat = Math.min(mnLat, ring[2 * i + 1]);  mxLat = Math.max(mxLat, ring[2 * i + 1]);
+                        mnLon = Math.min(mnLon, ring[2 * i]);      mxLon = Math.max(mxLon, ring[2 * i]);
+                    }
+                }
+            minLat = mnLat;  minLon = mnLon;  maxLat = mxLat;  maxLon = mxLon;
+
+            if (edges < BAND_THRESHOLD || maxLat <= minLat) {
+                bands  = null;
+                nBands = 0;
+                bandH  = 0;
+                return;
+            }
+
+            /* ~8 arestas por faixa em média */
+            nBands = Math.max(1, edges / 8);
+            bandH = (maxLat - minLat) / nBands;
+            int[] counts = new int[nBands];
+            for (int k = 0; k < edges; k++)
+                for (int b = band(Math.min(y1[k], y2[k])); b <= band(Math.max(y1[k], y2[k])); b++)
+                    counts[b]++;
+            bands = new int[nBands][];
+            for (int b = 0; b < nBands; b++) bands[b] = new int[counts[b]];
+            int[] fill = new int[nBands];
+            for (int k = 0; k < edges; k++)
+                for (int b = band(Math.min(y1[k], y2[k])); b <= band(Math.max(y1[k], y2[k])); b++)
+                    bands[b][fill[b]++] = k;
+        }
+
+        private int band(double lat) {
+            int b = (int) ((lat - minLat) / bandH);
+            return Math.max(0, Math.min(nBands - 1, b));
+        }
+
+        /** Ponto-no-polígono (regra par-ímpar sobre todos os anéis). */
+        public boolean contains(double lat, double lon) {
+            if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) return false;
+
+            boolean inside = false;
+            if (bands == null) {
+                for (int k = 0; k < x1.length; k++)
+                    if (crosses(k, lat, lon)) inside = !inside;
+            } else {
+                for (int k : bands[band(lat)])
+                    if (crosses(k, lat, lon)) inside = !inside;
+            }
+            return inside;
+        }
+
+        private boolean crosses(int k, double lat, double lon) {
+            return ((y1[k] > lat) != (y2[k] > lat))
+                && (lon < (x2[k] - x1[k]) * (lat - y1[k]) / (y2[k] - y1[k]) + x1[k]);
+        }
+
+        public int edgeCount() { return x1.length; }
+    }
+
+    /** Prepara diretamente a partir de anéis primitivos (ver {@link GeometryCodec#decode}). */
+    public static Prepared prepare(double[][][] polygons) {
+        return new Prepared(polygons);
+    }
+
+    /* =============================================================== */
+    /*                            Caches                               */
+    /* =============================================================== */
+
+    /** Marcador de parcela sem geometria utilizável (evita voltar ao Datastore). */
+    private static final Prepared EMPTY = new Prepared(new double[0][][]);
+
+    private static final Map<Key, Prepared> POLYGONS = lru(POLYGON_CACHE_SIZE);
+
+    /** atividade → chave da parcela ({@code null} se não resolúvel). */
+    private static final Map<String, Key> ACTIVITY_PARCEL = lru(ACTIVITY_CACHE_SIZE);
+
+    private static <K, V> Map<K, V> lru(int max) {
+        return new LinkedHashMap<>(max, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /** Polígono preparado da parcela; {@code null} se não existir / não tiver geometria. */
+    public static Prepared polygon(Key parcelKey) {
+        synchronized (POLYGONS) {
+            Prepared p = POLYGONS.get(parcelKey);
+            if (p != null && System.currentTimeMillis() - p.loadedAt < POLYGON_TTL_MS)
+                return p == EMPTY ? null : p;
+        }
+
+        Entity parcel = DS.get(parcelKey);
+        double[][][] rings = parcel == null ? null : GeometryCodec.rings(parcel);
+        Prepared p = rings == null ? EMPTY : new Prepared(rings);
+
+        synchronized (POLYGONS) {
+            POLYGONS.put(parcelKey, p);
+        }
+        return p == EMPTY ? null : p;
+    }
+
+    /** Esquece os polígonos de uma folha de obra (import / edição / remoção). */
+    public static void invalidateWorksheet(long worksheetId) {
+        synchronized (POLYGONS) {
+            POLYGONS.keySet().removeIf(k -> k.getParent() != null
+                    && Long.valueOf(worksheetId).equals(k.getParent().getId()));
+        }
+    }
+
+    /**
+     * Parcela de uma atividade, seguindo
+     * Activity → ParcelOperationExecution → OperationExecution → ExecutionSheet → WorkSheet/Parcel.
+     * O resultado é imutável enquanto a atividade existir, por isso fica em cache.
+     */
+    public static Key parcelKeyOf(String activityId) {
+        synchronized (ACTIVITY_PARCEL) {
+            if (ACTIVITY_PARCEL.containsKey(activityId)) return ACTIVITY_PARCEL.get(activityId);
+        }
+
+        Key parcelKey = resolveParcelKey(activityId);
+        synchronized (ACTIVITY_PARCEL) {
+            ACTIVITY_PARCEL.put(activityId, parcelKey);
+        }
+        return parcelKey;
+    }
+
+    private static Key resolveParcelKey(String activityId) {
+        try {
+            Entity act = DS.get(DS.newKeyFactory().setKind("Activity").newKey(activityId));
+            if (act == null || !act.contains("parcelOperationExecutionId")) return null;
+
+            Entity poe = DS.get(DS.newKeyFactory().setKind("ParcelOperationExecution")
+                                  .newKey(act.getString("parcelOperationExecutionId")));
+            if (poe == null) return null;
+
+            Entity opExec = DS.get(DS.newKeyFactory().setKind("OperationExecution")
+                                     .newKey(poe.getString("operationExecutionId")));
+            if (opExec == null) return null;
+
+            Entity sheet = DS.get(DS.newKeyFactory().setKind("ExecutionSheet")
+                                    .newKey(opExec.getString("executionSheetId")));
+            if (sheet == null) return null;
+
+            long wsId     = Long.parseLong(sheet.getString("associatedWorkSheetId"));
+            long parcelId = Long.parseLong(poe.getString("parcelId"));
+            return Key.newBuilder(DS.newKeyFactory().setKind("WorkSheet").newKey(wsId), "Parcel", parcelId)
+                      .build();
+        } catch (Exception e) {
+            System.err.println("[GEOFENCE] atividade " + activityId + " sem parcela: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /* =============================================================== */
+    /*                    Atividades em curso                          */
+    /* =============================================================== */
+
+    /** Ids das atividades do operador ainda sem {@code endTime} (keys-only). */
+    public static List<String> openActivities(String operatorId) {
+        Query<Key> q = Query.newKeyQueryBuilder()
+                .setKind("Activity")
+                .setFilter(StructuredQuery.CompositeFilter.and(
+                        StructuredQuery.PropertyFilter.eq("operatorId", operatorId),
+                        StructuredQuery.PropertyFilter.isNull("endTime")))
+                .build();
+
+        List<String> ids = new ArrayList<>();
+        DS.run(q).forEachRemaining(k -> ids.add(k.getName()));
+        return ids;
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        synchronized (POLYGONS) {
+            m.put("preparedPolygons", POLYGONS.size());
+        }
+        synchronized (ACTIVITY_PARCEL) {
+            m.put("activityParcels", ACTIVITY_PARCEL.size());
+        }
+        return m;
+    }
+}
@@ -0,0 +1,297 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.datastore.Blob;
+import com.google.cloud.datastore.BlobValue;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.StringValue;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ *  Codificação binária compacta das geometrias das parcelas.
+ *
+ *  Formato (propriedade «geometryBin», BlobValue não indexado):
+ *  <pre>
+ *   byte    versão (1 = só lon/lat, 2 = com altitude)
+ *   byte    tipo   (1 = Polygon, 2 = MultiPolygon)
+ *   varint  nº de polígonos
+ *     varint  nº de anéis
+ *       varint  nº de pontos
+ *         zigzag-varint Δlon, Δlat   (ponto fixo 1e-7 graus, ~1 cm)
+ *         zigzag-varint Δalt         (só na versão 2; ponto fixo 1e-3 m)
+ *  </pre>
+ *  Os deltas são contínuos em toda a geometria, pelo que pontos vizinhos
+ *  ocupam tipicamente 2–4 bytes por coordenada em vez de ~18 em texto.
+ *  Geometrias que misturem posições 2D e 3D (ou com mais de 3 valores)
+ *  ficam em texto, para não perder coordenadas.
+ *
+ *  O formato de escrita é escolhido por {@code -Dtrailblaze.geometry.format}:
+ *  {@code json} (omissão, comportamento antigo), {@code binary} ou {@code both}.
+ *  Os leitores detetam o formato presente em cada entidade.
+ */
+public final class GeometryCodec {
+
+    public static final String JSON_PROPERTY   = "geometry";
+    public static final String BINARY_PROPERTY = "geometryBin";
+
+    private static final byte   VERSION       = 1;
+    private static final byte   VERSION_Z     = 2;
+    private static final byte   POLYGON       = 1;
+    private static final byte   MULTI_POLYGON = 2;
+    private static final double SCALE         = 1e7;
+    private static final double SCALE_Z       = 1e3;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public enum Format { JSON, BINARY, BOTH }
+
+    private static final Format WRITE_FORMAT = writeFormat();
+
+    private GeometryCodec() { }
+
+    private static Format writeFormat() {
+        String v = System.getProperty("trailblaze.geometry.format", "json");
+        try {
+            return Format.valueOf(v.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[GEOMETRY] formato desconhecido '" + v + "', a usar json.");
+            return Format.JSON;
+        }
+    }
+
+    /* ---------- escrita ---------- */
+
+    /**
+     * Grava a geometria no(s) formato(s) configurado(s). Geometrias que não sejam
+     * Polygon / MultiPolygon ficam sempre em texto.
+     */
+    public static void setGeometry(Entity.Builder b, JsonNode geometry) {
+        byte[] bin = WRITE_FORMAT == Format.JSON ? null : encode(geometry);
+
+        if (bin == null || WRITE_FORMAT == Format.BOTH)
+            // texto guardado exatamente como recebido, para não perder precisão
+            b.set(JSON_PROPERTY, StringValue.newBuilder(geometry.toString())
+                                            .setExcludeFromIndexes(true).build());
+        if (bin != null)
+            b.set(BINARY_PROPERTY, BlobValue.newBuilder(Blob.copyFrom(bin))
+                                            .setExcludeFromIndexes(true).build());
+    }
+
+    /** @return geometria codificada, ou {@code null} se o tipo não for suportado */
+    public static byte[] encode(JsonNode geometry) {
+        if (geometry == null) return null;
+        String type = geometry.path("type").asText();
+        JsonNode coords = geometry.path("coordinates");
+        if (!coords.isArray()) return null;
+
+        int dim;
+        switch (type) {
+            case "Polygon"      -> dim = dimension(coords, 2);
+            case "MultiPolygon" -> dim = dimension(coords, 3);
+            default             -> { return null; }
+        }
+        if (dim < 0) return null;                        // 2D/3D misturado → texto
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(dim == 3 ? VERSION_Z : VERSION);
+        long[] prev = new long[3];                       // {lon, lat, alt} anterior
+
+        if ("Polygon".equals(type)) {
+            out.write(POLYGON);
+            writeVarint(out, 1);
+            writePolygon(out, coords, prev, dim == 3);
+        } else {
+            out.write(MULTI_POLYGON);
+            writeVarint(out, coords.size());
+            for (JsonNode poly : coords) writePolygon(out, poly, prev, dim == 3);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Dimensão comum das posições (2 ou 3), ou -1 se variar ou não for suportada.
+     * @param depth níveis de arrays até às posições
+     */
+    private static int dimension(JsonNode node, int depth) {
+        if (depth == 0) {
+            int n = node.size();
+            return n == 2 || (n == 3 && node.get(2).isNumber()) ? n : -1;
+        }
+        int dim = 0;
+        for (JsonNode child : node) {
+            int d = dimension(child, depth - 1);
+            if (d < 0 || (dim != 0 && d != 0 && d != dim)) return -1;
+            if (d != 0) dim = d;
+        }
+        return dim;
+    }
+
+    private static void writePolygon(ByteArrayOutputStream out, JsonNode rings, long[] prev, boolean z) {
+        writeVarint(out, rings.size());
+        for (JsonNode ring : rings) {
+            writeVarint(out, ring.size());
+            for (JsonNode p : ring) {
+                long lon = Math.round(p.path(0).asDouble() * SCALE);
+                long lat = Math.round(p.path(1).asDouble() * SCALE);
+                writeVarint(out, zigzag(lon - prev[0]));
+                writeVarint(out, zigzag(lat - prev[1]));
+                prev[0] = lon;
+                prev[1] = lat;
+                if (z) {
+                    long alt = Math.round(p.path(2).asDouble() * SCALE_Z);
+                    writeVarint(out, zigzag(alt - prev[2]));
+                    prev[2] = alt;
+                }
+            }
+        }
+    }
+
+    private static long zigzag(long v) { return (v << 1) ^ (v >> 63); }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    /* ---------- leitura ---------- */
+
+    /**
+     * Descodifica diretamente para anéis primitivos:
+     * {@code [polígono][anel] = {lon0, lat0, lon1, lat1, …}} (a altitude é descartada).
+     */
+    public static double[][][] decode(byte[] data) {
+        return decode(data, false);
+    }
+
+    /** @param keepZ se {@code true} e houver altitude, anéis {lon0, lat0, alt0, …} */
+    private static double[][][] decode(byte[] data, boolean keepZ) {
+        Reader r = new Reader(data);
+        byte version = r.readByte();
+        if (version != VERSION && version != VERSION_Z)
+            throw new IllegalArgumentException("Versão de geometria binária desconhecida");
+        boolean hasZ = version == VERSION_Z;
+        int dim = hasZ && keepZ ? 3 : 2;
+        r.readByte();                                    // tipo – só relevante para GeoJSON
+
+        long lon = 0, lat = 0, alt = 0;
+        double[][][] polys = new double[(int) r.readVarint()][][];
+        for (int p = 0; p < polys.length; p++) {
+            double[][] rings = polys[p] = new double[(int) r.readVarint()][];
+            for (int k = 0; k < rings.length; k++) {
+                double[] ring = rings[k] = new double[dim * (int) r.readVarint()];
+                for (int i = 0; i < ring.length; i += dim) {
+                    lon += unzigzag(r.readVarint());
+                    lat += unzigzag(r.readVarint());
+                    ring[i]     = lon / SCALE;
+                    ring[i + 1] = lat / SCALE;
+                    if (hasZ) {
+                        alt += unzigzag(r.readVarint());
+                        if (dim == 3) ring[i + 2] = alt / SCALE_Z;
+                    }
+                }
+            }
+        }
+        return polys;
+    }
+
+    /** Reconstrói o GeoJSON (Polygon / MultiPolygon) a partir do binário, com altitude se existir. */
+    public static ObjectNode toGeoJson(byte[] data) {
+        boolean multi = data.length > 1 && data[1] == MULTI_POLYGON;
+        int dim = data.length > 0 && data[0] == VERSION_Z ? 3 : 2;
+        double[][][] polys = decode(data, true);
+
+        ObjectNode g = MAPPER.createObjectNode();
+        g.put("type", multi ? "MultiPolygon" : "Polygon");
+        ArrayNode coords = g.putArray("coordinates");
+        for (double[][] poly : polys) {
+            ArrayNode rings = multi ? coords.addArray() : coords;
+            for (double[] ring : poly) {
+                ArrayNode r = rings.addArray();
+                for (int i = 0; i < ring.length; i += dim) {
+                    ArrayNode pos = r.addArray().add(ring[i]).add(ring[i + 1]);
+                    if (dim == 3) pos.add(ring[i + 2]);
+                }
+            }
+        }
+        return g;
+    }
+
+    private static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf) { this.buf = buf; }
+
+        byte readByte() { return buf[pos++]; }
+
+        long readVarint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IllegalArgumentException("Varint malformado");
+        }
+    }
+
+    /* ---------- leitura a partir de entidades (deteta o formato) ---------- */
+
+    public static boolean hasGeometry(Entity parcel) {
+        return parcel.contains(BINARY_PROPERTY) || parcel.contains(JSON_PROPERTY);
+    }
+
+    /** GeoJSON da parcela, qualquer que seja o formato gravado; {@code null} se não houver. */
+    public static JsonNode geometryJson(Entity parcel) {
+        try {
+            if (parcel.contains(BINARY_PROPERTY))
+                return toGeoJson(parcel.getBlob(BINARY_PROPERTY).toByteArray());
+            if (parcel.contains(JSON_PROPERTY))
+                return MAPPER.readTree(parcel.getString(JSON_PROPERTY));
+        } catch (Exception e) {
+            System.err.println("[GEOMETRY] geometria inválida em " + parcel.getKey() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /** Anéis primitivos da parcela (ver {@link #decode}); {@code null} se não houver. */
+    public static double[][][] rings(Entity parcel) {
+        if (parcel.contains(BINARY_PROPERTY))
+            return decode(parcel.getBlob(BINARY_PROPERTY).toByteArray());
+        JsonNode g = geometryJson(parcel);
+        if (g == null) return null;
+        JsonNode coords = g.path("coordinates");
+        switch (g.path("type").asText()) {
+            case "Polygon":
+                return new double[][][]{ ringsOf(coords) };
+            case "MultiPolygon":
+                double[][][] polys = new double[coords.size()][][];
+                for (int i = 0; i < polys.length; i++) polys[i] = ringsOf(coords.get(i));
+                return polys;
+            default:
+                return null;
+        }
+    }
+
+    private static double[][] ringsOf(JsonNode polygon) {
+        double[][] rings = new double[polygon.size()][];
+        for (int k = 0; k < rings.length; k++) {
+            JsonNode ring = polygon.get(k);
+            double[] r = rings[k] = new double[2 * ring.size()];
+            for (int i = 0; i < ring.size(); i++) {
+                r[2 * i]     = ring.get(i).path(0).asDouble();
+                r[2 * i + 1] = ring.get(i).path(1).asDouble();
+            }
+        }
+        return rings;
+    }
+}
@@ -0,0 +1,310 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ *  Validação e normalização das geometrias das parcelas no import.
+ *
+ *   • erros (a feature é rejeitada): tipo diferente de Polygon/MultiPolygon,
+ *     coordenadas fora de [-180,180]×[-90,90] ou não numéricas, posições com
+ *     mais de 3 valores, anéis com menos de 4 posições, anéis com auto-interseção
+ *   • a altitude (3.º valor), quando existe, é preservada
+ *   • correções: remove vértices consecutivos repetidos, fecha anéis abertos,
+ *     orienta os anéis como no RFC 7946 (exterior anti-horário, buracos horário)
+ *     e, se {@code -Dtrailblaze.import.simplifyM} &gt; 0, simplifica com essa
+ *     tolerância (metros)
+ *   • a auto-interseção é verificada dentro de cada anel, não entre anéis
+ */
+public final class GeometryNormalizer {
+
+    /** Tolerância (metros) de simplificação; 0 = desligada. */
+    public static final double SIMPLIFY_M = simplifyTolerance();
+
+    /** Erros guardados por import (os restantes só são contados). */
+    public static final int MAX_REPORTED = 100;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private GeometryNormalizer() { }
+
+    private static double simplifyTolerance() {
+        try {
+            return Math.max(0, Double.parseDouble(System.getProperty("trailblaze.import.simplifyM", "0").trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Geometria normalizada, ou {@code null} se houver erros. */
+    public record Result(ObjectNode geometry, List<String> errors) {
+        public boolean ok() { return errors.isEmpty(); }
+    }
+
+    /** Erros de uma feature (índice no array «features»). */
+    public record FeatureError(long index, Integer polygonId, List<String> errors) { }
+
+    /** Geometria inválida numa feature (→ {@link FeatureError}). */
+    public static final class InvalidGeometry extends IllegalArgumentException {
+        private final Integer polygonId;
+        private final List<String> errors;
+
+        public InvalidGeometry(Integer polygonId, List<String> errors) {
+            super("Geometria inválida: " + String.join("; ", errors));
+            this.polygonId = polygonId;
+            this.errors = errors;
+        }
+
+        public Integer polygonId()    { return polygonId; }
+        public List<String> errors()  { return errors; }
+    }
+
+    /** Import recusado por features inválidas (→ 400 com a lista). */
+    public static final class InvalidFeatures extends IllegalArgumentException {
+        private final List<FeatureError> features;
+        private final long total;
+
+        public InvalidFeatures(List<FeatureError> features, long total) {
+            super(total + " feature(s) com geometria inválida"
+                  + (features.isEmpty() ? "" : ", ex.: feature " + features.get(0).index()
+                                              + ": " + String.join("; ", features.get(0).errors())));
+            this.features = features;
+            this.total = total;
+        }
+
+        public List<FeatureError> features() { return features; }
+
+        public String toJson() {
+            ObjectNode o = MAPPER.createObjectNode();
+            o.put("error", "Geometrias inválidas");
+            o.put("invalidFeatures", total);
+            ArrayNode arr = o.putArray("features");
+            for (FeatureError f : features) {
+                ObjectNode n = arr.addObject();
+                n.put("index", f.index());
+                if (f.polygonId() != null) n.put("polygonId", f.polygonId());
+                ArrayNode errs = n.putArray("errors");
+                f.errors().forEach(errs::add);
+            }
+            return o.toString();
+        }
+    }
+
+    /** Ordena e corta a lista para a resposta. */
+    public static InvalidFeatures invalid(List<FeatureError> errors) {
+        List<FeatureError> sorted = new ArrayList<>(errors);
+        sorted.sort(Comparator.comparingLong(FeatureError::index));
+        return new InvalidFeatures(sorted.subList(0, Math.min(MAX_REPORTED, sorted.size())), errors.size());
+    }
+
+    /* =============================================================== */
+    /*                           Normalização                          */
+    /* =============================================================== */
+
+    public static Result normalize(JsonNode geometry) {
+        List<String> errors = new ArrayList<>();
+        if (geometry == null || !geometry.isObject()) {
+            errors.add("geometria ausente");
+            return new Result(null, errors);
+        }
+
+        String   type   = geometry.path("type").asText();
+        JsonNode coords = geometry.path("coordinates");
+        ObjectNode out  = MAPPER.createObjectNode();
+        out.put("type", type);
+        ArrayNode outCoords = out.putArray("coordinates");
+
+        switch (type) {
+            case "Polygon" -> polygon(coords, outCoords, "", errors);
+            case "MultiPolygon" -> {
+                if (!coords.isArray() || coords.isEmpty())
+                    errors.add("MultiPolygon sem polígonos");
+                else
+                    for (int i = 0; i < coords.size(); i++)
+                        polygon(coords.get(i), outCoords.addArray(), "polígono " + i + ", ", errors);
+            }
+            default -> errors.add("tipo de geometria não suportado: " + (type.isEmpty() ? "(ausente)" : type));
+        }
+        return new Result(errors.isEmpty() ? out : null, errors);
+    }
+
+    private static void polygon(JsonNode rings, ArrayNode out, String where, List<String> errors) {
+        if (!rings.isArray() || rings.isEmpty()) {
+            errors.add(where + "sem anéis");
+            return;
+        }
+        for (int r = 0; r < rings.size(); r++) {
+            String at = where + "anel " + r;
+            Ring ring = ring(rings.get(r), at, errors);
+            if (ring == null) continue;
+            if (selfIntersects(ring.xy())) {
+                errors.add(at + ": auto-interseção");
+                continue;
+            }
+            boolean ccw = signedArea(ring.xy()) > 0;
+            if (ccw != (r == 0)) ring.reverse();             // exterior CCW, buracos CW
+
+            ArrayNode a = out.addArray();
+            double[] xy = ring.xy(), z = ring.z();
+            for (int i = 0; i < z.length; i++) {
+                ArrayNode pos = a.addArray().add(xy[2 * i]).add(xy[2 * i + 1]);
+                if (!Double.isNaN(z[i])) pos.add(z[i]);
+            }
+        }
+    }
+
+    /** Anel {lon0, lat0, …} + altitudes ({@code NaN} se a posição não tiver). */
+    private record Ring(double[] xy, double[] z) {
+        void reverse() {
+            GeometryNormalizer.reverse(xy);
+            for (int i = 0, j = z.length - 1; i < j; i++, j--) {
+                double t = z[i]; z[i] = z[j]; z[j] = t;
+            }
+        }
+    }
+
+    /** Anel validado, sem repetidos, fechado e (opcionalmente) simplificado. */
+    private static Ring ring(JsonNode ring, String at, List<String> errors) {
+        if (!ring.isArray()) {
+            errors.add(at + ": não é um array de posições");
+            return null;
+        }
+        double[] c = new double[2 * ring.size() + 2];
+        double[] z = new double[ring.size() + 1];
+        int n = 0;
+        for (int i = 0; i < ring.size(); i++) {
+            JsonNode p = ring.get(i);
+            if (!p.isArray() || p.size() < 2 || !p.get(0).isNumber() || !p.get(1).isNumber()
+                             || (p.size() == 3 && !p.get(2).isNumber())) {
+                errors.add(at + ": posição " + i + " inválida");
+                return null;
+            }
+            if (p.size() > 3) {
+                errors.add(at + ": posição " + i + " com mais de 3 coordenadas (só lon, lat e altitude)");
+                return null;
+            }
+            double lon = p.get(0).asDouble(), lat = p.get(1).asDouble();
+            if (!(lon >= -180 && lon <= 180 && lat >= -90 && lat <= 90)) {
+                errors.add(at + ": posição " + i + " fora do intervalo (" + lon + ", " + lat + ")");
+                return null;
+            }
+            if (n > 0 && c[2 * n - 2] == lon && c[2 * n - 1] == lat) continue;   // repetido
+            c[2 * n] = lon;
+            c[2 * n + 1] = lat;
+            z[n] = p.size() == 3 ? p.get(2).asDouble() : Double.NaN;
+            n++;
+        }
+        if (n > 1 && (c[0] != c[2 * n - 2] || c[1] != c[2 * n - 1])) {        // fecha o anel
+            c[2 * n] = c[0];
+            c[2 * n + 1] = c[1];
+            z[n] = z[0];
+            n++;
+        }
+        if (n < 4) {
+            errors.add(at + ": menos de 3 vértices distintos");
+            return null;
+        }
+        Ring out = new Ring(Arrays.copyOf(c, 2 * n), Arrays.copyOf(z, n));
+        return SIMPLIFY_M > 0 ? simplify(out) : out;
+    }
+
+    private static Ring simplify(Ring ring) {
+        double[] xy = ring.xy();
+        int n = xy.length / 2;
+        double cosLat = Math.cos(GeoUtil.toRad(xy[1]));
+        double[] x = new double[n], y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = xy[2 * i] * TrailSimplifier.M_PER_DEG_LON * cosLat;
+            y[i] = xy[2 * i + 1] * TrailSimplifier.M_PER_DEG_LAT;
+        }
+        boolean[] keep = TrailSimplifier.keepMask(x, y, SIMPLIFY_M);
+        int k = 0;
+        for (boolean b : keep) if (b) k++;
+        if (k < 4 || k == n) return ring;                  // não degenera o anel
+
+        double[] outXy = new double[2 * k], outZ = new double[k];
+        for (int i = 0, j = 0; i < n; i++)
+            if (keep[i]) {
+                outXy[2 * j]     = xy[2 * i];
+                outXy[2 * j + 1] = xy[2 * i + 1];
+                outZ[j++]        = ring.z()[i];
+            }
+        return new Ring(outXy, outZ);
+    }
+
+    /* ---------- geometria plana (lon/lat) ---------- */
+
+    /** Área com sinal (shoelace): positiva se anti-horário. */
+    private static double signedArea(double[] r) {
+        double a = 0;
+        for (int i = 0; i + 3 < r.length; i += 2)
+            a += r[i] * r[i + 3] - r[i + 2] * r[i + 1];
+        return a / 2;
+    }
+
+    private static void reverse(double[] r) {
+        for (int i = 0, j = r.length - 2; i < j; i += 2, j -= 2) {
+            double lon = r[i], lat = r[i + 1];
+            r[i] = r[j];      r[i + 1] = r[j + 1];
+            r[j] = lon;       r[j + 1] = lat;
+        }
+    }
+
+    /**
+     * Varrimento por x: arestas ordenadas por minX, cada uma só é comparada
+     * com as que se sobrepõem em x. Arestas adjacentes (que partilham um
+     * vértice) não contam.
+     */
+    static boolean selfIntersects(double[] r) {
+        int m = r.length / 2 - 1;                          // nº de arestas (anel fechado)
+        if (m < 4) return false;                           // triângulo não se cruza
+
+        Integer[] order = new Integer[m];
+        for (int i = 0; i < m; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(e -> Math.min(r[2 * e], r[2 * e + 2])));
+
+        for (int a = 0; a < m; a++) {
+            int i = order[a];
+            double maxX = Math.max(r[2 * i], r[2 * i + 2]);
+            for (int b = a + 1; b < m; b++) {
+                int j = order[b];
+                if (Math.min(r[2 * j], r[2 * j + 2]) > maxX) break;
+                int d = Math.abs(i - j);
+                if (d == 1 || d == m - 1) continue;        // adjacentes
+                if (segmentsIntersect(r, i, j)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean segmentsIntersect(double[] r, int i, int j) {
+        double ax = r[2 * i], ay = r[2 * i + 1], bx = r[2 * i + 2], by = r[2 * i + 3];
+        double cx = r[2 * j], cy = r[2 * j + 1], dx = r[2 * j + 2], dy = r[2 * j + 3];
+        if (Math.max(ay, by) < Math.min(cy, dy) || Math.max(cy, dy) < Math.min(ay, by)) return false;
+
+        int o1 = orient(ax, ay, bx, by, cx, cy), o2 = orient(ax, ay, bx, by, dx, dy);
+        int o3 = orient(cx, cy, dx, dy, ax, ay), o4 = orient(cx, cy, dx, dy, bx, by);
+        if (o1 != o2 && o3 != o4) return true;
+        return (o1 == 0 && onSegment(ax, ay, bx, by, cx, cy))
+            || (o2 == 0 && onSegment(ax, ay, bx, by, dx, dy))
+            || (o3 == 0 && onSegment(cx, cy, dx, dy, ax, ay))
+            || (o4 == 0 && onSegment(cx, cy, dx, dy, bx, by));
+    }
+
+    private static int orient(double ax, double ay, double bx, double by, double px, double py) {
+        double v = (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+        return v > 0 ? 1 : v < 0 ? -1 : 0;
+    }
+
+    private static boolean onSegment(double ax, double ay, double bx, double by, double px, double py) {
+        return px >= Math.min(ax, bx) && px <= Math.max(ax, bx)
+            && py >= Math.min(ay, by) && py <= Math.max(ay, by);
+    }
+}
@@ -1,22 +1,204 @@
 package pt.unl.fct.di.apdc.trailblaze.util;
 
-import java.util.Base64;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ *  Hash de passwords com esquemas versionados.
+ *
+ *  Formato guardado: {@code <esquema>$<parâmetros...>}, p.ex.
+ *  {@code pbkdf2$120000$<salt b64>$<hash b64>}. Hashes sem prefixo são do
+ *  esquema antigo (SHA-256 sem salt) e continuam a ser aceites; o login
+ *  regrava-os com o esquema atual (ver {@link #needsRehash}).
+ *
+ *  O custo do PBKDF2 é configurável:
+ *   • {@code trailblaze.pbkdf2.iterations} – nº de iterações fixo
+ *   • {@code trailblaze.pbkdf2.targetMs}   – calibra no arranque para essa latência
+ */
 public class HashUtil {
 
+    /** Esquema de hash de passwords (um por prefixo). */
+    public interface PasswordScheme {
+        String  id();
+        String  hash(String password) throws Exception;
+        boolean verify(String password, String stored) throws Exception;
+        boolean needsRehash(String stored);
+    }
+
+    private static final Map<String, PasswordScheme> SCHEMES = new LinkedHashMap<>();
+    private static final PasswordScheme LEGACY = new Sha256Scheme();
+    private static final Pbkdf2Scheme   PBKDF2 = new Pbkdf2Scheme();
+
+    static {
+        register(PBKDF2);
+    }
+
+    /** Esquema usado para novos hashes. */
+    private static volatile PasswordScheme current = PBKDF2;
+
+    public static void register(PasswordScheme scheme) {
+        SCHEMES.put(scheme.id(), scheme);
+    }
+
+    /* ---------- API ---------- */
+
     public static String hashPassword(String password) throws Exception {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hash = digest.digest(password.getBytes());
-        return Base64.getEncoder().encodeToString(hash);
+        return current.hash(password);
     }
 
     public static boolean checkPassword(String plainPassword, String hashedPassword) {
+        if (plainPassword == null || hashedPassword == null) return false;
         try {
-            String hashOfInput = hashPassword(plainPassword);
-            return hashOfInput.equals(hashedPassword);
+            return schemeOf(hashedPassword).verify(plainPassword, hashedPassword);
         } catch (Exception e) {
             return false;
         }
     }
+
+    /** {@code true} se o hash não estiver no esquema/custo atuais. */
+    public static boolean needsRehash(String hashedPassword) {
+        if (hashedPassword == null) return false;
+        PasswordScheme s = schemeOf(hashedPassword);
+        return s != current || s.needsRehash(hashedPassword);
+    }
+
+    private static PasswordScheme schemeOf(String stored) {
+        int i = stored.indexOf('$');
+        if (i < 0) return LEGACY;
+        PasswordScheme s = SCHEMES.get(stored.substring(0, i));
+        return s != null ? s : LEGACY;
+    }
+
+    /* ---------- custo ---------- */
+
+    public static int getIterations() {
+        return PBKDF2.iterations;
+    }
+
+    public static void setIterations(int iterations) {
+        PBKDF2.iterations = Math.max(Pbkdf2Scheme.MIN_ITERATIONS, iterations);
+    }
+
+    /**
+     * Mede o PBKDF2 nesta instância e escolhe o nº de iterações para que uma
+     * verificação demore ~{@code targetMs}. Devolve o valor aplicado.
+     */
+    public static int calibrateIterations(long targetMs) throws Exception {
+        final int probe = 20_000;
+        byte[] salt = Pbkdf2Scheme.newSalt();
+
+        PBKDF2.derive("calibracao", salt, probe);               // aquecimento (JIT)
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long t0 = System.nanoTime();
+            PBKDF2.derive("calibracao", salt, probe);
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+
+        long iterations = targetMs * 1_000_000L * probe / Math.max(best, 1);
+        setIterations((int) Math.min(iterations, 10_000_000L));
+        System.out.println("[HASH] PBKDF2 calibrado para " + targetMs + " ms: "
+                           + PBKDF2.iterations + " iterações.");
+        return PBKDF2.iterations;
+    }
+
+    /** Aplica as system properties (chamado no arranque). */
+    public static void configure() throws Exception {
+        String it     = System.getProperty("trailblaze.pbkdf2.iterations");
+        String target = System.getProperty("trailblaze.pbkdf2.targetMs");
+        if (it != null)
+            setIterations(Integer.parseInt(it.trim()));
+        else if (target != null)
+            calibrateIterations(Long.parseLong(target.trim()));
+    }
+
+    /* ================================================================= */
+
+    /** Esquema antigo: SHA-256 sem salt, base64 – só para verificação. */
+    private static final class Sha256Scheme implements PasswordScheme {
+
+        public String id() { return "sha256"; }
+
+        public String hash(String password) throws Exception {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        }
+
+        public boolean verify(String password, String stored) throws Exception {
+            return MessageDigest.isEqual(hash(password).getBytes(StandardCharsets.US_ASCII),
+                                         stored.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        public boolean needsRehash(String stored) { return true; }
+    }
+
+    /** PBKDF2-HMAC-SHA256 com salt por conta: {@code pbkdf2$iter$salt$hash}. */
+    private static final class Pbkdf2Scheme implements PasswordScheme {
+
+        static final int MIN_ITERATIONS = 10_000;
+        static final int SALT_BYTES     = 16;
+        static final int KEY_BITS       = 256;
+
+        private static final SecureRandom RANDOM = new SecureRandom();
+
+        /* SecretKeyFactory não é thread-safe – uma por thread */
+        private static final ThreadLocal<SecretKeyFactory> SKF = ThreadLocal.withInitial(() -> {
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        volatile int iterations = 120_000;
+
+        public String id() { return "pbkdf2"; }
+
+        static byte[] newSalt() {
+            byte[] salt = new byte[SALT_BYTES];
+            RANDOM.nextBytes(salt);
+            return salt;
+        }
+
+        byte[] derive(String password, byte[] salt, int iter) throws Exception {
+            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iter, KEY_BITS);
+            return SKF.get().generateSecret(spec).getEncoded();
+        }
+
+        public String hash(String password) throws Exception {
+            int    iter = iterations;
+            byte[] salt = newSalt();
+            Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+            return id() + "$" + iter + "$" + b64.encodeToString(salt)
+                        + "$" + b64.encodeToString(derive(password, salt, iter));
+        }
+
+        public boolean verify(String password, String stored) throws Exception {
+            String[] p = stored.split("\\$");
+            if (p.length != 4) return false;
+            int    iter     = Integer.parseInt(p[1]);
+            byte[] salt     = Base64.getDecoder().decode(p[2]);
+            byte[] expected = Base64.getDecoder().decode(p[3]);
+            return MessageDigest.isEqual(derive(password, salt, iter), expected);
+        }
+
+        /* só sobe o custo – tolera a variação da calibração entre instâncias */
+        public boolean needsRehash(String stored) {
+            String[] p = stored.split("\\$");
+            try {
+                return p.length != 4 || Integer.parseInt(p[1]) < iterations * 9L / 10;
+            } catch (NumberFormatException e) {
+                return true;
+            }
+        }
+    }
 }
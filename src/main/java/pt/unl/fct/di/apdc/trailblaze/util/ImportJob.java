@@ -0,0 +1,149 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.function.UnaryOperator;
+
+/**
+ *  Progresso de um import de folha de obra em modo job.
+ *  Uma entidade por folha (chave = id da folha), para que um import
+ *  interrompido possa ser retomado só reenviando o mesmo ficheiro.
+ *
+ *  Para garantir que é o mesmo ficheiro guarda-se a impressão digital da
+ *  «metadata» e do prefixo de features já gravado (FNV-1a 64 encadeado,
+ *  ver {@link #fingerprint}).
+ */
+public class ImportJob {
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    /** Sem atualizações há mais do que isto, um job QUEUED/RUNNING é considerado morto. */
+    public static final long STALE_MS = 5 * 60_000L;
+
+    public long   worksheetId;
+    public String importedBy;
+    public State  state;
+    public int    batchSize;
+    public long   featuresCommitted;   // prefixo de features já gravado (ponto de retoma)
+    public long   metaHash;            // impressão digital da «metadata»
+    public long   prefixHash;          // impressão digital das features 0..featuresCommitted-1
+    public long   parcelsWritten;
+    public int    batches;
+    public int    resumes;
+    public String error;
+    public Date   createdAt;
+    public Date   updatedAt;
+
+    public ImportJob() {}
+
+    public ImportJob(long worksheetId, String importedBy, int batchSize) {
+        this.worksheetId = worksheetId;
+        this.importedBy  = importedBy;
+        this.batchSize   = batchSize;
+        this.state       = State.RUNNING;
+        this.createdAt   = new Date();
+        this.updatedAt   = this.createdAt;
+    }
+
+    public static Key key(Datastore ds, long worksheetId) {
+        return ds.newKeyFactory().setKind("ImportJob").newKey(worksheetId);
+    }
+
+    public boolean isStale() {
+        return (state == State.QUEUED || state == State.RUNNING)
+            && System.currentTimeMillis() - updatedAt.getTime() > STALE_MS;
+    }
+
+    /** Em fila ou a correr numa instância viva. */
+    public boolean isActive() {
+        return (state == State.QUEUED || state == State.RUNNING) && !isStale();
+    }
+
+    public Entity toEntity(Datastore ds) {
+        Entity.Builder b = Entity.newBuilder(key(ds, worksheetId))
+                .set("importedBy", importedBy)
+                .set("state", state.name())
+                .set("batchSize", batchSize)
+                .set("featuresCommitted", featuresCommitted)
+                .set("metaHash", LongValue.newBuilder(metaHash).setExcludeFromIndexes(true).build())
+                .set("prefixHash", LongValue.newBuilder(prefixHash).setExcludeFromIndexes(true).build())
+                .set("parcelsWritten", parcelsWritten)
+                .set("batches", batches)
+                .set("resumes", resumes)
+                .set("createdAt", createdAt.getTime())
+                .set("updatedAt", updatedAt.getTime());
+        if (error != null)
+            b.set("error", StringValue.newBuilder(error).setExcludeFromIndexes(true).build());
+        return b.build();
+    }
+
+    public static ImportJob fromEntity(Entity e) {
+        ImportJob j = new ImportJob();
+        j.worksheetId       = e.getKey().getId();
+        j.importedBy        = e.getString("importedBy");
+        j.state             = State.valueOf(e.getString("state"));
+        j.batchSize         = (int) e.getLong("batchSize");
+        j.featuresCommitted = e.getLong("featuresCommitted");
+        j.metaHash          = e.contains("metaHash") ? e.getLong("metaHash") : 0;
+        j.prefixHash        = e.contains("prefixHash") ? e.getLong("prefixHash") : FNV_OFFSET;
+        j.parcelsWritten    = e.getLong("parcelsWritten");
+        j.batches           = (int) e.getLong("batches");
+        j.resumes           = e.contains("resumes") ? (int) e.getLong("resumes") : 0;
+        j.error             = e.contains("error") ? e.getString("error") : null;
+        j.createdAt         = new Date(e.getLong("createdAt"));
+        j.updatedAt         = new Date(e.getLong("updatedAt"));
+        return j;
+    }
+
+    public static ImportJob load(Datastore ds, long worksheetId) {
+        Entity e = ds.get(key(ds, worksheetId));
+        return e == null ? null : fromEntity(e);
+    }
+
+    public void save(Datastore ds) {
+        updatedAt = new Date();
+        ds.put(toEntity(ds));
+    }
+
+    /**
+     * Lê, decide e grava o job numa só transação, para que dois pedidos
+     * concorrentes não arranquem o mesmo import.
+     *
+     * @param update recebe o job atual (ou {@code null}) e devolve o job a
+     *               gravar; lança para recusar
+     * @throws WorkSheetStreamImport.AlreadyExists se outro pedido gravou o job entretanto
+     */
+    public static ImportJob claim(Datastore ds, long worksheetId, UnaryOperator<ImportJob> update) {
+        Transaction txn = ds.newTransaction();
+        try {
+            Entity e = txn.get(key(ds, worksheetId));
+            ImportJob job = update.apply(e == null ? null : fromEntity(e));
+            job.updatedAt = new Date();
+            txn.put(job.toEntity(ds));
+            try {
+                txn.commit();
+            } catch (DatastoreException ex) {                // conflito com outro pedido
+                throw new WorkSheetStreamImport.AlreadyExists("Import desta folha já em curso.");
+            }
+            return job;
+        } finally {
+            if (txn.isActive()) txn.rollback();
+        }
+    }
+
+    /* ---------- impressão digital (FNV-1a 64) ---------- */
+
+    public static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** Continua o hash {@code h} com o texto {@code s} (encadeável). */
+    public static long fingerprint(long h, String s) {
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+}
@@ -16,6 +16,11 @@ public final class JwtUtil {
 
     private static final long EXPIRATION_TIME_MS = 1000L * 60 * 60 * 2;
 
+    /* o parser é imutável e thread-safe – não vale a pena criá-lo a cada pedido */
+    private static final JwtParser PARSER = Jwts.parserBuilder()
+                                                .setSigningKey(KEY)
+                                                .build();
+
  
     public static String generateToken(String username, List<String> roles) {
 
@@ -45,21 +50,35 @@ public final class JwtUtil {
         return token;
     }
 
+    /**
+     * Valida assinatura/expiração e verifica a blacklist.
+     * O resultado fica em {@link VerifiedTokenCache} até ao {@code exp} do token,
+     * pelo que só a primeira validação paga o custo criptográfico.
+     */
     public static Jws<Claims> validateToken(String token) throws JwtException {
+        if (token == null || token.isBlank())
+            throw new JwtException("Token ausente.");
 
-        Jws<Claims> jws = Jwts.parserBuilder()
-                              .setSigningKey(KEY)
-                              .build()
-                              .parseClaimsJws(token);
+        long now = System.currentTimeMillis();
 
-        Claims claims = jws.getBody();
+        VerifiedTokenCache.Entry entry = VerifiedTokenCache.get(token, now);
+        if (entry == null)
+            entry = VerifiedTokenCache.put(token, PARSER.parseClaimsJws(token), now);
 
-        if (TokenBlacklistUtil.isBlacklisted(claims.getId())) {
-            throw new JwtException("Token revogado.");
+        if (now >= entry.recheckAt) {
+            if (TokenBlacklistUtil.isBlacklisted(entry.jti)) {
+                VerifiedTokenCache.remove(token);
+                throw new JwtException("Token revogado.");
+            }
+            entry.recheckAt = now + VerifiedTokenCache.REVOCATION_RECHECK_MS;
         }
 
+        return entry.jws;
+    }
 
-        return jws;
+    /** Esquece as claims em cache de um token revogado. */
+    public static void invalidate(String jti) {
+        VerifiedTokenCache.invalidateJti(jti);
     }
 
     // Novo método para obter username (folhas exec)
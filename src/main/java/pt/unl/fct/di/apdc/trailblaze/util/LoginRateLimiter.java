@@ -0,0 +1,192 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.ws.rs.core.Response;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Limitação de tentativas de login (token bucket) por username e por IP.
+ *
+ *   • cada bucket tem o seu próprio lock – pedidos de utilizadores/IPs
+ *     diferentes não competem entre si
+ *   • buckets que voltaram a encher (inativos) são descartados por uma
+ *     tarefa periódica, para a memória não crescer com IPs de passagem
+ *   • o nº de buckets é limitado: com o mapa cheio descartam-se primeiro os
+ *     buckets inativos; se continuar cheio, a chave nova passa sem limite
+ *     nesse mapa (o outro limitador continua a aplicar-se) – um bucket
+ *     partilhado deixaria quem enche o mapa bloquear todos os logins novos
+ *   • os contadores são expostos em {@code /rest/metrics}
+ *
+ *  Configuração (system properties):
+ *   trailblaze.login.user.burst / .user.refillSeconds   – por username (omissão 5 / 12s)
+ *   trailblaze.login.ip.burst   / .ip.refillSeconds     – por IP       (omissão 20 / 3s)
+ *   trailblaze.login.maxBuckets                         – por mapa     (omissão 100000)
+ */
+public final class LoginRateLimiter {
+
+    private static final int  USER_BURST  = (int) BackgroundJobs.longProperty("trailblaze.login.user.burst", 5);
+    private static final long USER_REFILL = BackgroundJobs.longProperty("trailblaze.login.user.refillSeconds", 12) * 1000L;
+    private static final int  IP_BURST    = (int) BackgroundJobs.longProperty("trailblaze.login.ip.burst", 20);
+    private static final long IP_REFILL   = BackgroundJobs.longProperty("trailblaze.login.ip.refillSeconds", 3) * 1000L;
+    private static final int  MAX_BUCKETS = (int) Math.max(1, BackgroundJobs.longProperty("trailblaze.login.maxBuckets", 100_000));
+
+    /** Intervalo mínimo entre limpezas feitas no próprio pedido (mapa cheio). */
+    private static final long SWEEP_MS = 1000;
+
+    private static final Map<String, Bucket> USERS = new ConcurrentHashMap<>();
+    private static final Map<String, Bucket> IPS   = new ConcurrentHashMap<>();
+    private static final AtomicLong LAST_SWEEP     = new AtomicLong();
+
+    private static final LongAdder ALLOWED       = new LongAdder();
+    private static final LongAdder REJECTED_USER = new LongAdder();
+    private static final LongAdder REJECTED_IP   = new LongAdder();
+    private static final LongAdder EVICTED       = new LongAdder();
+    private static final LongAdder OVERFLOWED    = new LongAdder();
+
+    private LoginRateLimiter() { }
+
+    /**
+     * Consome uma tentativa para o par (username, ip).
+     * @return 0 se permitido; caso contrário, segundos até nova tentativa
+     */
+    public static long tryAcquire(String username, String ip) {
+        long now = System.currentTimeMillis();
+
+        if (ip != null) {
+            Bucket b = bucket(IPS, ip, IP_BURST, IP_REFILL, now);
+            long wait = b == null ? 0 : b.tryTake(now);
+            if (wait > 0) { REJECTED_IP.increment(); return toSeconds(wait); }
+        }
+        if (username != null) {
+            String key = username.trim().toLowerCase(Locale.ROOT);
+            Bucket b = bucket(USERS, key, USER_BURST, USER_REFILL, now);
+            long wait = b == null ? 0 : b.tryTake(now);
+            if (wait > 0) { REJECTED_USER.increment(); return toSeconds(wait); }
+        }
+        ALLOWED.increment();
+        return 0;
+    }
+
+    /** Bucket da chave; {@code null} (sem limite) se o mapa continuar cheio após a limpeza. */
+    private static Bucket bucket(Map<String, Bucket> map, String key, int burst, long refill, long now) {
+        Bucket b = map.get(key);
+        if (b != null) return b;
+        if (map.size() >= MAX_BUCKETS) {
+            long last = LAST_SWEEP.get();
+            if (now - last >= SWEEP_MS && LAST_SWEEP.compareAndSet(last, now)) evictIdle();
+            if (map.size() >= MAX_BUCKETS) {
+                OVERFLOWED.increment();
+                return null;
+            }
+        }
+        return map.computeIfAbsent(key, k -> new Bucket(burst, refill, now));
+    }
+
+    /**
+     * IP do cliente. O primeiro endereço do X-Forwarded-For é escolhido pelo
+     * cliente; só conta o que o front-end do App Engine acrescenta:
+     * X-AppEngine-User-IP, senão o último endereço do X-Forwarded-For, senão o remoto.
+     */
+    public static String clientIp(HttpServletRequest http) {
+        if (http == null) return null;
+        String ip = http.getHeader("X-AppEngine-User-IP");
+        if (ip != null && !ip.isBlank()) return ip.trim();
+
+        String xff = http.getHeader("X-Forwarded-For");
+        if (xff != null && !xff.isBlank()) {
+            String last = xff.substring(xff.lastIndexOf(',') + 1).trim();
+            if (!last.isEmpty()) return last;
+        }
+        return http.getRemoteAddr();
+    }
+
+    /** Resposta 429 com Retry-After. */
+    public static Response tooManyRequests(long retryAfterSeconds) {
+        return Response.status(Response.Status.TOO_MANY_REQUESTS)
+                .header("Retry-After", retryAfterSeconds)
+                .entity("Demasiadas tentativas de login. Tente novamente dentro de "
+                        + retryAfterSeconds + " s.")
+                .build();
+    }
+
+    /** Login bem-sucedido: o username volta a ter o bucket cheio. */
+    public static void onSuccess(String username) {
+        if (username != null) USERS.remove(username.trim().toLowerCase(Locale.ROOT));
+    }
+
+    private static long toSeconds(long millis) {
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    /* ---------- limpeza / métricas ---------- */
+
+    public static void start() {
+        BackgroundJobs.every("login-limiter-evict", 1, 1, TimeUnit.MINUTES, LoginRateLimiter::evictIdle);
+    }
+
+    static void evictIdle() {
+        long now = System.currentTimeMillis();
+        int before = USERS.size() + IPS.size();
+        USERS.values().removeIf(b -> b.isFull(now));
+        IPS.values().removeIf(b -> b.isFull(now));
+        EVICTED.add(before - USERS.size() - IPS.size());
+    }
+
+    public static Map<String, Long> metrics() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("allowed",          ALLOWED.sum());
+        m.put("rejectedByUser",   REJECTED_USER.sum());
+        m.put("rejectedByIp",     REJECTED_IP.sum());
+        m.put("evictedBuckets",   EVICTED.sum());
+        m.put("overflowed",       OVERFLOWED.sum());
+        m.put("userBuckets",      (long) USERS.size());
+        m.put("ipBuckets",        (long) IPS.size());
+        return m;
+    }
+
+    /* ================================================================= */
+
+    /** Token bucket simples; o reabastecimento é calculado no acesso. */
+    private static final class Bucket {
+        private final int  capacity;
+        private final long refillMillis;        // tempo para repor 1 token
+        private double     tokens;
+        private long       last;
+
+        Bucket(int capacity, long refillMillis, long now) {
+            this.capacity     = capacity;
+            this.refillMillis = Math.max(1, refillMillis);
+            this.tokens       = capacity;
+            this.last         = now;
+        }
+
+        private void refill(long now) {
+            if (now > last) {
+                tokens = Math.min(capacity, tokens + (double) (now - last) / refillMillis);
+                last   = now;
+            }
+        }
+
+        /** @return 0 se consumiu um token; senão, ms até haver um. */
+        synchronized long tryTake(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * refillMillis);
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+    }
+}
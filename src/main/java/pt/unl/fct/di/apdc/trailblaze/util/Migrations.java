@@ -0,0 +1,54 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.*;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Migrações de dados «one-shot». Cada migração tem um id e fica marcada no
+ *  kind «Migration» quando termina com sucesso, para não voltar a correr.
+ *  As migrações devem ser idempotentes – várias instâncias podem arrancar
+ *  ao mesmo tempo e correr a mesma migração em paralelo.
+ */
+public final class Migrations {
+
+    private static final Datastore  DS = DatastoreProvider.get();
+    private static final KeyFactory KF = DS.newKeyFactory().setKind("Migration");
+
+    /** Migrações já concluídas (evita ir ao Datastore em cada {@link #isDone}). */
+    private static final Set<String> DONE = ConcurrentHashMap.newKeySet();
+
+    private Migrations() { }
+
+    public static boolean isDone(String id) {
+        if (DONE.contains(id)) return true;
+        if (DS.get(KF.newKey(id)) != null) {
+            DONE.add(id);
+            return true;
+        }
+        return false;
+    }
+
+    /** Corre {@code task} se a migração ainda não estiver marcada como feita. */
+    public static void runOnce(String id, Runnable task) {
+        if (isDone(id)) return;
+
+        System.out.println("[MIGRATION] A correr " + id + "...");
+        long t0 = System.currentTimeMillis();
+        task.run();
+
+        DS.put(Entity.newBuilder(KF.newKey(id))
+                     .set("completedAt", Timestamp.now())
+                     .build());
+        DONE.add(id);
+        System.out.println("[MIGRATION] " + id + " concluída em "
+                           + (System.currentTimeMillis() - t0) + " ms.");
+    }
+
+    /** Agenda {@link #runOnce} em background. */
+    public static void runOnceAsync(String id, Runnable task) {
+        BackgroundJobs.submit("migration-" + id, () -> runOnce(id, task));
+    }
+}
@@ -7,7 +7,7 @@ import java.util.Set;
 
 public class NotifyOutUtil {
 
-    private static final Datastore DS = DatastoreOptions.getDefaultInstance().getService();
+    private static final Datastore DS = DatastoreProvider.get();
 
     /**
      * Função 1: Notificar o PRBO da conclusão duma operação numa parcela específica
@@ -0,0 +1,182 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Índice em memória dos utilizadores com sessão ativa
+ *  (JWT em «JwtActive» + sessões antigas em «Session»).
+ *
+ *   • atualizado no login / logout / force-logout
+ *   • ressincronizado periodicamente a partir do Datastore, para apanhar
+ *     logins feitos noutras instâncias; as alterações locais feitas durante
+ *     a ressincronização são reaplicadas ao índice novo (um logout não volta
+ *     a aparecer online)
+ *   • username → (id do token → exp); o utilizador está online enquanto
+ *     tiver pelo menos um token com {@code exp} no futuro
+ */
+public final class OnlineUsersIndex {
+
+    private static final Datastore DS = DatastoreProvider.get();
+
+    /** As sessões «Session» não têm expiração própria – assume-se a validade do JWT (2h). */
+    public static final long SESSION_TTL_MS =
+            BackgroundJobs.longProperty("trailblaze.session.ttlMinutes", 120) * 60_000L;
+
+    private static final long RESYNC_MINUTES =
+            BackgroundJobs.longProperty("trailblaze.online.resyncMinutes", 5);
+
+    /** Prefixo para distinguir ids de sessões dos jti. */
+    private static final String SESSION_PREFIX = "s:";
+
+    private static final Object LOCK = new Object();
+    private static Map<String, Map<String, Long>> byUser  = new HashMap<>();
+    private static Map<String, String>            ownerOf = new HashMap<>();   // id do token → username
+    /** Alterações locais durante um {@link #resync()} em curso ({@code null} fora dele). */
+    private static List<Change> changes;
+    private static volatile boolean loaded = false;
+
+    /** Login ({@code username != null}) ou logout de um token. */
+    private record Change(String id, String username, long exp) { }
+
+    private OnlineUsersIndex() { }
+
+    /* ---------- atualizações ---------- */
+
+    public static void addJwt(String username, String jti, long expMillis) {
+        add(username, jti, expMillis);
+    }
+
+    public static void addSession(String username, String sessionToken, long creationTime) {
+        add(username, SESSION_PREFIX + sessionToken, creationTime + SESSION_TTL_MS);
+    }
+
+    public static void removeJwt(String jti) {
+        remove(jti);
+    }
+
+    public static void removeSession(String sessionToken) {
+        remove(SESSION_PREFIX + sessionToken);
+    }
+
+    private static void add(String username, String id, long exp) {
+        if (username == null || id == null) return;
+        synchronized (LOCK) {
+            apply(byUser, ownerOf, new Change(id, username, exp));
+            if (changes != null) changes.add(new Change(id, username, exp));
+        }
+    }
+
+    private static void remove(String id) {
+        if (id == null) return;
+        synchronized (LOCK) {
+            apply(byUser, ownerOf, new Change(id, null, 0));
+            if (changes != null) changes.add(new Change(id, null, 0));
+        }
+    }
+
+    private static void apply(Map<String, Map<String, Long>> users, Map<String, String> owners, Change c) {
+        if (c.username() != null) {
+            users.computeIfAbsent(c.username(), u -> new HashMap<>()).put(c.id(), c.exp());
+            owners.put(c.id(), c.username());
+            return;
+        }
+        String user = owners.remove(c.id());
+        if (user == null) return;
+        Map<String, Long> tokens = users.get(user);
+        if (tokens != null) {
+            tokens.remove(c.id());
+            if (tokens.isEmpty()) users.remove(user);
+        }
+    }
+
+    /* ---------- leitura ---------- */
+
+    /** Usernames com sessão ativa, ordenados alfabeticamente. */
+    public static List<String> onlineUsers() {
+        ensureLoaded();
+        long now = System.currentTimeMillis();
+        List<String> res = new ArrayList<>();
+        synchronized (LOCK) {
+            byUser.forEach((user, tokens) -> {
+                for (long exp : tokens.values())
+                    if (exp > now) { res.add(user); break; }
+            });
+        }
+        res.sort(null);
+        return res;
+    }
+
+    /* ---------- sincronização ---------- */
+
+    public static void start() {
+        BackgroundJobs.every("online-resync", RESYNC_MINUTES, RESYNC_MINUTES,
+                             TimeUnit.MINUTES, OnlineUsersIndex::resync);
+        ensureLoaded();
+    }
+
+    private static void ensureLoaded() {
+        if (loaded) return;
+        synchronized (OnlineUsersIndex.class) {
+            if (!loaded) resync();
+        }
+    }
+
+    /** Reconstrói o índice a partir do Datastore (descarta também os expirados). */
+    static synchronized void resync() {
+        synchronized (LOCK) {
+            changes = new ArrayList<>();
+        }
+        try {
+            rebuild();
+        } finally {
+            synchronized (LOCK) {
+                changes = null;
+            }
+        }
+        loaded = true;
+    }
+
+    private static void rebuild() {
+        long now = System.currentTimeMillis();
+        Map<String, Map<String, Long>> users  = new HashMap<>();
+        Map<String, String>            owners = new HashMap<>();
+
+        Query<Entity> jwtQ = Query.newEntityQueryBuilder()
+                .setKind("JwtActive")
+                .setFilter(PropertyFilter.gt("exp", now))
+                .build();
+        DS.run(jwtQ).forEachRemaining(e -> {
+            String jti = e.getKey().getName();
+            if (TokenBlacklistUtil.isBlacklisted(jti)) return;
+            String user = e.getString("username");
+            users.computeIfAbsent(user, u -> new HashMap<>()).put(jti, e.getLong("exp"));
+            owners.put(jti, user);
+        });
+
+        Query<Entity> sessQ = Query.newEntityQueryBuilder()
+                .setKind("Session")
+                .setFilter(PropertyFilter.gt("creationTime", now - SESSION_TTL_MS))
+                .build();
+        DS.run(sessQ).forEachRemaining(e -> {
+            String id   = SESSION_PREFIX + e.getKey().getName();
+            String user = e.getString("username");
+            users.computeIfAbsent(user, u -> new HashMap<>())
+                 .put(id, e.getLong("creationTime") + SESSION_TTL_MS);
+            owners.put(id, user);
+        });
+
+        synchronized (LOCK) {
+            // a query pode ter lido o estado anterior a um login/logout local
+            for (Change c : changes) apply(users, owners, c);
+            byUser  = users;
+            ownerOf = owners;
+        }
+    }
+}
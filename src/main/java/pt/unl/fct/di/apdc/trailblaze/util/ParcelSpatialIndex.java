@@ -0,0 +1,203 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Índice espacial em memória dos centróides das parcelas (grelha uniforme
+ *  em graus), etiquetados com a folha de obra a que pertencem.
+ *
+ *   • carregado em background no arranque e recarregado periodicamente
+ *     (apanha imports/remoções feitos noutras instâncias)
+ *   • atualizado incrementalmente pelo import / remoção / edição de FOs
+ *   • leituras sem locks: cada alteração publica uma nova grelha imutável
+ */
+public final class ParcelSpatialIndex {
+
+    /** Lado da célula em graus (~5,5 km de latitude). */
+    private static final double CELL_DEG = 0.05;
+
+    private static final long RELOAD_MINUTES =
+            BackgroundJobs.longProperty("trailblaze.parcelIndex.reloadMinutes", 30);
+
+    /** Parcela indexada: centróide + bbox. */
+    public record ParcelRef(long worksheetId, long parcelId,
+                            double lat, double lon,
+                            double minLat, double minLon, double maxLat, double maxLon) { }
+
+    /** Snapshot imutável: célula → parcelas; FO → parcelas. */
+    private record Grid(Map<Long, List<ParcelRef>> cells,
+                        Map<Long, List<ParcelRef>> byWorksheet) { }
+
+    private static volatile Grid grid = new Grid(Map.of(), Map.of());
+    private static volatile boolean loaded = false;
+
+    private ParcelSpatialIndex() { }
+
+    /* ---------- consulta ---------- */
+
+    /** Resultado de {@link #nearestWorksheet}. */
+    public record Nearest(long worksheetId, double distanceKm) { }
+
+    /**
+     * Folha de obra com o centróide de parcela mais próximo de qualquer um dos
+     * pontos ({lat, lon}), até {@code maxKm}; {@code null} se não houver.
+     */
+    public static Nearest nearestWorksheet(List<double[]> points, double maxKm) {
+        ensureLoaded();
+        Grid g = grid;
+        if (points == null || points.isEmpty() || g.cells().isEmpty()) return null;
+
+        long   best  = 0;
+        double bestD = Double.MAX_VALUE;
+        for (double[] p : points) {
+            for (ParcelRef r : candidates(g, p[0], p[1], maxKm)) {
+                double d = GeoUtil.haversineKm(p[0], p[1], r.lat(), r.lon());
+                if (d < bestD) {
+                    bestD = d;
+                    best  = r.worksheetId();
+                }
+            }
+        }
+        return bestD <= maxKm ? new Nearest(best, bestD) : null;
+    }
+
+    /** Parcelas cujo bbox intersecta o retângulo dado. */
+    public static List<ParcelRef> intersecting(double minLat, double minLon, double maxLat, double maxLon) {
+        ensureLoaded();
+        Grid g = grid;
+        List<ParcelRef> res = new ArrayList<>();
+        // o bbox de uma parcela pode sair da célula do centróide – alarga uma célula
+        for (long cy = cell(minLat) - 1; cy <= cell(maxLat) + 1; cy++)
+            for (long cx = cell(minLon) - 1; cx <= cell(maxLon) + 1; cx++)
+                for (ParcelRef r : g.cells().getOrDefault(key(cy, cx), List.of()))
+                    if (r.maxLat() >= minLat && r.minLat() <= maxLat
+                     && r.maxLon() >= minLon && r.minLon() <= maxLon)
+                        res.add(r);
+        return res;
+    }
+
+    public static int size() {
+        int n = 0;
+        for (List<ParcelRef> l : grid.byWorksheet().values()) n += l.size();
+        return n;
+    }
+
+    private static List<ParcelRef> candidates(Grid g, double lat, double lon, double radiusKm) {
+        double dLat = radiusKm / 111.0;
+        double dLon = radiusKm / (111.32 * Math.max(0.01, Math.cos(GeoUtil.toRad(lat))));
+        List<ParcelRef> res = new ArrayList<>();
+        for (long cy = cell(lat - dLat); cy <= cell(lat + dLat); cy++)
+            for (long cx = cell(lon - dLon); cx <= cell(lon + dLon); cx++) {
+                List<ParcelRef> c = g.cells().get(key(cy, cx));
+                if (c != null) res.addAll(c);
+            }
+        return res;
+    }
+
+    private static long cell(double deg) { return (long) Math.floor(deg / CELL_DEG); }
+
+    private static long key(long cy, long cx) { return (cy << 32) ^ (cx & 0xffffffffL); }
+
+    /* ---------- atualizações incrementais ---------- */
+
+    /** Substitui as parcelas indexadas de uma folha de obra. */
+    public static synchronized void putWorksheet(long worksheetId, Collection<Entity> parcels) {
+        List<ParcelRef> refs = new ArrayList<>();
+        for (Entity p : parcels) {
+            ParcelRef r = refOf(worksheetId, p);
+            if (r != null) refs.add(r);
+        }
+        putWorksheetRefs(worksheetId, refs);
+    }
+
+    /** Idem, a partir de referências já calculadas (import em streaming). */
+    static synchronized void putWorksheetRefs(long worksheetId, List<ParcelRef> refs) {
+        Map<Long, List<ParcelRef>> byWs = new HashMap<>(grid.byWorksheet());
+        byWs.put(worksheetId, List.copyOf(refs));
+        publish(byWs);
+    }
+
+    public static synchronized void removeWorksheet(long worksheetId) {
+        if (!grid.byWorksheet().containsKey(worksheetId)) return;
+        Map<Long, List<ParcelRef>> byWs = new HashMap<>(grid.byWorksheet());
+        byWs.remove(worksheetId);
+        publish(byWs);
+    }
+
+    public static synchronized void removeParcels(long worksheetId, Set<Long> parcelIds) {
+        List<ParcelRef> current = grid.byWorksheet().get(worksheetId);
+        if (current == null || parcelIds.isEmpty()) return;
+        Map<Long, List<ParcelRef>> byWs = new HashMap<>(grid.byWorksheet());
+        byWs.put(worksheetId, current.stream().filter(r -> !parcelIds.contains(r.parcelId())).toList());
+        publish(byWs);
+    }
+
+    private static void publish(Map<Long, List<ParcelRef>> byWs) {
+        Map<Long, List<ParcelRef>> cells = new HashMap<>();
+        for (List<ParcelRef> refs : byWs.values())
+            for (ParcelRef r : refs)
+                cells.computeIfAbsent(key(cell(r.lat()), cell(r.lon())), k -> new ArrayList<>()).add(r);
+        grid = new Grid(cells, byWs);
+    }
+
+    static ParcelRef refOf(long worksheetId, Entity parcel) {
+        if (WorkSheetUtil.hasGeometryStats(parcel))            // pré-calculado no import
+            return new ParcelRef(worksheetId, parcel.getKey().getId(),
+                                 parcel.getDouble("centroidLat"), parcel.getDouble("centroidLon"),
+                                 parcel.getDouble("minLat"), parcel.getDouble("minLon"),
+                                 parcel.getDouble("maxLat"), parcel.getDouble("maxLon"));
+        if (!GeometryCodec.hasGeometry(parcel)) return null;
+        double[] c = GeoUtil.centroidAndBbox(GeometryCodec.geometryJson(parcel));
+        if (c == null) return null;
+        return new ParcelRef(worksheetId, parcel.getKey().getId(), c[0], c[1], c[2], c[3], c[4], c[5]);
+    }
+
+    /* ---------- carga ---------- */
+
+    public static void start() {
+        BackgroundJobs.submit("parcel-index-load", ParcelSpatialIndex::ensureLoaded);
+        BackgroundJobs.every("parcel-index-reload", RELOAD_MINUTES, RELOAD_MINUTES,
+                             TimeUnit.MINUTES, ParcelSpatialIndex::reload);
+    }
+
+    /** Bloqueia até a primeira carga terminar. */
+    private static void ensureLoaded() {
+        if (loaded) return;
+        synchronized (ParcelSpatialIndex.class) {
+            if (!loaded) reload();
+        }
+    }
+
+    /** Reconstrói o índice a partir de todas as parcelas do Datastore. */
+    public static synchronized void reload() {
+        Datastore ds = DatastoreProvider.get();
+        long t0 = System.currentTimeMillis();
+
+        Map<Long, List<ParcelRef>> byWs = new HashMap<>();
+        Query<Entity> q = Query.newEntityQueryBuilder().setKind("Parcel").build();
+        ds.run(q).forEachRemaining(p -> {
+            Key parent = p.getKey().getParent();
+            if (parent == null || parent.getId() == null) return;
+            ParcelRef r = refOf(parent.getId(), p);
+            if (r != null) byWs.computeIfAbsent(parent.getId(), k -> new ArrayList<>()).add(r);
+        });
+        /* parcelas de imports em modo job por terminar: a folha ainda não existe */
+        int before = byWs.size();
+        byWs.keySet().retainAll(WorkSheetUtil.existingWorksheets(ds, byWs.keySet()));
+        byWs.replaceAll((k, v) -> List.copyOf(v));
+
+        publish(byWs);
+        loaded = true;
+        System.out.println("[PARCEL-INDEX] " + size() + " parcelas indexadas em "
+                           + (System.currentTimeMillis() - t0) + " ms"
+                           + (before > byWs.size() ? " (" + (before - byWs.size()) + " folhas sem WorkSheet ignoradas)." : "."));
+    }
+}
@@ -1,27 +1,111 @@
 package pt.unl.fct.di.apdc.trailblaze.util;
 
 import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Blacklist de JWTs revogados (kind «JwtBlacklist»).
+ *
+ *  Mantém em memória o conjunto exato jti → exp dos tokens revogados ainda
+ *  não expirados, pelo que {@link #isBlacklisted} não faz I/O:
+ *   • carregado no arranque (ou no primeiro uso) a partir do Datastore
+ *   • atualizado localmente em {@link #blacklist}
+ *   • ressincronizado periodicamente para apanhar revogações de outras
+ *     instâncias; as entradas já expiradas são descartadas na mesma passagem
+ */
 public final class TokenBlacklistUtil {
 
     private static final Datastore datastore =
-            DatastoreOptions.getDefaultInstance().getService();
+            DatastoreProvider.get();
+
+    private static final String KIND = "JwtBlacklist";
+
+    /** Intervalo de ressincronização com o Datastore (segundos). */
+    private static final long REFRESH_SECONDS =
+            BackgroundJobs.longProperty("trailblaze.blacklist.refreshSeconds", 30);
+
+    private static final Map<String, Long> REVOKED = new ConcurrentHashMap<>();
+    private static volatile boolean loaded = false;
+    private static volatile long    lastAttempt;
+    private static final long RETRY_MS = 5_000;
 
     private TokenBlacklistUtil() { }
 
 
     public static void blacklist(String jti, long expMillis) {
-        Key key = datastore.newKeyFactory().setKind("JwtBlacklist").newKey(jti);
+        Key key = datastore.newKeyFactory().setKind(KIND).newKey(jti);
         datastore.put(Entity.newBuilder(key).set("exp", expMillis).build());
+        REVOKED.put(jti, expMillis);
+        JwtUtil.invalidate(jti);                    // não servir mais da cache
     }
 
 
+    /** {@code true} se o token foi revogado e ainda não expirou. */
     public static boolean isBlacklisted(String jti) {
-    	   Entity e = datastore.get(datastore.newKeyFactory().setKind("JwtBlacklist").newKey(jti));
-    	    if (e == null) return false;
+        if (jti == null) return false;
+        ensureLoaded();
+
+        Long exp = REVOKED.get(jti);
+        if (exp == null) return false;              // caso comum – sem I/O
+
+        if (exp <= System.currentTimeMillis()) {    // já expirou: o token é rejeitado pelo parser
+            REVOKED.remove(jti, exp);
+            return false;
+        }
+        return true;
+    }
+
+    /* ---------- sincronização ---------- */
+
+    /** Carrega o índice e agenda a ressincronização periódica. */
+    public static void start() {
+        BackgroundJobs.every("blacklist-sync", REFRESH_SECONDS, REFRESH_SECONDS,
+                             TimeUnit.SECONDS, TokenBlacklistUtil::refresh);
+        ensureLoaded();
+    }
+
+    /**
+     * Sem o carregamento inicial serve o que já houver em memória (revogações
+     * locais): uma falha do Datastore não pode tornar todos os tokens inválidos.
+     * Nova tentativa no máximo a cada {@link #RETRY_MS}.
+     */
+    private static void ensureLoaded() {
+        if (loaded) return;
+        long now = System.currentTimeMillis();
+        if (now - lastAttempt < RETRY_MS) return;
+        synchronized (TokenBlacklistUtil.class) {
+            if (loaded || now - lastAttempt < RETRY_MS) return;
+            lastAttempt = now;
+            try {
+                refresh();
+            } catch (DatastoreException e) {
+                System.err.println("[BLACKLIST] Falha ao carregar (a usar o índice em memória): " + e.getMessage());
+            }
+        }
+    }
+
+    /** Relê os revogados ainda válidos e descarta os expirados. */
+    static void refresh() {
+        long now = System.currentTimeMillis();
+
+        Query<Entity> q = Query.newEntityQueryBuilder()
+                .setKind(KIND)
+                .setFilter(PropertyFilter.gt("exp", now))
+                .build();
+
+        Map<String, Long> fresh = new ConcurrentHashMap<>();
+        datastore.run(q).forEachRemaining(e -> fresh.put(e.getKey().getName(), e.getLong("exp")));
+
+        REVOKED.putAll(fresh);
+        REVOKED.entrySet().removeIf(en -> en.getValue() <= now);
+        loaded = true;
+    }
 
-    	    long exp = e.getLong("exp");               // ← usa getLong
-    	    // só é inválido se **já** passou
-    	    return exp <= System.currentTimeMillis();
+    public static int size() {
+        return REVOKED.size();
     }
-}
\ No newline at end of file
+}
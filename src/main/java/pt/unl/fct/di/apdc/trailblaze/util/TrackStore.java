@@ -0,0 +1,347 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
+import com.google.cloud.datastore.StructuredQuery.OrderBy;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Trajetos GPS das atividades, guardados em segmentos (append-only).
+ *
+ *  Cada «TrackSegment» é filho da Activity (id = nº de sequência + 1) e guarda
+ *  até {@link #SEGMENT_SIZE} amostras num Blob comprimido:
+ *  <pre>
+ *   codec 2: Deflate( varint n, depois por amostra
+ *              zigzag Δts (ms), zigzag Δlat, zigzag Δlon (ponto fixo 1e-7),
+ *              varint alt (0 = desconhecida, senão zigzag Δalt em dm + 1) )
+ *  </pre>
+ *  Um append só lê/reescreve o último segmento, e atualiza na mesma transação
+ *  o resumo guardado na própria Activity (ver {@link Summary}).
+ */
+public final class TrackStore {
+
+    public static final String KIND = "TrackSegment";
+
+    public static final int SEGMENT_SIZE = 512;
+
+    private static final long CODEC_DELTA  = 2;
+    private static final double SCALE      = 1e7;
+
+    private static final Datastore  DS     = DatastoreProvider.get();
+    private static final KeyFactory ACT_KF = DS.newKeyFactory().setKind("Activity");
+
+    /** Amostra de posição. {@code alt} é {@link Float#NaN} quando desconhecida. */
+    public record Sample(long ts, double lat, double lon, float alt) {
+
+        public boolean isValid() {
+            return ts > 0
+                && Double.isFinite(lat) && lat >= -90  && lat <= 90
+                && Double.isFinite(lon) && lon >= -180 && lon <= 180;
+        }
+    }
+
+    private TrackStore() { }
+
+    public static Key activityKey(String activityId) {
+        return ACT_KF.newKey(activityId);
+    }
+
+    /* ---------- escrita ---------- */
+
+    /**
+     * Acrescenta amostras (já validadas e ordenadas por ts) ao trajeto da atividade.
+     * Amostras com ts ≤ à última gravada são ignoradas (reenvios do telemóvel).
+     *
+     * @return nº de amostras efetivamente gravadas
+     */
+    public static int append(Key activityKey, List<Sample> samples) {
+        Transaction txn = DS.newTransaction();
+        try {
+            Entity act = txn.get(activityKey);
+            if (act == null) throw new IllegalArgumentException("Atividade não encontrada.");
+
+            Summary sum      = Summary.of(act);
+            long    segments = act.contains("trackSegments") ? act.getLong("trackSegments") : 0;
+
+            /* reabre o último segmento se ainda tiver espaço */
+            List<Sample> open = new ArrayList<>();
+            long seq = segments;
+            if (segments > 0) {
+                Entity last = txn.get(segmentKey(activityKey, segments - 1));
+                if (last != null && last.getLong("count") < SEGMENT_SIZE) {
+                    open.addAll(decode(last));
+                    seq = segments - 1;
+                }
+            }
+
+            int added = 0;
+            List<Entity> toPut = new ArrayList<>();
+            for (Sample s : samples) {
+                if (s.ts() <= sum.lastTs()) continue;
+                open.add(s);
+                sum = sum.plus(s);
+                added++;
+                if (open.size() == SEGMENT_SIZE) {
+                    toPut.add(segment(activityKey, seq++, open));
+                    open = new ArrayList<>();
+                }
+            }
+            if (added == 0) {
+                txn.rollback();
+                return 0;
+            }
+            if (!open.isEmpty()) toPut.add(segment(activityKey, seq++, open));
+
+            Entity.Builder b = Entity.newBuilder(act).set("trackSegments", seq);
+            sum.writeTo(b);
+            toPut.add(b.build());
+            txn.put(toPut.toArray(new Entity[0]));
+            txn.commit();
+            return added;
+        } finally {
+            if (txn.isActive()) txn.rollback();
+        }
+    }
+
+    private static Key segmentKey(Key activityKey, long seq) {
+        return Key.newBuilder(activityKey, KIND, seq + 1).build();     // ids começam em 1
+    }
+
+    private static Entity segment(Key activityKey, long seq, List<Sample> samples) {
+        return Entity.newBuilder(segmentKey(activityKey, seq))
+                     .set("firstTs", samples.get(0).ts())
+                     .set("lastTs", samples.get(samples.size() - 1).ts())
+                     .set("count", unindexed(samples.size()))
+                     .set("codec", unindexed(CODEC_DELTA))
+                     .set("data", BlobValue.newBuilder(Blob.copyFrom(encode(samples)))
+                                           .setExcludeFromIndexes(true).build())
+                     .build();
+    }
+
+    private static LongValue unindexed(long v) {
+        return LongValue.newBuilder(v).setExcludeFromIndexes(true).build();
+    }
+
+    /* ---------- codec ---------- */
+
+    static byte[] encode(List<Sample> samples) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(samples.size() * 12);
+        writeVarint(raw, samples.size());
+        long ts = 0, lat = 0, lon = 0, alt = 0;
+        for (Sample s : samples) {
+            long la = Math.round(s.lat() * SCALE), lo = Math.round(s.lon() * SCALE);
+            writeVarint(raw, zigzag(s.ts() - ts));
+            writeVarint(raw, zigzag(la - lat));
+            writeVarint(raw, zigzag(lo - lon));
+            ts = s.ts();  lat = la;  lon = lo;
+            if (Float.isNaN(s.alt())) {
+                writeVarint(raw, 0);
+            } else {
+                long dm = Math.round(s.alt() * 10.0);
+                writeVarint(raw, zigzag(dm - alt) + 1);
+                alt = dm;
+            }
+        }
+
+        Deflater def = new Deflater(Deflater.BEST_SPEED);
+        try {
+            def.setInput(raw.toByteArray());
+            def.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.size() / 2 + 16);
+            byte[] buf = new byte[4096];
+            while (!def.finished()) out.write(buf, 0, def.deflate(buf));
+            return out.toByteArray();
+        } finally {
+            def.end();
+        }
+    }
+
+    static List<Sample> decodeDelta(byte[] data) {
+        ByteBuffer in;
+        Inflater inf = new Inflater();
+        try {
+            inf.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buf = new byte[4096];
+            while (!inf.finished()) {
+                int n = inf.inflate(buf);
+                if (n == 0 && (inf.needsInput() || inf.needsDictionary()))
+                    throw new IllegalArgumentException("Segmento de trajeto truncado");
+                out.write(buf, 0, n);
+            }
+            in = ByteBuffer.wrap(out.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Segmento de trajeto corrompido", e);
+        } finally {
+            inf.end();
+        }
+
+        int n = (int) readVarint(in);
+        List<Sample> list = new ArrayList<>(n);
+        long ts = 0, lat = 0, lon = 0, alt = 0;
+        for (int i = 0; i < n; i++) {
+            ts  += unzigzag(readVarint(in));
+            lat += unzigzag(readVarint(in));
+            lon += unzigzag(readVarint(in));
+            long a = readVarint(in);
+            float altM = Float.NaN;
+            if (a != 0) {
+                alt += unzigzag(a - 1);
+                altM = alt / 10f;
+            }
+            list.add(new Sample(ts, lat / SCALE, lon / SCALE, altM));
+        }
+        return list;
+    }
+
+    private static long zigzag(long v)   { return (v << 1) ^ (v >> 63); }
+    private static long unzigzag(long v) { return (v >>> 1) ^ -(v & 1); }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IllegalArgumentException("Varint malformado");
+    }
+
+    /* ---------- leitura ---------- */
+
+    /** Todas as amostras da atividade, por ordem temporal. */
+    public static List<Sample> read(Key activityKey) {
+        Query<Entity> q = Query.newEntityQueryBuilder()
+                .setKind(KIND)
+                .setFilter(PropertyFilter.hasAncestor(activityKey))
+                .setOrderBy(OrderBy.asc("__key__"))              // ids = seq + 1
+                .build();
+
+        List<Sample> out = new ArrayList<>();
+        DS.run(q).forEachRemaining(seg -> out.addAll(decode(seg)));
+        return out;
+    }
+
+    /**
+     * Amostras com {@code from ≤ ts ≤ to}, lendo só os segmentos que intersetam
+     * o intervalo (query por {@code lastTs ≥ from}, parada no primeiro {@code firstTs > to}).
+     */
+    public static List<Sample> readRange(Key activityKey, long from, long to) {
+        Query<Entity> q = Query.newEntityQueryBuilder()
+                .setKind(KIND)
+                .setFilter(CompositeFilter.and(PropertyFilter.hasAncestor(activityKey),
+                                               PropertyFilter.ge("lastTs", from)))
+                .setOrderBy(OrderBy.asc("lastTs"))
+                .build();
+
+        List<Sample> out = new ArrayList<>();
+        QueryResults<Entity> res = DS.run(q);
+        while (res.hasNext()) {
+            Entity seg = res.next();
+            if (seg.getLong("firstTs") > to) break;
+            for (Sample s : decode(seg))
+                if (s.ts() >= from && s.ts() <= to) out.add(s);
+        }
+        return out;
+    }
+
+    /** Amostras dos segmentos {@code fromSeq..toSeq} (inclusive), por leitura direta das chaves. */
+    public static List<Sample> readSegments(Key activityKey, long fromSeq, long toSeq) {
+        List<Key> keys = new ArrayList<>();
+        for (long seq = Math.max(0, fromSeq); seq <= toSeq && keys.size() < 500; seq++)
+            keys.add(segmentKey(activityKey, seq));
+
+        List<Sample> out = new ArrayList<>();
+        for (Entity seg : DS.fetch(keys.toArray(new Key[0])))      // mantém a ordem das chaves
+            if (seg != null) out.addAll(decode(seg));
+        return out;
+    }
+
+    private static List<Sample> decode(Entity segment) {
+        if (segment.getLong("codec") != CODEC_DELTA)
+            throw new IllegalArgumentException("Codec de segmento desconhecido: " + segment.getLong("codec"));
+        return decodeDelta(segment.getBlob("data").toByteArray());
+    }
+
+    /** Chaves de todos os segmentos (para remoção em cascata). */
+    public static List<Key> segmentKeys(Key activityKey) {
+        Query<Key> q = Query.newKeyQueryBuilder()
+                .setKind(KIND)
+                .setFilter(PropertyFilter.hasAncestor(activityKey))
+                .build();
+        List<Key> keys = new ArrayList<>();
+        DS.run(q).forEachRemaining(keys::add);
+        return keys;
+    }
+
+    /* ---------- resumo guardado na Activity ---------- */
+
+    /**
+     * Estatísticas do trajeto mantidas incrementalmente em cada append,
+     * para que as listagens não precisem de ler os segmentos.
+     */
+    public record Summary(long points, long firstTs, long lastTs,
+                          double lastLat, double lastLon,
+                          double minLat, double minLon, double maxLat, double maxLon,
+                          double distanceM) {
+
+        static final Summary EMPTY = new Summary(0, 0, 0, 0, 0,
+                Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE, 0);
+
+        public long durationMs() { return points == 0 ? 0 : lastTs - firstTs; }
+
+        Summary plus(Sample s) {
+            double d = points == 0 ? 0
+                     : GeoUtil.haversineKm(lastLat, lastLon, s.lat(), s.lon()) * 1000.0;
+            return new Summary(points + 1, points == 0 ? s.ts() : firstTs, s.ts(),
+                               s.lat(), s.lon(),
+                               Math.min(minLat, s.lat()), Math.min(minLon, s.lon()),
+                               Math.max(maxLat, s.lat()), Math.max(maxLon, s.lon()),
+                               distanceM + d);
+        }
+
+        /** Resumo gravado na atividade (vazio se ainda não tiver trajeto). */
+        public static Summary of(Entity act) {
+            if (!act.contains("trackPoints") || act.getLong("trackPoints") == 0) return EMPTY;
+            return new Summary(act.getLong("trackPoints"),
+                               act.getLong("trackFirstTs"),   act.getLong("trackLastTs"),
+                               act.getDouble("trackLastLat"), act.getDouble("trackLastLon"),
+                               act.getDouble("trackMinLat"),  act.getDouble("trackMinLon"),
+                               act.getDouble("trackMaxLat"),  act.getDouble("trackMaxLon"),
+                               act.getDouble("trackDistanceM"));
+        }
+
+        void writeTo(Entity.Builder b) {
+            b.set("trackPoints", points)
+             .set("trackFirstTs", firstTs)
+             .set("trackLastTs", lastTs)
+             .set("trackLastLat",   unindexedD(lastLat))
+             .set("trackLastLon",   unindexedD(lastLon))
+             .set("trackMinLat",    unindexedD(minLat))
+             .set("trackMinLon",    unindexedD(minLon))
+             .set("trackMaxLat",    unindexedD(maxLat))
+             .set("trackMaxLon",    unindexedD(maxLon))
+             .set("trackDistanceM", unindexedD(distanceM));
+        }
+
+        private static DoubleValue unindexedD(double v) {
+            return DoubleValue.newBuilder(v).setExcludeFromIndexes(true).build();
+        }
+    }
+}
@@ -2,10 +2,7 @@ package pt.unl.fct.di.apdc.trailblaze.util;
 
 import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.*;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
-import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -23,15 +20,19 @@ public class Trail {
     public TrailVisibility visibility;
     public TrailStatus status; // apenas para trilhos privados
     public Date createdAt;
-    public List<TrailPoint> points;
+    public TrailTrack points;
     public List<TrailObservation> observations; // múltiplas observações para trilhos públicos
+    public int lod;                             // nível de detalhe de «points» (0 = original)
+    public int totalPoints;                     // nº de pontos do trilho original
+    public double distanceM;                    // calculados sobre o trilho original
+    public double elevationGainM;
 
     public Trail() {
         this.id = UUID.randomUUID().toString();
         this.visibility = TrailVisibility.PRIVATE;
         this.status = TrailStatus.ACTIVE; // apenas relevante para trilhos privados
         this.createdAt = new Date();
-        this.points = new ArrayList<>();
+        this.points = new TrailTrack();
         this.observations = new ArrayList<>();
     }
 
@@ -77,24 +78,26 @@ public class Trail {
                  builder.set("status", status.name());
              }
 
-             // Serializar pontos como JSON
-             if (points != null && !points.isEmpty()) {
-                 String pointsJson = new Gson().toJson(points);
-                 builder.set("points", StringValue.newBuilder(pointsJson)
-                         .setExcludeFromIndexes(true).build());
-             } else {
-                 builder.set("points", StringValue.newBuilder("[]")
+             // Serializar pontos (ver TrailCodec)
+             builder.set("points", StringValue.newBuilder(TrailCodec.writePoints(points))
+                     .setExcludeFromIndexes(true).build());
+             // Versões simplificadas (LOD 1..n) para mapas e listagens
+             TrailTrack track = points != null ? points : new TrailTrack();
+             List<TrailTrack> levels = TrailSimplifier.levels(track);
+             for (int i = 0; i < levels.size(); i++) {
+                 builder.set(TrailSimplifier.property(i + 1),
+                         StringValue.newBuilder(TrailCodec.writePoints(levels.get(i)))
                          .setExcludeFromIndexes(true).build());
              }
+             builder.set("pointCount", LongValue.newBuilder(track.size())
+                     .setExcludeFromIndexes(true).build());
+             builder.set("distanceM", DoubleValue.newBuilder(track.distanceM())
+                     .setExcludeFromIndexes(true).build());
+             builder.set("elevationGainM", DoubleValue.newBuilder(track.elevationGainM())
+                     .setExcludeFromIndexes(true).build());
              // Serializar observações como JSON
-             if (observations != null && !observations.isEmpty()) {
-                 String observationsJson = new Gson().toJson(observations);
-                 builder.set("observations", StringValue.newBuilder(observationsJson)
-                         .setExcludeFromIndexes(true).build());
-             } else {
-                 builder.set("observations", StringValue.newBuilder("[]")
-                         .setExcludeFromIndexes(true).build());
-    }
+             builder.set("observations", StringValue.newBuilder(TrailCodec.writeObservations(observations))
+                     .setExcludeFromIndexes(true).build());
              return builder.build();
         }catch (Exception e) {
             // Lida com erros inesperados (ou re-lança)
@@ -104,9 +107,17 @@ public class Trail {
              
 
     /**
-     * Cria Trail a partir de Entity do Datastore
+     * Cria Trail a partir de Entity do Datastore (pontos originais).
      */
     public static Trail fromEntity(Entity entity) {
+        return fromEntity(entity, 0);
+    }
+
+    /**
+     * Cria Trail com os pontos do nível de detalhe pedido (cai para o original
+     * se o nível não existir). Só para leitura – não voltar a gravar com lod &gt; 0.
+     */
+    public static Trail fromEntity(Entity entity, int lod) {
         Trail trail = new Trail();
         trail.id = entity.getKey().getName();
         trail.name = entity.getString("name");
@@ -122,34 +133,33 @@ public class Trail {
         }
 
         // Deserializar pontos do JSON
-        String pointsJson = entity.getString("points");
-        if (pointsJson != null && !pointsJson.isEmpty() && !pointsJson.equals("[]")) {
-            try {
-                Type pointListType = new TypeToken<List<TrailPoint>>(){}.getType();
-                trail.points = new Gson().fromJson(pointsJson, pointListType);
-                if (trail.points == null) {
-                    trail.points = new ArrayList<>();
-                }
-            } catch (Exception e) {
-                trail.points = new ArrayList<>();
-            }
-        } else {
-            trail.points = new ArrayList<>();
+        String prop = TrailSimplifier.property(lod);
+        if (!entity.contains(prop)) {
+            prop = "points";
+            lod  = 0;
+        }
+        trail.lod = lod;
+        try {
+            trail.points = TrailCodec.readPoints(entity.getString(prop));
+        } catch (Exception e) {
+            trail.points = new TrailTrack();
+        }
+
+        trail.totalPoints = entity.contains("pointCount")
+                ? (int) entity.getLong("pointCount")
+                : (lod == 0 ? trail.points.size() : 0);
+        if (entity.contains("distanceM")) {
+            trail.distanceM      = entity.getDouble("distanceM");
+            trail.elevationGainM = entity.getDouble("elevationGainM");
+        } else if (lod == 0) {
+            trail.distanceM      = trail.points.distanceM();
+            trail.elevationGainM = trail.points.elevationGainM();
         }
 
         // Deserializar observações do JSON
-        String observationsJson = entity.getString("observations");
-        if (observationsJson != null && !observationsJson.isEmpty() && !observationsJson.equals("[]")) {
-            try {
-                Type obsListType = new TypeToken<List<TrailObservation>>(){}.getType();
-                trail.observations = new Gson().fromJson(observationsJson, obsListType);
-                if (trail.observations == null) {
-                    trail.observations = new ArrayList<>();
-                }
-            } catch (Exception e) {
-                trail.observations = new ArrayList<>();
-            }
-        } else {
+        try {
+            trail.observations = TrailCodec.readObservations(entity.getString("observations"));
+        } catch (Exception e) {
             trail.observations = new ArrayList<>();
         }
 
@@ -0,0 +1,206 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ *  Serialização dos pontos ({@link TrailTrack}) e observações de um {@link Trail}.
+ *
+ *   • leitores/escritores Jackson partilhados e pré-configurados (thread-safe),
+ *     em vez de um {@code Gson} e um {@code TypeToken} novos por chamada
+ *   • pontos em dois formatos, detetados na leitura:
+ *       – objetos   {@code [{"latitude":…,"longitude":…,"timestamp":…,"altitude":…}, …]}
+ *       – compacto  {@code {"packed":[lat0, lon0, ts0, alt0|null, lat1, …]}}
+ *     o formato de escrita vem de {@code -Dtrailblaze.trail.points.format}
+ *     ({@code json} por omissão, ou {@code packed})
+ *   • as datas das observações passam a epoch ms; as gravadas pelo Gson
+ *     ({@code "Jun 1, 2025, 10:00:00 AM"}) continuam legíveis
+ */
+public final class TrailCodec {
+
+    public enum Format { JSON, PACKED }
+
+    private static final String PACKED_FIELD = "packed";
+    private static final int    STRIDE       = 4;            // lat, lon, ts, alt
+
+    /* como o Gson fazia: só campos (isValid() não é propriedade), sem nulos */
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+            .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.PUBLIC_ONLY)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .registerModule(new SimpleModule("trail-dates")
+                    .addDeserializer(Date.class, new LenientDateDeserializer()));
+
+    private static final JsonFactory JSON = MAPPER.getFactory();
+
+    private static final ObjectReader POINTS_READER = MAPPER.readerFor(TrailTrack.class);
+    private static final ObjectWriter POINTS_WRITER = MAPPER.writerFor(TrailTrack.class);
+    private static final ObjectReader OBSERVATIONS_READER =
+            MAPPER.readerFor(new TypeReference<List<TrailObservation>>() { });
+    private static final ObjectWriter OBSERVATIONS_WRITER =
+            MAPPER.writerFor(new TypeReference<List<TrailObservation>>() { });
+
+    private static final Format WRITE_FORMAT = writeFormat();
+
+    private TrailCodec() { }
+
+    private static Format writeFormat() {
+        String v = System.getProperty("trailblaze.trail.points.format", "json");
+        try {
+            return Format.valueOf(v.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[TRAIL] formato de pontos desconhecido '" + v + "', a usar json.");
+            return Format.JSON;
+        }
+    }
+
+    /* ---------- pontos ---------- */
+
+    public static String writePoints(TrailTrack points) {
+        return writePoints(points, WRITE_FORMAT);
+    }
+
+    public static String writePoints(TrailTrack points, Format format) {
+        if (points == null || points.isEmpty()) return "[]";
+        try {
+            return format == Format.PACKED ? writePacked(points) : POINTS_WRITER.writeValueAsString(points);
+        } catch (IOException e) {
+            throw new IllegalStateException("Falha ao serializar pontos", e);
+        }
+    }
+
+    /** Lê qualquer um dos formatos; nunca devolve {@code null}. */
+    public static TrailTrack readPoints(String json) throws IOException {
+        if (json == null || json.isEmpty() || json.equals("[]")) return new TrailTrack();
+        if (json.charAt(0) == '{') return readPacked(json);
+        TrailTrack pts = POINTS_READER.readValue(json);
+        return pts != null ? pts : new TrailTrack();
+    }
+
+    private static String writePacked(TrailTrack points) throws IOException {
+        StringWriter sw = new StringWriter(points.size() * 48);
+        try (JsonGenerator g = JSON.createGenerator(sw)) {
+            g.writeStartObject();
+            g.writeArrayFieldStart(PACKED_FIELD);
+            for (int i = 0; i < points.size(); i++) {
+                g.writeNumber(points.lat(i));
+                g.writeNumber(points.lon(i));
+                g.writeNumber(points.ts(i));
+                if (points.hasAlt(i)) g.writeNumber(points.alt(i));
+                else                  g.writeNull();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+        return sw.toString();
+    }
+
+    private static TrailTrack readPacked(String json) throws IOException {
+        TrailTrack out = new TrailTrack();
+        try (JsonParser p = JSON.createParser(json)) {
+            if (p.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("Pontos compactos: objeto esperado");
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                if (!PACKED_FIELD.equals(p.currentName())) {
+                    p.nextToken();
+                    p.skipChildren();
+                    continue;
+                }
+                if (p.nextToken() != JsonToken.START_ARRAY)
+                    throw new IOException("Pontos compactos: array esperado");
+                while (p.nextToken() != JsonToken.END_ARRAY) {
+                    double lat = p.getDoubleValue();
+                    p.nextToken();
+                    double lon = p.getDoubleValue();
+                    p.nextToken();
+                    long ts = p.getLongValue();
+                    JsonToken alt = p.nextToken();
+                    if (alt == JsonToken.END_ARRAY)
+                        throw new IOException("Pontos compactos: múltiplo de " + STRIDE + " esperado");
+                    out.add(lat, lon, ts, alt == JsonToken.VALUE_NULL ? Float.NaN : p.getFloatValue());
+                }
+            }
+        }
+        return out;
+    }
+
+    /* ---------- observações ---------- */
+
+    public static String writeObservations(List<TrailObservation> observations) {
+        if (observations == null || observations.isEmpty()) return "[]";
+        try {
+            return OBSERVATIONS_WRITER.writeValueAsString(observations);
+        } catch (IOException e) {
+            throw new IllegalStateException("Falha ao serializar observações", e);
+        }
+    }
+
+    public static List<TrailObservation> readObservations(String json) throws IOException {
+        if (json == null || json.isEmpty() || json.equals("[]")) return new ArrayList<>();
+        List<TrailObservation> obs = OBSERVATIONS_READER.readValue(json);
+        return obs != null ? obs : new ArrayList<>();
+    }
+
+    /* ---------- datas: epoch ms, ISO-8601 ou o formato por omissão do Gson ---------- */
+
+    private static final class LenientDateDeserializer extends StdDeserializer<Date> {
+
+        LenientDateDeserializer() { super(Date.class); }
+
+        @Override
+        public Date deserialize(JsonParser p, DeserializationContext ctx) throws IOException {
+            if (p.currentToken() == JsonToken.VALUE_NUMBER_INT) return new Date(p.getLongValue());
+
+            // JDK 20+ escreve U+202F antes de AM/PM
+            String s = p.getText().trim().replace('\u202F', ' ').replace('\u00A0', ' ');
+            if (s.isEmpty()) return null;
+            for (DateFormat f : gsonFormats()) {
+                try {
+                    return f.parse(s);
+                } catch (ParseException ignored) { }
+            }
+            try {
+                return new StdDateFormat().parse(s);
+            } catch (ParseException e) {
+                return (Date) ctx.handleWeirdStringValue(Date.class, s, "Data não reconhecida");
+            }
+        }
+
+        /* DateFormat não é thread-safe: instâncias por chamada (só dados antigos chegam aqui) */
+        private static DateFormat[] gsonFormats() {
+            DateFormat[] fs = {
+                DateFormat.getDateTimeInstance(DateFormat.DEFAULT, DateFormat.DEFAULT, Locale.US),
+                new SimpleDateFormat("MMM d, yyyy, h:mm:ss a", Locale.US),
+                new SimpleDateFormat("MMM d, yyyy h:mm:ss a", Locale.US),
+                DateFormat.getDateTimeInstance(DateFormat.DEFAULT, DateFormat.DEFAULT)
+            };
+            for (DateFormat f : fs) f.setLenient(true);
+            return fs;
+        }
+    }
+}
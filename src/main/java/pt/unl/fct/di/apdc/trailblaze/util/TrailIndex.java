@@ -0,0 +1,140 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Acesso a trilhos por id.
+ *
+ *  Um «Trail» pode ter (ou não) uma WorkSheet como ancestral, por isso o id
+ *  sozinho não chega para construir a chave. O kind «TrailIndex» guarda
+ *  trailId → chave completa e é mantido em {@link #put} / {@link #delete}.
+ *
+ *  Há ainda uma pequena LRU de entidades, com validade curta, usada apenas
+ *  nas leituras ({@link #findCached}); as alterações leem sempre do Datastore.
+ */
+public final class TrailIndex {
+
+    public static final String KIND         = "TrailIndex";
+    public static final String MIGRATION_ID = "trail-index-v1";
+
+    private static final Datastore  DS       = DatastoreProvider.get();
+    private static final KeyFactory INDEX_KF = DS.newKeyFactory().setKind(KIND);
+    private static final KeyFactory TRAIL_KF = DS.newKeyFactory().setKind("Trail");
+
+    private static final int  CACHE_SIZE   = 256;
+    private static final long CACHE_TTL_MS = 30_000L;
+
+    private record Cached(Entity entity, long loadedAt) { }
+
+    private static final Map<String, Cached> CACHE =
+            new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private TrailIndex() { }
+
+    /* ---------- leitura ---------- */
+
+    /** Trilho com este id, lido do Datastore, ou {@code null}. */
+    public static Entity find(String trailId) {
+        if (trailId == null || trailId.isBlank()) return null;
+
+        Entity idx = DS.get(INDEX_KF.newKey(trailId));
+        if (idx != null) {
+            Entity trail = DS.get(idx.getKey("trailKey"));
+            if (trail == null) DS.delete(idx.getKey());        // entrada órfã
+            return remember(trailId, trail);
+        }
+
+        Entity trail = DS.get(TRAIL_KF.newKey(trailId));       // trilho sem worksheet
+        if (trail == null && !Migrations.isDone(MIGRATION_ID))
+            trail = scanFor(trailId);
+        if (trail != null)
+            DS.put(entry(trail.getKey()));                     // repara o índice
+        return remember(trailId, trail);
+    }
+
+    /** Como {@link #find}, mas pode devolver uma cópia com até 30 s. Só para leituras. */
+    public static Entity findCached(String trailId) {
+        if (trailId == null) return null;
+        synchronized (CACHE) {
+            Cached c = CACHE.get(trailId);
+            if (c != null && System.currentTimeMillis() - c.loadedAt() < CACHE_TTL_MS)
+                return c.entity();
+        }
+        return find(trailId);
+    }
+
+    /* ---------- escrita ---------- */
+
+    /** Grava o trilho e a respetiva entrada no índice. */
+    public static void put(Entity trail) {
+        DS.put(trail, entry(trail.getKey()));
+        remember(trail.getKey().getName(), trail);
+    }
+
+    public static void delete(Key trailKey) {
+        String id = trailKey.getName();
+        DS.delete(trailKey, INDEX_KF.newKey(id));
+        synchronized (CACHE) {
+            CACHE.remove(id);
+        }
+    }
+
+    private static Entity entry(Key trailKey) {
+        return Entity.newBuilder(INDEX_KF.newKey(trailKey.getName()))
+                     .set("trailKey", KeyValue.newBuilder(trailKey).setExcludeFromIndexes(true).build())
+                     .build();
+    }
+
+    private static Entity remember(String id, Entity trail) {
+        synchronized (CACHE) {
+            if (trail == null) CACHE.remove(id);
+            else               CACHE.put(id, new Cached(trail, System.currentTimeMillis()));
+        }
+        return trail;
+    }
+
+    /* ---------- backfill ---------- */
+
+    /** Pesquisa antiga (keys-only) – só enquanto o backfill não terminar. */
+    private static Entity scanFor(String trailId) {
+        KeyQuery q = Query.newKeyQueryBuilder().setKind("Trail").build();
+        QueryResults<Key> keys = DS.run(q);
+        while (keys.hasNext()) {
+            Key k = keys.next();
+            if (trailId.equals(k.getName())) return DS.get(k);
+        }
+        return null;
+    }
+
+    /** Cria as entradas do índice para todos os trilhos existentes. Idempotente. */
+    public static void backfill() {
+        KeyQuery q = Query.newKeyQueryBuilder().setKind("Trail").build();
+
+        List<Entity> batch = new ArrayList<>();
+        int total = 0;
+        QueryResults<Key> keys = DS.run(q);
+        while (keys.hasNext()) {
+            batch.add(entry(keys.next()));
+            if (batch.size() == 500) {
+                DS.put(batch.toArray(new Entity[0]));
+                total += batch.size();
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            DS.put(batch.toArray(new Entity[0]));
+            total += batch.size();
+        }
+        System.out.println("[MIGRATION] TrailIndex: " + total + " entradas.");
+    }
+}
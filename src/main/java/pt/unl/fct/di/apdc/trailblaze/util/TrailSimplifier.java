@@ -0,0 +1,166 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.google.cloud.datastore.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Níveis de detalhe (LOD) dos pontos de um trilho.
+ *
+ *   • LOD 0 é o trilho original («points»)
+ *   • LOD n (1..{@link #COARSEST}) é a simplificação Douglas-Peucker com a
+ *     tolerância {@code TOLERANCES_M[n-1]}, guardada em «pointsLod<i>n</i>»
+ *   • calculados na escrita ({@link Trail#toEntity}); as listagens usam o nível
+ *     mais grosseiro e o detalhe pede o nível com {@code ?lod=}
+ */
+public final class TrailSimplifier {
+
+    /** Tolerâncias (metros) de LOD 1, 2, 3. */
+    static final double[] TOLERANCES_M = { 5, 25, 100 };
+
+    public static final int    COARSEST     = TOLERANCES_M.length;
+    public static final String MIGRATION_ID = "trail-lod-v1";
+
+    /** Abaixo disto a simplificação não compensa – todos os níveis são o original. */
+    private static final int MIN_POINTS = 16;
+
+    static final double M_PER_DEG_LAT = 110_540.0;
+    static final double M_PER_DEG_LON = 111_320.0;
+
+    private TrailSimplifier() { }
+
+    public static String property(int lod) {
+        return lod == 0 ? "points" : "pointsLod" + lod;
+    }
+
+    /** Simplificação Douglas-Peucker (iterativa) com tolerância em metros. */
+    public static TrailTrack simplify(TrailTrack pts, double toleranceM) {
+        int n = pts.size();
+        if (n < 3) return pts;
+
+        /* projeção equiretangular local → metros */
+        double cosLat = Math.cos(GeoUtil.toRad(pts.lat(0)));
+        double[] x = new double[n], y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = pts.lon(i) * M_PER_DEG_LON * cosLat;
+            y[i] = pts.lat(i) * M_PER_DEG_LAT;
+        }
+
+        return pts.select(keepMask(x, y, toleranceM));
+    }
+
+    /**
+     * Douglas-Peucker sobre coordenadas já em metros: marca os pontos a manter
+     * (os extremos ficam sempre). Usado também por {@link GeometryNormalizer}.
+     */
+    static boolean[] keepMask(double[] x, double[] y, double toleranceM) {
+        int n = x.length;
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+        double tol2 = toleranceM * toleranceM;
+
+        int[] stack = new int[2 * n];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = n - 1;
+        while (sp > 0) {
+            int last  = stack[--sp];
+            int first = stack[--sp];
+            double maxD = -1;
+            int    idx  = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = segDist2(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (d > maxD) {
+                    maxD = d;
+                    idx  = i;
+                }
+            }
+            if (idx >= 0 && maxD > tol2) {
+                keep[idx] = true;
+                stack[sp++] = first;  stack[sp++] = idx;
+                stack[sp++] = idx;    stack[sp++] = last;
+            }
+        }
+
+        return keep;
+    }
+
+    /** Distância² do ponto (px,py) ao segmento (ax,ay)-(bx,by). */
+    private static double segDist2(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / len2));
+        double ex = ax + t * dx - px, ey = ay + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+
+    /** LODs 1..COARSEST do trilho (índice 0 = LOD 1). */
+    public static List<TrailTrack> levels(TrailTrack points) {
+        List<TrailTrack> levels = new ArrayList<>(COARSEST);
+        TrailTrack prev = points;
+        for (double tol : TOLERANCES_M) {
+            // cada nível parte do anterior – o DP é monótono na tolerância
+            prev = points.size() < MIN_POINTS ? points : simplify(prev, tol);
+            levels.add(prev);
+        }
+        return levels;
+    }
+
+    /* ---------- backfill ---------- */
+
+    /**
+     * Calcula os LODs dos trilhos gravados antes de existirem. Idempotente.
+     *
+     * Cada trilho é atualizado na sua própria transação, só com as
+     * propriedades novas (LODs e, se faltarem, contagem/distância/desnível):
+     * «points», observações, visibilidade e estado ficam como estão (uma
+     * edição concorrente não é revertida) e um trilho cujos pontos não se
+     * consigam ler é saltado em vez de gravado vazio.
+     */
+    public static void backfill() {
+        Datastore ds = DatastoreProvider.get();
+        Query<Key> q = Query.newKeyQueryBuilder().setKind("Trail").build();
+
+        int total = 0, skipped = 0;
+        QueryResults<Key> res = ds.run(q);
+        while (res.hasNext()) {
+            Key key = res.next();
+            Transaction txn = ds.newTransaction();
+            try {
+                Entity e = txn.get(key);
+                if (e == null || e.contains(property(COARSEST)) || !e.contains("points")) continue;
+
+                TrailTrack points;
+                try {
+                    points = TrailCodec.readPoints(e.getString("points"));
+                } catch (Exception ex) {
+                    System.err.println("[MIGRATION] Trail LOD: pontos ilegíveis em " + key.getName()
+                                     + ", trilho não alterado: " + ex.getMessage());
+                    skipped++;
+                    continue;
+                }
+
+                Entity.Builder b = Entity.newBuilder(e);
+                List<TrailTrack> levels = levels(points);
+                for (int i = 0; i < levels.size(); i++)
+                    b.set(property(i + 1), StringValue.newBuilder(TrailCodec.writePoints(levels.get(i)))
+                                                      .setExcludeFromIndexes(true).build());
+                /* sem estes, as listagens (LOD grosseiro) mostrariam 0 pontos / 0 m */
+                if (!e.contains("pointCount"))
+                    b.set("pointCount", LongValue.newBuilder(points.size()).setExcludeFromIndexes(true).build())
+                     .set("distanceM", DoubleValue.newBuilder(points.distanceM()).setExcludeFromIndexes(true).build())
+                     .set("elevationGainM", DoubleValue.newBuilder(points.elevationGainM()).setExcludeFromIndexes(true).build());
+                txn.put(b.build());
+                txn.commit();
+                total++;
+            } catch (Exception ex) {
+                System.err.println("[MIGRATION] Trail LOD: falha em " + key.getName() + ": " + ex.getMessage());
+                skipped++;
+            } finally {
+                if (txn.isActive()) txn.rollback();
+            }
+        }
+        System.out.println("[MIGRATION] Trail LOD: " + total + " trilhos, " + skipped + " saltados.");
+    }
+}
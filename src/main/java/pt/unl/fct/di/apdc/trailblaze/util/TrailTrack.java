@@ -0,0 +1,208 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *  Pontos de um trilho em colunas primitivas.
+ *
+ *   • {@code lat[] lon[] ts[] alt[]} paralelos + bitmap de presença da altitude
+ *     (~28 bytes/ponto, contra ~80 de um {@link TrailPoint} com {@code Double})
+ *   • validação em bloco, distância e ganho de elevação sem alocações
+ *   • JSON lido e escrito em streaming, com a mesma forma de sempre:
+ *     {@code [{"latitude":…,"longitude":…,"timestamp":…,"altitude":…}, …]}
+ */
+@JsonSerialize(using = TrailTrack.Serializer.class)
+@JsonDeserialize(using = TrailTrack.Deserializer.class)
+public final class TrailTrack {
+
+    private double[] lat;
+    private double[] lon;
+    private long[]   ts;
+    private float[]  alt;
+    private long[]   altPresent;                  // bit i → ponto i tem altitude
+    private int      size;
+
+    public TrailTrack() { this(16); }
+
+    public TrailTrack(int capacity) {
+        capacity   = Math.max(capacity, 1);
+        lat        = new double[capacity];
+        lon        = new double[capacity];
+        ts         = new long[capacity];
+        alt        = new float[capacity];
+        altPresent = new long[(capacity + 63) >>> 6];
+    }
+
+    /** @param altitude {@code NaN} se não houver altitude */
+    public void add(double latitude, double longitude, long timestamp, float altitude) {
+        if (size == lat.length) grow();
+        lat[size] = latitude;
+        lon[size] = longitude;
+        ts[size]  = timestamp;
+        alt[size] = altitude;
+        if (!Float.isNaN(altitude)) altPresent[size >>> 6] |= 1L << size;
+        size++;
+    }
+
+    private void grow() {
+        int cap = lat.length + (lat.length >> 1) + 1;
+        lat        = Arrays.copyOf(lat, cap);
+        lon        = Arrays.copyOf(lon, cap);
+        ts         = Arrays.copyOf(ts, cap);
+        alt        = Arrays.copyOf(alt, cap);
+        altPresent = Arrays.copyOf(altPresent, (cap + 63) >>> 6);
+    }
+
+    public int     size()           { return size; }
+    public boolean isEmpty()        { return size == 0; }
+    public double  lat(int i)       { return lat[i]; }
+    public double  lon(int i)       { return lon[i]; }
+    public long    ts(int i)        { return ts[i]; }
+    public boolean hasAlt(int i)    { return (altPresent[i >>> 6] & (1L << i)) != 0; }
+    /** {@code NaN} se o ponto não tiver altitude. */
+    public float   alt(int i)       { return hasAlt(i) ? alt[i] : Float.NaN; }
+
+    /* ---------- conversões ---------- */
+
+    public static TrailTrack of(List<TrailPoint> points) {
+        TrailTrack t = new TrailTrack(points == null ? 0 : points.size());
+        if (points != null)
+            for (TrailPoint p : points)
+                t.add(p.latitude, p.longitude, p.timestamp,
+                      p.altitude != null ? p.altitude.floatValue() : Float.NaN);
+        return t;
+    }
+
+    public List<TrailPoint> toPoints() {
+        List<TrailPoint> out = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            TrailPoint p = new TrailPoint();
+            p.latitude  = lat[i];
+            p.longitude = lon[i];
+            p.timestamp = ts[i];
+            p.altitude  = hasAlt(i) ? (double) alt[i] : null;
+            out.add(p);
+        }
+        return out;
+    }
+
+    /** Sub-trilho com os pontos marcados em {@code keep} (ordem preservada). */
+    public TrailTrack select(boolean[] keep) {
+        int n = 0;
+        for (int i = 0; i < size; i++) if (keep[i]) n++;
+        TrailTrack t = new TrailTrack(n);
+        for (int i = 0; i < size; i++)
+            if (keep[i]) t.add(lat[i], lon[i], ts[i], alt(i));
+        return t;
+    }
+
+    /* ---------- validação e métricas ---------- */
+
+    /** Índice do primeiro ponto com coordenadas inválidas, ou -1. */
+    public int firstInvalid() {
+        for (int i = 0; i < size; i++) {
+            double a = lat[i], o = lon[i];
+            // comparações falham com NaN → inválido
+            if (!(a >= -90 && a <= 90 && o >= -180 && o <= 180)) return i;
+        }
+        return -1;
+    }
+
+    public boolean isValid() { return firstInvalid() < 0; }
+
+    /** Comprimento (metros, haversine). */
+    public double distanceM() {
+        double km = 0;
+        for (int i = 1; i < size; i++)
+            km += GeoUtil.haversineKm(lat[i - 1], lon[i - 1], lat[i], lon[i]);
+        return km * 1000;
+    }
+
+    /** Soma das subidas (metros) entre pontos consecutivos com altitude. */
+    public double elevationGainM() {
+        double gain = 0;
+        float  prev = Float.NaN;
+        for (int i = 0; i < size; i++) {
+            if (!hasAlt(i)) continue;
+            if (!Float.isNaN(prev) && alt[i] > prev) gain += alt[i] - prev;
+            prev = alt[i];
+        }
+        return gain;
+    }
+
+    /* ---------- JSON (streaming) ---------- */
+
+    public void writeJson(JsonGenerator g) throws IOException {
+        g.writeStartArray();
+        for (int i = 0; i < size; i++) {
+            g.writeStartObject();
+            g.writeNumberField("latitude", lat[i]);
+            g.writeNumberField("longitude", lon[i]);
+            g.writeNumberField("timestamp", ts[i]);
+            if (hasAlt(i)) g.writeNumberField("altitude", alt[i]);
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+    }
+
+    /** Lê o array de objetos (o parser está no START_ARRAY). Campos desconhecidos são ignorados. */
+    public static TrailTrack readJson(JsonParser p) throws IOException {
+        if (p.currentToken() == JsonToken.VALUE_NULL) return null;
+        if (p.currentToken() != JsonToken.START_ARRAY)
+            throw new IOException("Pontos: array esperado");
+
+        TrailTrack t = new TrailTrack();
+        while (p.nextToken() == JsonToken.START_OBJECT) {
+            double a = Double.NaN, o = Double.NaN;
+            long   time = 0;
+            float  h = Float.NaN;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String f = p.currentName();
+                JsonToken v = p.nextToken();
+                switch (f) {
+                    case "latitude"  -> a    = p.getValueAsDouble(Double.NaN);
+                    case "longitude" -> o    = p.getValueAsDouble(Double.NaN);
+                    case "timestamp" -> time = p.getValueAsLong(0);
+                    case "altitude"  -> h    = v == JsonToken.VALUE_NULL ? Float.NaN
+                                                                         : (float) p.getValueAsDouble(Double.NaN);
+                    default          -> p.skipChildren();
+                }
+            }
+            t.add(a, o, time, h);
+        }
+        if (p.currentToken() != JsonToken.END_ARRAY)
+            throw new IOException("Pontos: objeto esperado");
+        return t;
+    }
+
+    static final class Serializer extends StdSerializer<TrailTrack> {
+        Serializer() { super(TrailTrack.class); }
+
+        @Override
+        public void serialize(TrailTrack t, JsonGenerator g, SerializerProvider sp) throws IOException {
+            t.writeJson(g);
+        }
+    }
+
+    static final class Deserializer extends StdDeserializer<TrailTrack> {
+        Deserializer() { super(TrailTrack.class); }
+
+        @Override
+        public TrailTrack deserialize(JsonParser p, DeserializationContext ctx) throws IOException {
+            return readJson(p);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Cache em memória de JWTs já verificados (assinatura + parse).
+ *   • chave = token compacto; valor = claims até ao {@code exp} do token
+ *   • limitada a {@link #MAX_ENTRIES}; entradas expiradas são removidas primeiro
+ *   • a verificação da blacklist é repetida de {@link #REVOCATION_RECHECK_MS}
+ *     em {@link #REVOCATION_RECHECK_MS} ms, para apanhar revogações feitas
+ *     noutras instâncias
+ */
+final class VerifiedTokenCache {
+
+    static final int  MAX_ENTRIES           = 10_000;
+    static final long REVOCATION_RECHECK_MS = 30_000L;
+
+    /** Entrada da cache: claims verificadas + instante da próxima ida à blacklist. */
+    static final class Entry {
+        final Jws<Claims> jws;
+        final String      jti;
+        final long        expMillis;
+        volatile long     recheckAt;
+
+        Entry(Jws<Claims> jws) {
+            this.jws       = jws;
+            this.jti       = jws.getBody().getId();
+            this.expMillis = jws.getBody().getExpiration() != null
+                           ? jws.getBody().getExpiration().getTime()
+                           : Long.MAX_VALUE;
+            this.recheckAt = 0L;                        // primeira utilização verifica logo
+        }
+    }
+
+    private static final Map<String, Entry> CACHE = new ConcurrentHashMap<>();
+
+    private VerifiedTokenCache() { }
+
+    /** Devolve a entrada ainda válida para o token, ou {@code null}. */
+    static Entry get(String token, long now) {
+        Entry e = CACHE.get(token);
+        if (e == null) return null;
+        if (e.expMillis <= now) {                       // expirou entretanto
+            CACHE.remove(token, e);
+            return null;
+        }
+        return e;
+    }
+
+    static Entry put(String token, Jws<Claims> jws, long now) {
+        if (CACHE.size() >= MAX_ENTRIES) evict(now);
+        Entry e = new Entry(jws);
+        CACHE.put(token, e);
+        return e;
+    }
+
+    static void remove(String token) {
+        CACHE.remove(token);
+    }
+
+    /** Remove todas as entradas com este jti (chamado ao revogar um token). */
+    static void invalidateJti(String jti) {
+        if (jti == null) return;
+        CACHE.values().removeIf(e -> jti.equals(e.jti));
+    }
+
+    static int size() {
+        return CACHE.size();
+    }
+
+    /* ------------------------------------------------------------------ */
+
+    /** Tira primeiro as expiradas; se ainda estiver cheia, liberta ~10%. */
+    private static void evict(long now) {
+        CACHE.values().removeIf(e -> e.expMillis <= now);
+
+        int excess = CACHE.size() - (MAX_ENTRIES - MAX_ENTRIES / 10);
+        Iterator<Map.Entry<String, Entry>> it = CACHE.entrySet().iterator();
+        while (excess-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Transaction;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Import assíncrono de folhas de obra (POST /fo/import/async).
+ *
+ *   • o pedido só copia o corpo para um ficheiro temporário (com limite de
+ *     tamanho), lê a «metadata» para obter o id e responde 202 – o id da
+ *     folha é o id do {@link ImportJob}
+ *   • o import corre num pool dedicado com fila limitada; fila cheia, ou
+ *     ficheiros em /tmp acima de {@link #MAX_SPOOL_BYTES} no total → o
+ *     pedido é recusado (503) em vez de acumular ficheiros
+ *   • os jobs em fila são "tocados" a cada minuto, para não parecerem
+ *     mortos enquanto esperam por um worker
+ *   • pipeline: parse + validação + pré-cálculo da geometria (thread do pool)
+ *     → gravação em lotes paralelos ({@link WorkSheetStreamImport#runJob})
+ *   • se a instância cair, o job fica "morto" ao fim de
+ *     {@link ImportJob#STALE_MS} e reenviar o ficheiro retoma o import
+ */
+public final class WorkSheetImportQueue {
+
+    private static final int  WORKERS   = (int) Math.max(1, BackgroundJobs.longProperty("trailblaze.import.workers", 2));
+    private static final int  CAPACITY  = (int) Math.max(1, BackgroundJobs.longProperty("trailblaze.import.queue", 8));
+    /** Limite do corpo (o /tmp do App Engine conta para a memória da instância). */
+    public  static final long MAX_BYTES = BackgroundJobs.longProperty("trailblaze.import.maxBytes", 64L << 20);
+    /** Limite da soma dos ficheiros em fila ou em import nesta instância. */
+    public  static final long MAX_SPOOL_BYTES =
+            Math.max(MAX_BYTES, BackgroundJobs.longProperty("trailblaze.import.maxSpoolBytes", 256L << 20));
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory  JSON   = MAPPER.getFactory();
+
+    private static final AtomicInteger SEQ = new AtomicInteger();
+    private static volatile ThreadPoolExecutor pool;
+
+    private static final AtomicLong SPOOLED = new AtomicLong();              // bytes em /tmp
+    private static final Set<Long>  WAITING = ConcurrentHashMap.newKeySet(); // jobs QUEUED nesta instância
+
+    private WorkSheetImportQueue() { }
+
+    /** Fila de imports cheia (→ 503). */
+    public static final class QueueFull extends IllegalStateException {
+        QueueFull() { super("Demasiados imports em curso. Tente mais tarde."); }
+    }
+
+    /** Corpo acima de {@link #MAX_BYTES} (→ 413). */
+    public static final class TooLarge extends IOException {
+        TooLarge() { super("Ficheiro acima de " + (MAX_BYTES >> 20) + " MB."); }
+    }
+
+    /**
+     * Guarda o GeoJSON e põe o import em fila.
+     *
+     * @return id da folha de obra (= id do job)
+     * @throws IllegalArgumentException               metadata inválida / ausente
+     * @throws WorkSheetStreamImport.AlreadyExists    folha já importada ou import em curso
+     * @throws QueueFull                              sem lugar na fila
+     */
+    public static long submit(InputStream body, String importedBy, int batchSize) throws IOException {
+        Path file = Files.createTempFile("trailblaze-import-", ".geojson");
+        long size = 0;
+        try {
+            size = spool(body, file);
+            long wsId = peekWorksheetId(file);
+
+            Datastore ds = DatastoreProvider.get();
+            if (ds.get(ds.newKeyFactory().setKind("WorkSheet").newKey(wsId)) != null)
+                throw new WorkSheetStreamImport.AlreadyExists("Folha de obra já existe.");
+
+            /* um job falhado mantém o progresso – o worker retoma a partir dele */
+            Entity[] before = new Entity[1];
+            ImportJob.claim(ds, wsId, prev -> {
+                if (prev != null && prev.isActive())
+                    throw new WorkSheetStreamImport.AlreadyExists("Import desta folha já em curso.");
+                before[0] = prev != null ? prev.toEntity(ds) : null;
+                ImportJob job = prev != null && prev.state != ImportJob.State.DONE
+                              ? prev : new ImportJob(wsId, importedBy, batchSize);
+                job.state = ImportJob.State.QUEUED;
+                job.error = null;
+                return job;
+            });
+
+            long spooled = size;
+            WAITING.add(wsId);
+            try {
+                pool().execute(() -> process(file, spooled, wsId, importedBy, batchSize));
+            } catch (RejectedExecutionException e) {
+                WAITING.remove(wsId);
+                if (before[0] == null) ds.delete(ImportJob.key(ds, wsId));  // repõe o estado anterior
+                else                   ds.put(before[0]);
+                throw new QueueFull();
+            }
+            return wsId;
+
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            SPOOLED.addAndGet(-size);
+            throw e;
+        }
+    }
+
+    private static void process(Path file, long size, long wsId, String importedBy, int batchSize) {
+        synchronized (WAITING) {            // não concorrer com um refreshQueued() em curso
+            WAITING.remove(wsId);
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            WorkSheetStreamImport.runQueuedJob(in, importedBy, batchSize);
+        } catch (Exception e) {
+            System.err.println("[IMPORT] Job " + wsId + " falhou: " + e.getMessage());
+            markFailed(wsId, e);
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) { }
+            SPOOLED.addAndGet(-size);
+        }
+    }
+
+    /**
+     * Mantém vivos os jobs à espera na fila desta instância: sem isto, ao fim
+     * de {@link ImportJob#STALE_MS} pareceriam mortos e um segundo pedido
+     * poderia arrancar o mesmo import. Se a instância cair deixam de ser
+     * tocados e ficam mortos como um job RUNNING.
+     */
+    static void refreshQueued() {
+        Datastore ds = DatastoreProvider.get();
+        for (Long wsId : WAITING) {
+            synchronized (WAITING) {
+                if (!WAITING.contains(wsId)) continue;
+                Transaction txn = ds.newTransaction();
+                try {
+                    Entity e = txn.get(ImportJob.key(ds, wsId));
+                    if (e == null) continue;
+                    ImportJob job = ImportJob.fromEntity(e);
+                    if (job.state != ImportJob.State.QUEUED) continue;
+                    job.updatedAt = new Date();
+                    txn.put(job.toEntity(ds));
+                    txn.commit();
+                } catch (Exception ex) {
+                    System.err.println("[IMPORT] Falha ao atualizar job em fila " + wsId + ": " + ex.getMessage());
+                } finally {
+                    if (txn.isActive()) txn.rollback();
+                }
+            }
+        }
+    }
+
+    /** Falhas antes do job arrancar (ex.: folha criada entretanto) deixariam-no QUEUED. */
+    private static void markFailed(long wsId, Exception cause) {
+        try {
+            Datastore ds = DatastoreProvider.get();
+            ImportJob job = ImportJob.load(ds, wsId);
+            if (job != null && job.state == ImportJob.State.QUEUED) {
+                job.state = ImportJob.State.FAILED;
+                job.error = cause.getMessage();
+                job.save(ds);
+            }
+        } catch (Exception e) {
+            System.err.println("[IMPORT] Falha ao gravar estado do job " + wsId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copia o corpo para {@code file}, reservando os bytes em {@link #SPOOLED}.
+     *
+     * @return bytes reservados (a libertar quando o ficheiro for apagado)
+     * @throws QueueFull se o total em /tmp passasse {@link #MAX_SPOOL_BYTES}
+     */
+    private static long spool(InputStream body, Path file) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        long total = 0;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int n; (n = body.read(buf)) != -1; ) {
+                if (total + n > MAX_BYTES) throw new TooLarge();
+                if (SPOOLED.addAndGet(n) > MAX_SPOOL_BYTES) {
+                    SPOOLED.addAndGet(-n);
+                    throw new QueueFull();
+                }
+                total += n;
+                out.write(buf, 0, n);
+            }
+            return total;
+        } catch (IOException | RuntimeException e) {
+            SPOOLED.addAndGet(-total);
+            throw e;
+        }
+    }
+
+    /** Lê só até à «metadata» (tem de vir antes de «features»). */
+    private static long peekWorksheetId(Path file) throws IOException {
+        try (JsonParser p = JSON.createParser(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (p.nextToken() != JsonToken.START_OBJECT)
+                throw new IllegalArgumentException("GeoJSON inválido: objeto esperado");
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                p.nextToken();
+                if ("metadata".equals(field))
+                    return WorkSheetUtil.parseMetadata(MAPPER.readTree(p)).id();
+                if ("features".equals(field))
+                    throw new IllegalArgumentException(
+                            "No import em streaming \"metadata\" tem de vir antes de \"features\"");
+                p.skipChildren();
+            }
+            throw new IllegalArgumentException("Campo \"metadata\" é obrigatório e deve ser objecto");
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("GeoJSON inválido: " + e.getOriginalMessage(), e);
+        }
+    }
+
+    private static ThreadPoolExecutor pool() {
+        ThreadPoolExecutor p = pool;
+        if (p == null) {
+            synchronized (WorkSheetImportQueue.class) {
+                if (pool == null) {
+                    pool = new ThreadPoolExecutor(WORKERS, WORKERS, 0L, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<>(CAPACITY), r -> {
+                                Thread t = new Thread(r, "trailblaze-import-worker-" + SEQ.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            });
+                    BackgroundJobs.every("import-queue-refresh", 1, 1, TimeUnit.MINUTES,
+                                         WorkSheetImportQueue::refreshQueued);
+                }
+                p = pool;
+            }
+        }
+        return p;
+    }
+
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    public static Map<String, Object> metrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        ThreadPoolExecutor p = pool;
+        m.put("active", p == null ? 0 : p.getActiveCount());
+        m.put("queued", p == null ? 0 : p.getQueue().size());
+        m.put("capacity", CAPACITY);
+        m.put("spooledBytes", SPOOLED.get());
+        m.put("maxSpoolBytes", MAX_SPOOL_BYTES);
+        return m;
+    }
+}
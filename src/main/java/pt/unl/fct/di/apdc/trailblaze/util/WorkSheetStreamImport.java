@@ -0,0 +1,638 @@
+package pt.unl.fct.di.apdc.trailblaze.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.datastore.*;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ *  Import de folhas de obra em streaming (IMP-FO para ficheiros grandes).
+ *
+ *   • o GeoJSON é lido com um {@link JsonParser} diretamente do pedido;
+ *     só a feature corrente existe em árvore Jackson
+ *   • as parcelas são gravadas em lotes limitados (nº de entidades e bytes),
+ *     por isso a memória não cresce com o tamanho do ficheiro e deixa de
+ *     existir o limite de 500 entidades da transação única
+ *   • a WorkSheet e as Operations são gravadas no fim: a folha só "aparece"
+ *     quando todas as parcelas estiverem escritas
+ *   • «metadata» tem de vir antes de «features» no ficheiro
+ *   • a geometria de cada lote é normalizada em paralelo; features inválidas
+ *     recusam o import e são todas reportadas
+ *     ({@link GeometryNormalizer.InvalidFeatures})
+ *
+ *  Dois modos:
+ *   • direto ({@link #run}) – lotes sequenciais; em caso de erro as parcelas
+ *     já gravadas são apagadas
+ *   • job ({@link #runJob}) – lotes gravados em paralelo e progresso num
+ *     {@link ImportJob}; em caso de erro as parcelas ficam e reenviar o mesmo
+ *     ficheiro retoma a partir da última feature confirmada
+ */
+public final class WorkSheetStreamImport {
+
+    /** Limite do Datastore por commit. */
+    public static final int  MAX_BATCH_ENTITIES = 500;
+    /** Tamanho aproximado (bytes de GeoJSON) por lote – abaixo dos 10 MB por pedido. */
+    public static final long MAX_BATCH_BYTES    = 4L << 20;
+
+    /** Tamanho dos lotes no modo job, se o pedido não indicar outro. */
+    public static final int DEFAULT_JOB_BATCH =
+            (int) Math.min(MAX_BATCH_ENTITIES, BackgroundJobs.longProperty("trailblaze.import.batch", 200));
+    /** Lotes gravados em paralelo no modo job. */
+    private static final int WRITERS =
+            (int) Math.max(1, BackgroundJobs.longProperty("trailblaze.import.writers", 4));
+
+    private static final Datastore    DS     = DatastoreProvider.get();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory  JSON   = MAPPER.getFactory();
+
+    private static final AtomicInteger SEQ = new AtomicInteger();
+    private static volatile ExecutorService writers;
+
+    private WorkSheetStreamImport() { }
+
+    public record Result(long worksheetId, long parcels, int batches) { }
+
+    /** A folha de obra já existe, ou já está a ser importada (→ 409). */
+    public static final class AlreadyExists extends IllegalStateException {
+        AlreadyExists(String msg) { super(msg); }
+    }
+
+    /**
+     * Import direto.
+     *
+     * @throws IllegalArgumentException GeoJSON / metadata inválidos
+     * @throws AlreadyExists            folha de obra já importada
+     */
+    public static Result run(InputStream in, String importedBy) throws IOException {
+        return importFrom(in, new DirectSink(importedBy));
+    }
+
+    /**
+     * Import em modo job (cria ou retoma o {@link ImportJob} da folha).
+     *
+     * @param batchSize parcelas por lote (1..{@value #MAX_BATCH_ENTITIES})
+     */
+    public static Result runJob(InputStream in, String importedBy, int batchSize) throws IOException {
+        return importFrom(in, new JobSink(importedBy, batchSize, false));
+    }
+
+    /** Idem, para um job já posto em fila (QUEUED) por {@link WorkSheetImportQueue}. */
+    static Result runQueuedJob(InputStream in, String importedBy, int batchSize) throws IOException {
+        return importFrom(in, new JobSink(importedBy, batchSize, true));
+    }
+
+    public static synchronized void shutdown() {
+        if (writers != null) {
+            writers.shutdownNow();
+            writers = null;
+        }
+    }
+
+    private static ExecutorService writers() {
+        ExecutorService w = writers;
+        if (w == null) {
+            synchronized (WorkSheetStreamImport.class) {
+                if (writers == null)
+                    writers = Executors.newFixedThreadPool(WRITERS, r -> {
+                        Thread t = new Thread(r, "trailblaze-import-" + SEQ.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                w = writers;
+            }
+        }
+        return w;
+    }
+
+    /* =============================================================== */
+    /*                        Leitura do GeoJSON                       */
+    /* =============================================================== */
+
+    private static Result importFrom(InputStream in, Sink sink) throws IOException {
+        try (JsonParser p = JSON.createParser(in)) {
+            if (p.nextToken() != JsonToken.START_OBJECT)
+                throw new IllegalArgumentException("GeoJSON inválido: objeto esperado");
+
+            WorkSheetUtil.ParsedWS ws = null;
+            Entity wsEntity = null;
+
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                p.nextToken();
+
+                switch (field) {
+                    case "metadata" -> {
+                        ws = WorkSheetUtil.parseMetadata(MAPPER.readTree(p));
+                        Key wsKey = DS.newKeyFactory().setKind("WorkSheet").newKey(ws.id());
+                        if (DS.get(wsKey) != null) throw new AlreadyExists("Folha de obra já existe.");
+                        try {
+                            // validado já, antes de qualquer escrita
+                            wsEntity = WorkSheetUtil.buildWorkSheetEntity(ws, wsKey, sink.importedBy);
+                        } catch (DateTimeException e) {
+                            throw new IllegalArgumentException("Data inválida em \"metadata\": " + e.getMessage());
+                        }
+                        sink.begin(ws.id(), WorkSheetUtil.parcelKeyFactory(wsKey),
+                                   ImportJob.fingerprint(ImportJob.FNV_OFFSET, ws.meta().toString()));
+                    }
+                    case "features" -> {
+                        if (sink.kf == null)
+                            throw new IllegalArgumentException(
+                                    "No import em streaming \"metadata\" tem de vir antes de \"features\"");
+                        if (p.currentToken() != JsonToken.START_ARRAY)
+                            throw new IllegalArgumentException("Campo \"features\" deve ser um array");
+                        readFeatures(p, sink);
+                    }
+                    default -> p.skipChildren();
+                }
+            }
+
+            if (ws == null)
+                throw new IllegalArgumentException("Campo \"metadata\" é obrigatório e deve ser objecto");
+            sink.finish();
+            sink.checkFeatures();
+            if (sink.features == 0)
+                throw new IllegalArgumentException("Campo \"features\" está vazio/ausente");
+
+            /* ---------- Operations + WorkSheet (por último, atómico) ---------- */
+            Transaction txn = DS.newTransaction();
+            try {
+                // outro import da mesma folha pode ter terminado enquanto gravávamos os lotes
+                if (txn.get(wsEntity.getKey()) != null) {
+                    sink.lostRace = true;            // as parcelas gravadas são agora as dele
+                    throw new AlreadyExists("Folha de obra já existe (importada em paralelo).");
+                }
+                WorkSheetUtil.buildOperationEntities(ws, wsEntity.getKey()).forEach(txn::put);
+                txn.put(wsEntity);
+                sink.commit(txn);
+                txn.commit();
+                sink.committed = true;               // a partir daqui nada a desfazer
+            } finally {
+                if (txn.isActive()) txn.rollback();
+            }
+
+            ParcelSpatialIndex.putWorksheetRefs(ws.id(), sink.refs);
+            Geofence.invalidateWorksheet(ws.id());
+            System.out.println("[IMPORT] Folha " + ws.id() + ": " + sink.features
+                             + " parcelas em " + sink.batches + " lotes.");
+            return new Result(ws.id(), sink.features, sink.batches);
+
+        } catch (JsonProcessingException e) {
+            sink.fail(e);
+            throw new IllegalArgumentException("GeoJSON inválido: " + e.getOriginalMessage(), e);
+        } catch (RuntimeException | IOException e) {
+            sink.fail(e);
+            throw e;
+        }
+    }
+
+    private static void readFeatures(JsonParser p, Sink sink) throws IOException {
+        long start = p.currentLocation().getByteOffset();
+        while (p.nextToken() == JsonToken.START_OBJECT) {
+            JsonNode f = MAPPER.readTree(p);
+            long end = p.currentLocation().getByteOffset();
+            sink.add(f, start >= 0 ? end - start : 0);
+            start = end;
+        }
+        if (p.currentToken() != JsonToken.END_ARRAY)
+            throw new IllegalArgumentException("Feature inválida em \"features\"");
+    }
+
+    /* =============================================================== */
+    /*                        Destino das parcelas                     */
+    /* =============================================================== */
+
+    private abstract static class Sink {
+        final String importedBy;
+        final List<ParcelSpatialIndex.ParcelRef> refs = new ArrayList<>();
+        final List<JsonNode> pending = new ArrayList<>();
+        final List<GeometryNormalizer.FeatureError> errors = new ArrayList<>();
+        long       worksheetId;
+        KeyFactory kf;
+        long       metaHash;
+        long       prefixHash = ImportJob.FNV_OFFSET;   // impressão digital das features lidas
+        long       features;                     // features lidas (incluindo as saltadas)
+        long       invalid;                      // features com geometria inválida
+        long       bytes;
+        int        batches;
+        volatile boolean committed;
+        /** A folha foi criada por outro import entretanto: não apagar parcelas. */
+        boolean    lostRace;
+
+        Sink(String importedBy) { this.importedBy = importedBy; }
+
+        void begin(long worksheetId, KeyFactory kf, long metaHash) {
+            this.worksheetId = worksheetId;
+            this.kf = kf;
+            this.metaHash = metaHash;
+        }
+
+        void add(JsonNode feature, long approxBytes) {
+            pending.add(feature);
+            bytes += approxBytes;
+            if (pending.size() >= batchSize() || bytes >= MAX_BATCH_BYTES) flushPending();
+        }
+
+        /**
+         *  Normaliza as features pendentes em paralelo e grava as válidas.
+         *  Depois da primeira feature inválida nada mais é gravado, mas o
+         *  ficheiro continua a ser lido para reportar todos os erros.
+         */
+        void flushPending() {
+            if (pending.isEmpty()) return;
+            int n = pending.size();
+            Entity[] built = new Entity[n];
+            String[] raw   = resumable() ? new String[n] : null;   // só para a impressão digital
+            IllegalArgumentException[] failed = new IllegalArgumentException[n];
+            IntStream.range(0, n).parallel().forEach(i -> {
+                if (raw != null) raw[i] = pending.get(i).toString();
+                try {
+                    built[i] = WorkSheetUtil.buildParcelEntity(pending.get(i), kf);
+                } catch (IllegalArgumentException e) {
+                    failed[i] = e;
+                }
+            });
+            pending.clear();
+            bytes = 0;
+
+            List<Entity> batch = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                long index = features++;
+                if (raw != null) {
+                    beforeFeature(index);
+                    prefixHash = ImportJob.fingerprint(prefixHash, raw[i]);
+                }
+                if (failed[i] != null) {
+                    if (invalid++ < GeometryNormalizer.MAX_REPORTED)
+                        errors.add(WorkSheetUtil.featureError(index, failed[i]));
+                    continue;
+                }
+                ParcelSpatialIndex.ParcelRef r = ParcelSpatialIndex.refOf(worksheetId, built[i]);
+                if (r != null) refs.add(r);
+                if (accept(index)) batch.add(built[i]);
+            }
+            if (invalid == 0 && !batch.isEmpty()) write(batch, features, prefixHash);
+        }
+
+        /** Lança se alguma feature tiver geometria inválida. */
+        void checkFeatures() {
+            if (invalid > 0) throw new GeometryNormalizer.InvalidFeatures(errors, invalid);
+        }
+
+        /** Pode ser retomado? Só então se calcula {@link #prefixHash}. */
+        boolean resumable() { return false; }
+
+        /** Chamado antes de {@link #prefixHash} incluir a feature {@code index}. */
+        void beforeFeature(long index) { }
+
+        /** Feature {@code index} ainda por gravar? */
+        boolean accept(long index) { return true; }
+
+        abstract int  batchSize();
+        /**
+         * @param endFeature nº de features até ao fim deste lote (inclusive)
+         * @param endHash    {@link #prefixHash} nesse ponto
+         */
+        abstract void write(List<Entity> batch, long endFeature, long endHash);
+        /** Todos os lotes gravados; lança se algum falhou. */
+        abstract void finish();
+        /** Escritas extra na transação final. */
+        void commit(Transaction txn) { }
+        abstract void fail(Exception cause);
+    }
+
+    /* ---------- modo direto: lotes sequenciais, desfaz em caso de erro ---------- */
+
+    /**
+     *  Também reclama o {@link ImportJob} da folha (só enquanto corre), para
+     *  que nenhum outro import da mesma folha grave parcelas ao mesmo tempo:
+     *  ao falhar, as parcelas apagadas são só as que este import gravou.
+     */
+    private static final class DirectSink extends Sink {
+        final List<Key> written = new ArrayList<>();
+        ImportJob job;
+
+        DirectSink(String importedBy) { super(importedBy); }
+
+        @Override
+        void begin(long worksheetId, KeyFactory kf, long metaHash) {
+            super.begin(worksheetId, kf, metaHash);
+            job = ImportJob.claim(DS, worksheetId, prev -> {
+                if (prev != null && prev.isActive())
+                    throw new AlreadyExists("Import desta folha já em curso.");
+                if (prev != null && prev.state != ImportJob.State.DONE)
+                    throw new AlreadyExists("Existe um import por terminar desta folha: retome-o com /fo/import/job"
+                                          + " ou descarte-o com DELETE /fo/import/job/" + worksheetId + ".");
+                return new ImportJob(worksheetId, importedBy, MAX_BATCH_ENTITIES);
+            });
+        }
+
+        @Override int batchSize() { return MAX_BATCH_ENTITIES; }
+
+        @Override
+        void write(List<Entity> batch, long endFeature, long endHash) {
+            for (Entity e : batch) written.add(e.getKey());
+            BatchWriter.putBatch(DS, batch);
+            batches++;
+            job.parcelsWritten += batch.size();
+            job.batches++;
+            job.save(DS);                                   // mantém o job vivo (STALE_MS)
+        }
+
+        @Override void finish() { flushPending(); }
+
+        /** O import direto não é retomável: o job só existe enquanto corre. */
+        @Override
+        void commit(Transaction txn) {
+            txn.delete(ImportJob.key(DS, worksheetId));
+        }
+
+        @Override
+        void fail(Exception cause) {
+            if (committed || job == null) return;
+            try {
+                if (!lostRace) discardWritten();
+                DS.delete(ImportJob.key(DS, worksheetId));
+            } catch (Exception e) {
+                /* fica FAILED: as parcelas que sobrarem descartam-se com DELETE /fo/import/job/{id} */
+                System.err.println("[IMPORT] Falha ao limpar o import da folha " + worksheetId
+                                 + ": " + e.getMessage());
+                job.state = ImportJob.State.FAILED;
+                job.error = cause.getMessage();
+                try {
+                    job.save(DS);
+                } catch (Exception ignored) { }
+            }
+        }
+
+        /**
+         * Apaga as parcelas gravadas por este import, em transações que
+         * confirmam que a folha continua a não existir.
+         */
+        private void discardWritten() {
+            Key wsKey = DS.newKeyFactory().setKind("WorkSheet").newKey(worksheetId);
+            for (int i = 0; i < written.size(); i += MAX_BATCH_ENTITIES) {
+                List<Key> chunk = written.subList(i, Math.min(written.size(), i + MAX_BATCH_ENTITIES));
+                Transaction txn = DS.newTransaction();
+                try {
+                    if (txn.get(wsKey) != null) {
+                        System.err.println("[IMPORT] Folha " + worksheetId + " criada entretanto: parcelas mantidas.");
+                        return;
+                    }
+                    txn.delete(chunk.toArray(new Key[0]));
+                    txn.commit();
+                } finally {
+                    if (txn.isActive()) txn.rollback();
+                }
+            }
+        }
+    }
+
+    /* ---------- modo job: lotes em paralelo, progresso no ImportJob ---------- */
+
+    private static final class JobSink extends Sink {
+        final int       size;
+        final boolean   queued;
+        final Semaphore inFlight = new Semaphore(WRITERS * 2);     // memória limitada
+        final Map<Integer, long[]> done = new HashMap<>();          // lote → {endFeature, parcelas, hash}
+        ImportJob job;
+        long      skip;
+        boolean   prefixChecked;
+        int       nextSeq, nextToAck;
+        volatile Exception failure;
+
+        JobSink(String importedBy, int size, boolean queued) {
+            super(importedBy);
+            this.size   = size;
+            this.queued = queued;
+        }
+
+        @Override boolean resumable() { return true; }
+
+        /** Cria ou retoma o job numa transação (dois pedidos não arrancam o mesmo import). */
+        @Override
+        void begin(long worksheetId, KeyFactory kf, long metaHash) {
+            super.begin(worksheetId, kf, metaHash);
+            job = ImportJob.claim(DS, worksheetId, prev -> {
+                boolean ours = queued && prev != null && prev.state == ImportJob.State.QUEUED;
+                if (prev != null && prev.isActive() && !ours)
+                    throw new AlreadyExists("Import desta folha já em curso.");
+
+                if (prev == null || prev.state == ImportJob.State.DONE) {
+                    ImportJob j = new ImportJob(worksheetId, importedBy, size);
+                    j.metaHash = metaHash;
+                    return j;
+                }
+                if (prev.featuresCommitted > 0 && prev.metaHash != metaHash)
+                    throw new AlreadyExists(mismatch(worksheetId, "a metadata é diferente"));
+                if (prev.featuresCommitted == 0) prev.metaHash = metaHash;   // job em fila ainda sem ficheiro lido
+                prev.state     = ImportJob.State.RUNNING;                     // retoma (ou job em fila)
+                prev.error     = null;
+                prev.batchSize = size;
+                return prev;
+            });
+
+            skip = job.featuresCommitted;
+            if (skip > 0 && !parcelsStillThere()) {
+                /* parcelas apagadas entretanto: não há nada para retomar */
+                System.out.println("[IMPORT] Folha " + worksheetId + ": parcelas do import anterior em falta, a recomeçar.");
+                job.featuresCommitted = 0;
+                job.parcelsWritten    = 0;
+                job.prefixHash        = ImportJob.FNV_OFFSET;
+                skip = 0;
+                job.save(DS);
+            } else if (skip > 0) {
+                job.resumes++;
+                job.save(DS);
+                System.out.println("[IMPORT] Folha " + worksheetId + ": a retomar na feature " + skip + ".");
+            }
+        }
+
+        /** As parcelas confirmadas pelo job ainda existem? (conta até {@code parcelsWritten}) */
+        private boolean parcelsStillThere() {
+            if (job.parcelsWritten == 0) return true;
+            Key wsKey = DS.newKeyFactory().setKind("WorkSheet").newKey(worksheetId);
+            Query<Key> q = Query.newKeyQueryBuilder()
+                    .setKind("Parcel")
+                    .setFilter(PropertyFilter.hasAncestor(wsKey))
+                    .setLimit((int) Math.min(Integer.MAX_VALUE, job.parcelsWritten))
+                    .build();
+            long n = 0;
+            QueryResults<Key> res = DS.run(q);
+            while (res.hasNext()) { res.next(); n++; }
+            return n >= job.parcelsWritten;
+        }
+
+        /** O ficheiro tem de coincidir com o do import interrompido até ao ponto de retoma. */
+        @Override
+        void beforeFeature(long index) {
+            if (index == skip && skip > 0) verifyPrefix();
+        }
+
+        private void verifyPrefix() {
+            if (prefixChecked) return;
+            if (prefixHash != job.prefixHash)
+                throw new AlreadyExists(mismatch(worksheetId, "as primeiras " + skip + " features são diferentes"));
+            prefixChecked = true;
+        }
+
+        private static String mismatch(long worksheetId, String why) {
+            return "O ficheiro não corresponde ao import interrompido da folha " + worksheetId + " (" + why
+                 + "). Reenvie o mesmo ficheiro ou descarte o import com DELETE /fo/import/job/" + worksheetId + ".";
+        }
+
+        @Override int batchSize() { return size; }
+
+        @Override boolean accept(long index) {
+            if (failure != null)
+                throw new IllegalStateException("Falha ao gravar lote: " + failure.getMessage(), failure);
+            return index >= skip;
+        }
+
+        @Override
+        void write(List<Entity> batch, long endFeature, long endHash) {
+            int seq = nextSeq++;
+            inFlight.acquireUninterruptibly();
+            try {
+                writers().execute(() -> {
+                    try {
+                        BatchWriter.putBatch(DS, batch);
+                        acknowledge(seq, endFeature, batch.size(), endHash);
+                    } catch (Exception e) {
+                        if (failure == null) failure = e;
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                inFlight.release();
+                throw e;
+            }
+        }
+
+        /** Avança o ponto de retoma só sobre o prefixo contíguo de lotes confirmados. */
+        private void acknowledge(int seq, long endFeature, int parcels, long endHash) {
+            synchronized (this) {
+                done.put(seq, new long[]{ endFeature, parcels, endHash });
+                boolean moved = false;
+                while (done.containsKey(nextToAck)) {
+                    long[] d = done.remove(nextToAck++);
+                    job.featuresCommitted = d[0];
+                    job.parcelsWritten   += d[1];
+                    job.prefixHash        = d[2];
+                    job.batches++;
+                    batches++;
+                    moved = true;
+                }
+                if (moved) job.save(DS);
+            }
+        }
+
+        private void awaitWriters() {
+            inFlight.acquireUninterruptibly(WRITERS * 2);
+            inFlight.release(WRITERS * 2);
+        }
+
+        @Override
+        void finish() {
+            flushPending();
+            if (skip > 0 && features < skip)
+                throw new AlreadyExists(mismatch(worksheetId, "tem menos de " + skip + " features"));
+            if (skip > 0) verifyPrefix();                  // ficheiro com exatamente skip features
+            awaitWriters();
+            if (failure != null)
+                throw new IllegalStateException("Falha ao gravar lote: " + failure.getMessage(), failure);
+        }
+
+        @Override
+        void commit(Transaction txn) {
+            synchronized (this) {
+                job.state             = ImportJob.State.DONE;
+                job.featuresCommitted = features;
+                job.prefixHash        = prefixHash;
+                job.updatedAt         = new Date();
+                txn.put(job.toEntity(DS));
+            }
+        }
+
+        @Override
+        void fail(Exception cause) {
+            if (committed || job == null) return;
+            awaitWriters();
+            synchronized (this) {
+                job.state = ImportJob.State.FAILED;
+                job.error = cause.getMessage();
+                try {
+                    job.save(DS);
+                } catch (Exception e) {
+                    System.err.println("[IMPORT] Falha ao gravar estado do job " + worksheetId + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Descarta um import por terminar (DELETE /fo/import/job/{id}): apaga as
+     * parcelas já gravadas e o job. Se a folha já existir só o job é apagado.
+     *
+     * @return {@code false} se não houver job
+     * @throws AlreadyExists se o import estiver a correr
+     */
+    public static boolean discardJob(long worksheetId) {
+        ImportJob job = ImportJob.load(DS, worksheetId);
+        if (job == null) return false;
+        if (job.isActive()) throw new AlreadyExists("Import desta folha em curso.");
+        if (DS.get(DS.newKeyFactory().setKind("WorkSheet").newKey(worksheetId)) != null)
+            DS.delete(ImportJob.key(DS, worksheetId));
+        else
+            discardParcels(worksheetId);
+        return true;
+    }
+
+    /**
+     * Apaga as parcelas já gravadas de um import falhado e o {@link ImportJob}
+     * da folha (se não estiver ativo), que deixaria de ter de onde retomar.
+     */
+    private static void discardParcels(long worksheetId) {
+        try {
+            ImportJob job = ImportJob.load(DS, worksheetId);
+            if (job != null && !job.isActive()) DS.delete(ImportJob.key(DS, worksheetId));
+
+            Key wsKey = DS.newKeyFactory().setKind("WorkSheet").newKey(worksheetId);
+            Query<Key> q = Query.newKeyQueryBuilder()
+                    .setKind("Parcel")
+                    .setFilter(PropertyFilter.hasAncestor(wsKey))
+                    .build();
+            List<Key> keys = new ArrayList<>();
+            QueryResults<Key> res = DS.run(q);
+            while (res.hasNext()) {
+                keys.add(res.next());
+                if (keys.size() == MAX_BATCH_ENTITIES) {
+                    DS.delete(keys.toArray(new Key[0]));
+                    keys.clear();
+                }
+            }
+            if (!keys.isEmpty()) DS.delete(keys.toArray(new Key[0]));
+        } catch (Exception e) {
+            System.err.println("[IMPORT] Falha ao limpar parcelas da folha " + worksheetId
+                             + ": " + e.getMessage());
+        }
+    }
+}
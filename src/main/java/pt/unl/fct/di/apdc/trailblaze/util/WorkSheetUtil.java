@@ -3,8 +3,17 @@ package pt.unl.fct.di.apdc.trailblaze.util;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.IntStream;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -12,13 +21,15 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.Datastore;
-import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.DoubleValue;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.LongValue;
 import com.google.cloud.datastore.PathElement;
+import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
-import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.Transaction;
 
 /**
  *  Utils / DAO-lite para tudo o que é Folha de Obra:
@@ -57,23 +68,14 @@ public final class WorkSheetUtil {
 
         try {
             JsonNode root  = MAPPER.readTree(rawGeoJson);
-
-            /* --- metadata obrigatória --- */
-            ObjectNode meta = expectObject(root, "metadata");
-            long id = expectLong(meta, "id");
-
-            /* --- operações 1-5 --- */
-            ArrayNode ops = (ArrayNode) meta.path("operations");
-            if (ops == null || ops.size() < 1 || ops.size() > 5)
-                throw new IllegalArgumentException(
-                        "Campo \"operations\" deve conter 1 a 5 entradas");
+            ParsedWS ws    = parseMetadata(root.path("metadata"));
 
             /* --- features obrigatórias --- */
             ArrayNode feats = (ArrayNode) root.path("features");
             if (feats == null || feats.isEmpty())
                 throw new IllegalArgumentException("Campo \"features\" está vazio/ausente");
 
-            return new ParsedWS(id, meta, ops, feats);
+            return new ParsedWS(ws.id(), ws.meta(), ws.operations(), feats);
 
         } catch (IllegalArgumentException e) {
             throw e; // re-lança sem embrulho
@@ -82,6 +84,25 @@ public final class WorkSheetUtil {
         }
     }
 
+    /**
+     *  Valida o objeto «metadata» (id + 1 a 5 operações). As features
+     *  ficam vazias – o import em streaming trata-as uma a uma.
+     */
+    public static ParsedWS parseMetadata(JsonNode metadata) {
+        if (metadata == null || !metadata.isObject())
+            throw new IllegalArgumentException("Campo \"metadata\" é obrigatório e deve ser objecto");
+        ObjectNode meta = (ObjectNode) metadata;
+        long id = expectLong(meta, "id");
+
+        /* --- operações 1-5 --- */
+        JsonNode ops = meta.path("operations");
+        if (!ops.isArray() || ops.size() < 1 || ops.size() > 5)
+            throw new IllegalArgumentException(
+                    "Campo \"operations\" deve conter 1 a 5 entradas");
+
+        return new ParsedWS(id, meta, (ArrayNode) ops, MAPPER.createArrayNode());
+    }
+
     /* ------------------------------------------------------------------ */
     /*  ---------------  ENTITY BUILDERS (IMP-FO)  ---------------------- */
     /* ------------------------------------------------------------------ */
@@ -136,55 +157,206 @@ public final class WorkSheetUtil {
         return list;
     }
 
+    /**
+     *  Constrói as parcelas em paralelo (ForkJoin comum): a normalização da
+     *  geometria e o pré-cálculo das estatísticas dominam o custo do import.
+     *  Se alguma feature for inválida lança {@link GeometryNormalizer.InvalidFeatures}
+     *  com os erros de todas elas.
+     */
     public static List<Entity> buildParcelEntities(ParsedWS dto, Key wsKey) {
 
-        List<Entity> list = new ArrayList<>();
-        PathElement ancestor = PathElement.of("WorkSheet", wsKey.getId());
+        KeyFactory kf = parcelKeyFactory(wsKey);
+        int n = dto.features.size();
+        Entity[] out = new Entity[n];
+        List<GeometryNormalizer.FeatureError> errors = Collections.synchronizedList(new ArrayList<>());
 
-        KeyFactory kf = datastore().newKeyFactory()
-                .addAncestor(ancestor)
+        IntStream.range(0, n).parallel().forEach(i -> {
+            try {
+                out[i] = buildParcelEntity(dto.features.get(i), kf);
+            } catch (IllegalArgumentException e) {
+                errors.add(featureError(i, e));
+            }
+        });
+
+        if (!errors.isEmpty()) throw GeometryNormalizer.invalid(errors);
+        return Arrays.asList(out);
+    }
+
+    /** Erro de uma feature para o relatório do import. */
+    public static GeometryNormalizer.FeatureError featureError(long index, IllegalArgumentException e) {
+        return e instanceof GeometryNormalizer.InvalidGeometry g
+                ? new GeometryNormalizer.FeatureError(index, g.polygonId(), g.errors())
+                : new GeometryNormalizer.FeatureError(index, null, List.of(e.getMessage()));
+    }
+
+    /**
+     *  Das folhas de obra dadas, as que existem. Um import em modo job
+     *  interrompido deixa parcelas sem WorkSheet até ser retomado ou
+     *  descartado – quem percorre todas as parcelas tem de as ignorar.
+     */
+    public static Set<Long> existingWorksheets(Datastore ds, Collection<Long> ids) {
+        Set<Long> found = new HashSet<>();
+        KeyFactory kf = ds.newKeyFactory().setKind("WorkSheet");
+        List<Key> keys = new ArrayList<>();
+        for (Long id : ids) {
+            keys.add(kf.newKey(id));
+            if (keys.size() == 1000) {                  // limite de um lookup
+                collectIds(ds.get(keys), found);
+                keys.clear();
+            }
+        }
+        if (!keys.isEmpty()) collectIds(ds.get(keys), found);
+        return found;
+    }
+
+    private static void collectIds(Iterator<Entity> it, Set<Long> out) {
+        while (it.hasNext()) out.add(it.next().getKey().getId());
+    }
+
+    public static KeyFactory parcelKeyFactory(Key wsKey) {
+        return datastore().newKeyFactory()
+                .addAncestor(PathElement.of("WorkSheet", wsKey.getId()))
                 .setKind("Parcel");
+    }
 
-        for (JsonNode f : dto.features) {
-        	ObjectNode props = expectObject(f, "properties");
-
-            /*
-             *  Some GeoJSON files label the polygon identifier simply as
-             *  "id" (inside properties or at the feature level) instead of
-             *  "polygon_id". This implementation now tries both options so that
-             *  worksheets coming from different sources can be imported.
-             */
-
-            JsonNode polyNode = props.get("polygon_id");
-            if (polyNode == null || !polyNode.isIntegralNumber())
-                polyNode = props.get("id");
-            if ((polyNode == null || !polyNode.isIntegralNumber()) &&
-                    f.has("id") && f.get("id").isIntegralNumber())
-                polyNode = f.get("id");
-
-            int polygonId = polyNode != null && polyNode.isIntegralNumber()
-                    ? polyNode.asInt() : 0;
-
-            // geometry stored exactly as received to avoid losing precision
-            StringValue geom = StringValue.newBuilder(f.get("geometry").toString())
-                    .setExcludeFromIndexes(true)
-                    .build();
-            
-            String aigp = props.has("aigp") && props.get("aigp").isTextual() ? props.get("aigp").asText() : "";
-            String rpid = props.has("rural_property_id") && props.get("rural_property_id").isTextual()
-                    ? props.get("rural_property_id").asText() : "";
-            
+    /**
+     *  Entidade Parcel de uma feature (usado também pelo import em streaming).
+     *  A geometria é normalizada antes de gravada ({@link GeometryNormalizer});
+     *  se for inválida lança {@link GeometryNormalizer.InvalidGeometry}.
+     */
+    public static Entity buildParcelEntity(JsonNode f, KeyFactory kf) {
+        ObjectNode props = expectObject(f, "properties");
+
+        /*
+         *  Some GeoJSON files label the polygon identifier simply as
+         *  "id" (inside properties or at the feature level) instead of
+         *  "polygon_id". This implementation now tries both options so that
+         *  worksheets coming from different sources can be imported.
+         */
+
+        JsonNode polyNode = props.get("polygon_id");
+        if (polyNode == null || !polyNode.isIntegralNumber())
+            polyNode = props.get("id");
+        if ((polyNode == null || !polyNode.isIntegralNumber()) &&
+                f.has("id") && f.get("id").isIntegralNumber())
+            polyNode = f.get("id");
+
+        int polygonId = polyNode != null && polyNode.isIntegralNumber()
+                ? polyNode.asInt() : 0;
+
+        GeometryNormalizer.Result geom = GeometryNormalizer.normalize(f.get("geometry"));
+        if (!geom.ok())
+            throw new GeometryNormalizer.InvalidGeometry(polygonId, geom.errors());
+
+        String aigp = props.has("aigp") && props.get("aigp").isTextual() ? props.get("aigp").asText() : "";
+        String rpid = props.has("rural_property_id") && props.get("rural_property_id").isTextual()
+                ? props.get("rural_property_id").asText() : "";
+
+
+        Entity.Builder p = Entity.newBuilder(kf.newKey(polygonId))
+                   .set("polygonId", polygonId)
+                   .set("aigp", aigp)
+                   .set("ruralPropertyId", rpid);
+        GeometryCodec.setGeometry(p, geom.geometry());        // texto e/ou binário
+        setGeometryStats(p, GeoUtil.stats(geom.geometry()));
+
+        return p.build();
+    }
 
-            Entity p = Entity.newBuilder(kf.newKey(polygonId))
-            		   .set("polygonId", polygonId)
-                       .set("aigp", aigp)
-                       .set("ruralPropertyId", rpid)
-                       .set("geometry", geom)
-                    .build();
+    /**
+     *  Centróide, bbox, nº de vértices e área calculados uma vez no import,
+     *  para que as leituras não precisem de voltar a fazer parse ao GeoJSON.
+     *  O bbox (minLat/maxLat/minLon/maxLon) fica indexado para pré-filtrar queries.
+     */
+    public static void setGeometryStats(Entity.Builder b, GeoUtil.Stats st) {
+        if (st == null) return;
+        b.set("centroidLat", unindexed(st.centroidLat()))
+         .set("centroidLon", unindexed(st.centroidLon()))
+         .set("minLat"     , st.minLat())
+         .set("maxLat"     , st.maxLat())
+         .set("minLon"     , st.minLon())
+         .set("maxLon"     , st.maxLon())
+         .set("vertexCount", LongValue.newBuilder(st.vertexCount()).setExcludeFromIndexes(true).build())
+         .set("areaHa"     , unindexed(st.areaHa()));
+    }
+
+    /** {@code true} se a parcela já tiver as estatísticas de geometria. */
+    public static boolean hasGeometryStats(Entity parcel) {
+        return parcel.contains("centroidLat") && parcel.contains("minLat");
+    }
+
+    private static DoubleValue unindexed(double v) {
+        return DoubleValue.newBuilder(v).setExcludeFromIndexes(true).build();
+    }
+
+    /* ------------------------------------------------------------------ */
+    /*  ----------------  BACKFILL (parcelas antigas)  ------------------ */
+    /* ------------------------------------------------------------------ */
+
+    public static final String PARCEL_STATS_MIGRATION_ID = "parcel-geometry-stats-v1";
 
-            list.add(p);
+    /** Parcelas por transação do backfill (geometrias podem ser grandes). */
+    private static final int BACKFILL_TXN_SIZE = 100;
+
+    /**
+     *  Calcula as estatísticas de geometria das parcelas importadas antes delas existirem.
+     *  A query só escolhe candidatas; cada grupo (parcelas da mesma folha, até
+     *  {@link #BACKFILL_TXN_SIZE}) é relido e atualizado numa transação, para
+     *  não reverter uma edição feita entretanto.
+     */
+    public static void backfillParcelStats() {
+        Datastore ds = datastore();
+        Query<Entity> q = Query.newEntityQueryBuilder().setKind("Parcel").build();   // ordenada por chave
+
+        KeyFactory wsKf = ds.newKeyFactory().setKind("WorkSheet");
+        Map<Long, Boolean> wsExists = new HashMap<>();   // parcelas de imports por terminar ficam de fora
+
+        List<Key> group = new ArrayList<>();
+        int total = 0;
+        QueryResults<Entity> res = ds.run(q);
+        while (res.hasNext()) {
+            Entity p = res.next();
+            if (hasGeometryStats(p) || !GeometryCodec.hasGeometry(p)) continue;
+            Key parent = p.getKey().getParent();
+            if (parent == null || parent.getId() == null
+                || !wsExists.computeIfAbsent(parent.getId(), id -> ds.get(wsKf.newKey(id)) != null)) continue;
+
+            if (!group.isEmpty()
+                && (group.size() == BACKFILL_TXN_SIZE || !parent.equals(group.get(0).getParent()))) {
+                total += backfillGroup(ds, group);
+                group.clear();
+            }
+            group.add(p.getKey());
+        }
+        if (!group.isEmpty()) total += backfillGroup(ds, group);
+        System.out.println("[MIGRATION] Parcel stats: " + total + " parcelas atualizadas.");
+    }
+
+    /** Relê as parcelas numa transação e acrescenta as estatísticas às que ainda não as têm. */
+    private static int backfillGroup(Datastore ds, List<Key> keys) {
+        Transaction txn = ds.newTransaction();
+        try {
+            List<Entity> updated = new ArrayList<>();
+            Iterator<Entity> it = txn.get(keys.toArray(new Key[0]));
+            while (it.hasNext()) {
+                Entity p = it.next();
+                if (hasGeometryStats(p) || !GeometryCodec.hasGeometry(p)) continue;
+                GeoUtil.Stats st = GeoUtil.stats(GeometryCodec.geometryJson(p));
+                if (st == null) continue;                   // geometria malformada
+                Entity.Builder b = Entity.newBuilder(p);
+                setGeometryStats(b, st);
+                updated.add(b.build());
+            }
+            if (updated.isEmpty()) return 0;
+            txn.put(updated.toArray(new Entity[0]));
+            txn.commit();
+            return updated.size();
+        } catch (Exception e) {
+            System.err.println("[MIGRATION] Parcel stats: falha em " + keys.get(0).getParent() + ": " + e.getMessage());
+            return 0;
+        } finally {
+            if (txn.isActive()) txn.rollback();
         }
-        return list;
     }
 
     /* ------------------------------------------------------------------ */
@@ -263,16 +435,7 @@ public final class WorkSheetUtil {
                     pr.put("area", 0.0);
                 }
                 
-                String geomStr = p.contains("geometry") ? p.getString("geometry") : null;
-                if (geomStr != null) {
-                    try {
-                        pr.set("geometry", MAPPER.readTree(geomStr));
-                    } catch (Exception ex) {
-                        pr.put("geometry", (String)null);
-                    }
-                } else {
-                    pr.put("geometry", (String)null);
-                }
+                pr.set("geometry", GeometryCodec.geometryJson(p));  // null se ausente/inválida
             } catch(Exception e) {
                 System.err.println("Erro ao processar parcela: " + e.getMessage());
                 // Ignora parcela malformada
@@ -287,7 +450,7 @@ public final class WorkSheetUtil {
     /* ------------------------------------------------------------------ */
 
     private static Datastore datastore() {
-        return DatastoreOptions.getDefaultInstance().getService();
+        return DatastoreProvider.get();
     }
 
     private static String tsToIso(Timestamp ts) {
@@ -1990,7 +1990,10 @@ function showActivitiesModal(title, activities, operationId, parcelId = null) {
             const activityId = activity.activityId?.string || activity.activityId || 'N/A';
             const operatorId = activity.operatorId?.string || activity.operatorId || 'N/A';
             const parcelIdStr = activity.parcelId?.string || activity.parcelId || 'N/A';
-            const gpsTrack = activity.gpsTrack?.string || activity.gpsTrack || '';
+            const track = activity.track || {};
+            const gpsTrack = track.points > 0
+                ? `${track.points} points, ${(track.distanceM / 1000).toFixed(2)} km`
+                : '';
             const observations = activity.observations?.string || activity.observations || '';
             const photoUrls = Array.isArray(activity.photoUrls)
                 ? activity.photoUrls.map(p => p?.string || p).filter(Boolean)